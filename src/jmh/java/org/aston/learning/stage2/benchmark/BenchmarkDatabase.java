@@ -0,0 +1,42 @@
+package org.aston.learning.stage2.benchmark;
+
+import org.aston.learning.stage2.dao.UserDao;
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.util.HibernateUtil;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.JdbcSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// In-process H2 stand-in for PostgreSQL, configured from the same hibernate.cfg.xml and pool
+public class BenchmarkDatabase {
+    private static final int POPULATE_BATCH_SIZE = 1000;
+
+    public static SessionFactory createSessionFactory(String name) {
+        return HibernateUtil.createSessionFactory(Map.of(
+                JdbcSettings.JAKARTA_JDBC_DRIVER, "org.h2.Driver",
+                JdbcSettings.JAKARTA_JDBC_URL, "jdbc:h2:mem:" + name
+                        // pgjdbc statement cache properties from the pool config mean nothing to H2
+                        + ";DB_CLOSE_DELAY=-1;IGNORE_UNKNOWN_SETTINGS=TRUE",
+                JdbcSettings.JAKARTA_JDBC_USER, "sa",
+                JdbcSettings.JAKARTA_JDBC_PASSWORD, "",
+                "hibernate.show_sql", "false",
+                "hibernate.format_sql", "false"));
+    }
+
+    public static void populate(UserDao userDao, int rows) {
+        List<User> batch = new ArrayList<>(POPULATE_BATCH_SIZE);
+        for (int i = 0; i < rows; i++) {
+            batch.add(new User("User " + i, "user" + i + "@example.com", i % 100));
+            if (batch.size() == POPULATE_BATCH_SIZE) {
+                userDao.saveAll(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            userDao.saveAll(batch);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.aston.learning.stage2.benchmark;
+
+import org.aston.learning.stage2.dao.UserDao;
+import org.aston.learning.stage2.dao.UserDaoImpl;
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.ConcurrentUpdateException;
+import org.aston.learning.stage2.service.RetryPolicy;
+import org.aston.learning.stage2.service.UpdateLocking;
+import org.aston.learning.stage2.service.UserService;
+import org.aston.learning.stage2.service.UserServiceImpl;
+import org.hibernate.SessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Concurrent read-modify-write of a few hot users. Each operation increments a counter kept in
+// the user's name, so after the trial the counters show how many acknowledged increments were lost.
+// NAIVE reads and then writes the field blindly, as updateUser did before versioning.
+// Needs contention to mean anything: -Djmh.threads=8 in the benchmark profile
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ConcurrentUpdateBenchmark {
+    public enum Strategy { NAIVE, OPTIMISTIC, PESSIMISTIC }
+
+    @Param({"NAIVE", "OPTIMISTIC", "PESSIMISTIC"})
+    private Strategy strategy;
+
+    @Param({"1", "16"})
+    private int hotUsers;
+
+    private SessionFactory sessionFactory;
+    private UserDao userDao;
+    private UserService userService;
+    private long[] ids;
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder gaveUp = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sessionFactory = BenchmarkDatabase.createSessionFactory("update_" + strategy + "_" + hotUsers);
+        userDao = new UserDaoImpl(sessionFactory);
+        UpdateLocking locking = strategy == Strategy.PESSIMISTIC ? UpdateLocking.PESSIMISTIC : UpdateLocking.OPTIMISTIC;
+        userService = new UserServiceImpl(userDao, locking,
+                new RetryPolicy(20, Duration.ofNanos(50_000), Duration.ofMillis(5)));
+        BenchmarkDatabase.populate(userDao, hotUsers);
+
+        ids = new long[hotUsers];
+        for (int i = 0; i < hotUsers; i++) {
+            ids[i] = userDao.findAll(i, 1).get(0).getId();
+            userDao.updateFields(ids[i], "0", null, null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        long applied = 0;
+        for (User user : userDao.findByIds(Arrays.stream(ids).boxed().toList())) {
+            applied += Long.parseLong(user.getName());
+        }
+        long lost = acknowledged.sum() - applied;
+        System.out.printf("%n%s, %d hot users: %d increments acknowledged, %d applied, %d lost (%.2f%%), %d gave up%n",
+                strategy, hotUsers, acknowledged.sum(), applied, lost,
+                acknowledged.sum() == 0 ? 0.0 : 100.0 * lost / acknowledged.sum(), gaveUp.sum());
+        sessionFactory.close();
+    }
+
+    @Benchmark
+    public void increment() {
+        long id = ids[ThreadLocalRandom.current().nextInt(ids.length)];
+        try {
+            if (strategy == Strategy.NAIVE) {
+                User user = userDao.findById(id).orElseThrow();
+                userDao.updateFields(id, increment(user.getName()), null, null);
+            } else {
+                userService.updateUser(id, user -> user.setName(increment(user.getName())));
+            }
+            acknowledged.increment();
+        } catch (ConcurrentUpdateException e) {
+            gaveUp.increment();
+        }
+    }
+
+    private static String increment(String counter) {
+        return Long.toString(Long.parseLong(counter) + 1);
+    }
+}
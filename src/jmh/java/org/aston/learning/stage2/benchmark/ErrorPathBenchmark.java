@@ -0,0 +1,100 @@
+package org.aston.learning.stage2.benchmark;
+
+import org.aston.learning.stage2.dao.InMemoryUserDao;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.service.UserService;
+import org.aston.learning.stage2.service.UserServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Writes through the service over the in-memory storage, so the cost of failing requests is not
+// hidden behind database round trips. errorRate of the calls fail in one of the expected ways:
+// an invalid email, a duplicate email or an update of a missing user. Logging goes through
+// log4j2-benchmark.xml at WARN, as it would in production.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ErrorPathBenchmark {
+    private static final int USERS = 10_000;
+
+    private UserService userService;
+
+    // Only the mixed workload depends on the rate, the single failure benchmarks run once
+    @State(Scope.Thread)
+    public static class Mix {
+        @Param({"0.0", "0.01", "0.1", "0.5"})
+        private double errorRate;
+    }
+
+    @Setup
+    public void setUp() {
+        userService = new UserServiceImpl(new InMemoryUserDao());
+        for (int i = 0; i < USERS; i++) {
+            userService.createUser("User " + i, "user" + i + "@example.com", 30);
+        }
+    }
+
+    @Benchmark
+    public Object mixedWrites(Mix mix) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long id = 1 + random.nextInt(USERS);
+        try {
+            if (random.nextDouble() >= mix.errorRate) {
+                return userService.updateUser(id, null, null, 20 + random.nextInt(50));
+            }
+            switch (random.nextInt(3)) {
+                case 0:
+                    return userService.createUser("Bad Email", "not-an-email", 30);
+                case 1:
+                    return userService.createUser("Duplicate", "user" + (id - 1) + "@example.com", 30);
+                default:
+                    return userService.updateUser(USERS + id, "Missing", null, null);
+            }
+        } catch (UserServiceException e) {
+            return e;
+        }
+    }
+
+    // The failures alone, what a burst of bad input costs per request
+    @Benchmark
+    public Object invalidInput() {
+        try {
+            return userService.createUser("Bad Email", "not-an-email", 30);
+        } catch (UserServiceException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object updateMissingUser() {
+        try {
+            return userService.updateUser(USERS + 1L + ThreadLocalRandom.current().nextInt(USERS), "Missing", null, null);
+        } catch (UserServiceException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object duplicateEmail() {
+        try {
+            return userService.createUser("Duplicate", "user" + ThreadLocalRandom.current().nextInt(USERS) + "@example.com", 30);
+        } catch (UserServiceException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.aston.learning.stage2.benchmark;
+
+import org.aston.learning.stage2.dao.UserDaoImpl;
+import org.aston.learning.stage2.dao.UserSummary;
+import org.aston.learning.stage2.entity.User;
+import org.hibernate.SessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+// Managed User entities vs UserSummary projections over the same rows. Run with -prof gc for
+// bytes allocated per operation, the retained heap of a full listing is printed once per trial.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class ProjectionBenchmark {
+    private static final int PAGE_SIZE = 1000;
+
+    @Param({"1000000"})
+    private int rows;
+
+    private SessionFactory sessionFactory;
+    private UserDaoImpl userDao;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sessionFactory = BenchmarkDatabase.createSessionFactory("projection_" + rows);
+        userDao = new UserDaoImpl(sessionFactory);
+        BenchmarkDatabase.populate(userDao, rows);
+
+        long entityBytes = retainedBytes(userDao::findAll);
+        long summaryBytes = retainedBytes(() -> userDao.findSummaries(0, rows));
+        System.out.printf("%nRetained heap for %d rows: entities %d bytes/row, summaries %d bytes/row%n",
+                rows, entityBytes / rows, summaryBytes / rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sessionFactory.close();
+    }
+
+    @Benchmark
+    public void scanEntities(Blackhole blackhole) {
+        try (Stream<User> users = userDao.streamAll()) {
+            users.forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public void scanSummaries(Blackhole blackhole) {
+        try (Stream<UserSummary> summaries = userDao.streamSummaries()) {
+            summaries.forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public List<User> pageEntities() {
+        return userDao.findPageAfter(randomCursor(), PAGE_SIZE).getUsers();
+    }
+
+    @Benchmark
+    public List<UserSummary> pageSummaries() {
+        return userDao.findSummariesAfter(randomCursor(), PAGE_SIZE);
+    }
+
+    private long randomCursor() {
+        return ThreadLocalRandom.current().nextLong(0, Math.max(1, rows - PAGE_SIZE));
+    }
+
+    // Heap still in use while the whole listing is held, measured between full collections
+    private static long retainedBytes(Supplier<List<?>> listing) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long before = memory.getHeapMemoryUsage().getUsed();
+        List<?> rows = listing.get();
+        System.gc();
+        long after = memory.getHeapMemoryUsage().getUsed();
+        if (rows.isEmpty()) {
+            throw new IllegalStateException("Listing returned no rows");
+        }
+        return Math.max(0, after - before);
+    }
+}
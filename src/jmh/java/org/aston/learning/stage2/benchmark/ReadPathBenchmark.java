@@ -0,0 +1,89 @@
+package org.aston.learning.stage2.benchmark;
+
+import org.aston.learning.stage2.dao.UserDaoImpl;
+import org.aston.learning.stage2.entity.User;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Read-only stateless path vs the former managed-session path, run with -prof gc for allocation rates
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadPathBenchmark {
+
+    @Param({"1000", "100000"})
+    private int rows;
+
+    private SessionFactory sessionFactory;
+    private UserDaoImpl userDao;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sessionFactory = BenchmarkDatabase.createSessionFactory("read_path_" + rows);
+        userDao = new UserDaoImpl(sessionFactory);
+        BenchmarkDatabase.populate(userDao, rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sessionFactory.close();
+    }
+
+    @Benchmark
+    public List<User> findAllReadOnly() {
+        return userDao.findAll();
+    }
+
+    @Benchmark
+    public List<User> findAllManaged() {
+        return inManagedTransaction(session ->
+                session.createQuery("FROM User u ORDER BY u.id", User.class).list());
+    }
+
+    @Benchmark
+    public User findByIdReadOnly() {
+        return userDao.findById(randomId()).orElse(null);
+    }
+
+    @Benchmark
+    public User findByIdManaged() {
+        long id = randomId();
+        return inManagedTransaction(session -> session.find(User.class, id));
+    }
+
+    private long randomId() {
+        return ThreadLocalRandom.current().nextLong(1, rows + 1);
+    }
+
+    // Mirrors the former executeInTransaction used for reads: snapshots and dirty checking on commit
+    private <T> T inManagedTransaction(Function<Session, T> function) {
+        try (Session session = sessionFactory.openSession()) {
+            Transaction transaction = session.beginTransaction();
+            T result = function.apply(session);
+            transaction.commit();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.aston.learning.stage2.benchmark;
+
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.event.UserEventBus;
+import org.aston.learning.stage2.event.UserEventProcessor;
+import org.aston.learning.stage2.event.WaitStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Cost the write path pays for publishing a change, with no consumer, a consumer that keeps up
+// and one that parks on every event and falls behind. Publishing should cost the same in all
+// three, the slow consumer only shows up as lag and lost events, printed after each trial.
+// Run with -Djmh.threads=N for contended publishing.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserEventBusBenchmark {
+
+    @Param({"none", "fast", "slow"})
+    private String consumer;
+
+    @Param({"BLOCKING", "SLEEPING"})
+    private WaitStrategy waitStrategy;
+
+    private UserEventBus bus;
+    private UserEventProcessor processor;
+    private volatile long lastUserId;
+
+    @State(Scope.Thread)
+    public static class Publisher {
+        private final User user = new User();
+
+        @Setup
+        public void setUp() {
+            user.setId(42L);
+            user.setName("John Doe");
+            user.setEmail("john.doe@example.com");
+            user.setAge(35);
+            user.setVersion(0L);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bus = new UserEventBus(8192);
+        switch (consumer) {
+            case "fast":
+                processor = bus.subscribe("benchmark-fast", (event, sequence, endOfBatch) -> lastUserId = event.getUserId(),
+                        waitStrategy, 256);
+                break;
+            case "slow":
+                processor = bus.subscribe("benchmark-slow", (event, sequence, endOfBatch) -> LockSupport.parkNanos(10_000),
+                        waitStrategy, 256);
+                break;
+            default:
+                processor = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (processor != null) {
+            System.out.printf("%nPublished %d events, consumer %s%n", bus.getPublished(), processor);
+        }
+        bus.close();
+    }
+
+    @Benchmark
+    public void publishUpdated(Publisher publisher) {
+        bus.publishUpdated(publisher.user);
+    }
+}
@@ -0,0 +1,131 @@
+package org.aston.learning.stage2.benchmark;
+
+import org.aston.learning.stage2.dao.UserDao;
+import org.aston.learning.stage2.dao.UserDaoImpl;
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.service.UserService;
+import org.aston.learning.stage2.service.UserServiceImpl;
+import org.hibernate.SessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Service hot paths against H2, thread count comes from -t (jmh.threads in the benchmark profile)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserServiceBenchmark {
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"1000", "100000"})
+    private int tableSize;
+
+    private SessionFactory sessionFactory;
+    private UserDao userDao;
+    private UserService userService;
+    private final AtomicLong emailSequence = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sessionFactory = BenchmarkDatabase.createSessionFactory("service_" + tableSize);
+        userDao = new UserDaoImpl(sessionFactory);
+        userService = new UserServiceImpl(userDao);
+        BenchmarkDatabase.populate(userDao, tableSize);
+    }
+
+    // Rows created before each iteration so deleteUser measures only the delete. Only deleteUser
+    // takes this state, and each iteration only replaces the rows the last one deleted, so the other
+    // benchmarks run on tableSize rows and deleteUser on one iteration's worth of deletes more
+    @State(Scope.Benchmark)
+    public static class DeletePool {
+        private static final int MIN_SIZE = 10_000;
+
+        private long[] ids = new long[0];
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        @Setup(Level.Iteration)
+        public void topUp(UserServiceBenchmark benchmark) {
+            int used = Math.min(cursor.get(), ids.length);
+            int remaining = ids.length - used;
+            int wanted = Math.max(MIN_SIZE, cursor.get());
+            List<User> victims = new ArrayList<>(Math.max(0, wanted - remaining));
+            for (int i = remaining; i < wanted; i++) {
+                victims.add(benchmark.newUser());
+            }
+            List<User> saved = victims.isEmpty() ? List.of() : benchmark.userDao.saveAll(victims).getSaved();
+            long[] pool = new long[remaining + saved.size()];
+            System.arraycopy(ids, used, pool, 0, remaining);
+            for (int i = 0; i < saved.size(); i++) {
+                pool[remaining + i] = saved.get(i).getId();
+            }
+            ids = pool;
+            cursor.set(0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sessionFactory.close();
+    }
+
+    @Benchmark
+    public User createUser() {
+        long n = emailSequence.incrementAndGet();
+        return userService.createUser("Bench " + n, "bench" + n + "@example.com", (int) (n % 100));
+    }
+
+    @Benchmark
+    public Optional<User> getUserById() {
+        return userService.getUserById(randomId());
+    }
+
+    @Benchmark
+    public User updateUser() {
+        return userService.updateUser(randomId(), null, null, ThreadLocalRandom.current().nextInt(0, 150));
+    }
+
+    @Benchmark
+    public long deleteUser(DeletePool pool) {
+        int index = pool.cursor.getAndIncrement();
+        // The pool only runs dry on very fast machines, then a row is created inline
+        long id = index < pool.ids.length ? pool.ids[index] : userDao.save(newUser()).getId();
+        userService.deleteUser(id);
+        return id;
+    }
+
+    @Benchmark
+    public List<User> findAllPage() {
+        int pages = Math.max(1, tableSize / PAGE_SIZE);
+        return userDao.findAll(ThreadLocalRandom.current().nextInt(pages), PAGE_SIZE);
+    }
+
+    private long randomId() {
+        return ThreadLocalRandom.current().nextLong(1, tableSize + 1);
+    }
+
+    private User newUser() {
+        long n = emailSequence.incrementAndGet();
+        return new User("Bench " + n, "bench" + n + "@example.com", (int) (n % 100));
+    }
+}
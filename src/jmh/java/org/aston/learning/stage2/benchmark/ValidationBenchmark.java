@@ -0,0 +1,55 @@
+package org.aston.learning.stage2.benchmark;
+
+import org.aston.learning.stage2.service.UserService;
+import org.aston.learning.stage2.service.UserServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Validators don't touch the DAO, so no database is needed
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+    // A range check costs the same for any value, so it is not a parameter. Read from a field so it
+    // is not constant-folded
+    private Integer age = 35;
+
+    private UserService userService;
+
+    // Only isValidEmail takes this state, so only it runs once per email
+    @State(Scope.Thread)
+    public static class EmailInput {
+        // Regex cost depends on the input: a match, an early mismatch and a long match
+        @Param({"john.doe@example.com", "not-an-email", "a.very.long.local.part.with.many.dots@sub.domain.example.org"})
+        private String email;
+    }
+
+    @Setup
+    public void setUp() {
+        userService = new UserServiceImpl(null);
+    }
+
+    @Benchmark
+    public boolean isValidEmail(EmailInput input) {
+        return userService.isValidEmail(input.email);
+    }
+
+    @Benchmark
+    public boolean isValidAge() {
+        return userService.isValidAge(age);
+    }
+}
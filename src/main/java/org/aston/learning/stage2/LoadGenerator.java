@@ -0,0 +1,578 @@
+package org.aston.learning.stage2;
+
+import org.aston.learning.stage2.dao.BatchSaveResult;
+import org.aston.learning.stage2.dao.BloomFilterUserDao;
+import org.aston.learning.stage2.dao.UserDao;
+import org.aston.learning.stage2.dao.UserSummary;
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.event.UserEventBus;
+import org.aston.learning.stage2.exception.ErrorCode;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.metrics.LatencyHistogram;
+import org.aston.learning.stage2.metrics.MetricsRegistry;
+import org.aston.learning.stage2.service.UserService;
+import org.aston.learning.stage2.util.DatabaseInitializer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Drives a mix of create/get/update/delete/list requests through the same service stack as Main
+// at a fixed rate and reports throughput and latency percentiles per operation. The schedule is
+// open-loop: requests are started at their planned times whether or not earlier ones finished,
+// and latency is taken from the planned start. A stall therefore shows up in the percentiles of
+// every request it delayed, instead of hiding as fewer requests sent (coordinated omission).
+//
+// java -Dlog4j2.configurationFile=log4j2-load.xml -cp ... org.aston.learning.stage2.LoadGenerator
+//   -Duser.dao=hibernate                 storage as in Main: hibernate, sharded, file or memory
+//   -Dload.rate=500                      requests per second over all operations
+//   -Dload.durationSeconds=60 -Dload.warmupSeconds=10 -Dload.reportSeconds=5
+//   -Dload.mix=get:60,list:10,update:15,create:10,delete:5
+//   -Dload.threads=virtual|platform      one virtual thread per request or a pool of
+//   -Dload.platformThreads=64            platform threads the requests queue for
+//   -Dload.maxInFlight=10000             scheduled requests not finished yet, see schedule()
+//   -Dload.keys=uniform|zipfian -Dload.zipfExponent=0.99
+//   -Dload.users=10000                   users the requests pick from, created up front if missing
+//   -Dload.pageSize=20
+public class LoadGenerator {
+    private static final Logger logger = LogManager.getLogger(LoadGenerator.class);
+    private static final int PRELOAD_BATCH = 1000;
+    // Keeps the preloaded users and the created ones of different runs from sharing emails
+    private static final String RUN_TAG = Long.toString(System.currentTimeMillis(), 36);
+
+    private final UserService userService;
+    private final Settings settings;
+    private final AtomicLongArray keys;
+    private final KeyChooser keyChooser;
+    private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+    private final Map<ErrorCode, LongAdder> errorsByCode = new EnumMap<>(ErrorCode.class);
+    private final AtomicBoolean unexpectedLogged = new AtomicBoolean();
+    private final AtomicLong emails = new AtomicLong();
+    private final Semaphore inFlight;
+    private volatile long maxScheduleLagNanos;
+
+    LoadGenerator(UserService userService, Settings settings) {
+        this.userService = userService;
+        this.settings = settings;
+        this.keys = new AtomicLongArray(settings.users);
+        this.keyChooser = settings.zipfian
+                ? new ZipfianKeys(settings.users, settings.zipfExponent)
+                : (random -> random.nextInt(settings.users));
+        this.inFlight = new Semaphore(settings.maxInFlight);
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new OperationStats());
+        }
+        for (ErrorCode code : ErrorCode.values()) {
+            errorsByCode.put(code, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) {
+        Settings settings = Settings.fromSystemProperties();
+        // Every statement echoed to stdout would cost more than some of the requests measured
+        if (System.getProperty("hibernate.show_sql") == null) {
+            System.setProperty("hibernate.show_sql", "false");
+        }
+        logger.info("Load generator starting: {}", settings);
+
+        if (settings.storage.equals("hibernate")) {
+            DatabaseInitializer.initialize();
+        }
+        // The same stack as Main, including its opt-in cache, membership filters and admission control
+        UserDao storage = UserServiceFactory.createStorage(settings.storage);
+        UserDao dao = UserServiceFactory.decorate(storage);
+        UserEventBus events = UserEventBus.fromSystemProperties();
+        UserService service = UserServiceFactory.createService(dao, events);
+
+        try {
+            new LoadGenerator(service, settings).run();
+            // Service-side latencies for comparison, they leave out the time requests waited to start
+            MetricsRegistry.dump();
+            if (dao instanceof BloomFilterUserDao) {
+                logger.info("Membership filter statistics: {}", dao);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Load generator interrupted");
+        } catch (Exception e) {
+            logger.error("Load generator failed", e);
+        } finally {
+            events.close();
+            UserServiceFactory.close(dao, storage);
+        }
+    }
+
+    void run() throws InterruptedException {
+        preload();
+
+        ExecutorService executor = settings.virtualThreads
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(settings.platformThreads, daemonThreads("load-worker"));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(daemonThreads("load-reporter"));
+        long start = System.nanoTime();
+        long measureStart = start + settings.warmup.toNanos();
+        long end = measureStart + settings.duration.toNanos();
+        IntervalReport intervals = new IntervalReport(measureStart);
+        long reportMillis = settings.reportInterval.toMillis();
+        reporter.scheduleAtFixedRate(intervals, reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+        if (!settings.warmup.isZero()) {
+            logger.info("Warming up for {}s, requests before then are not measured", settings.warmup.toSeconds());
+        }
+
+        try {
+            schedule(executor, start, measureStart, end);
+        } finally {
+            executor.shutdown();
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warn("Requests still running 30s after the schedule ended, reporting without them");
+            }
+            reporter.shutdownNow();
+        }
+        report(System.nanoTime() - measureStart);
+    }
+
+    // The i-th request is due at start + i/rate. The scheduler sleeps until then and hands the
+    // request over, already late ones go immediately. When maxInFlight requests are outstanding it
+    // waits for one to finish, so a stalled service does not queue up requests without bound; the
+    // requests it holds back keep their planned start and are charged for the wait.
+    private void schedule(ExecutorService executor, long start, long measureStart, long end)
+            throws InterruptedException {
+        SplittableRandom random = new SplittableRandom();
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / settings.rate;
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * intervalNanos);
+            if (due >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            inFlight.acquireUninterruptibly();
+            long lag = System.nanoTime() - due;
+            if (lag > maxScheduleLagNanos) {
+                maxScheduleLagNanos = lag;
+            }
+
+            Operation operation = settings.mix.choose(random);
+            int slot = keyChooser.next(random);
+            boolean measured = due >= measureStart;
+            executor.execute(() -> {
+                try {
+                    execute(operation, slot, due, measured);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    private void execute(Operation operation, int slot, long due, boolean measured) {
+        OperationStats operationStats = stats.get(operation);
+        boolean found = true;
+        boolean failed = false;
+        try {
+            found = perform(operation, slot);
+        } catch (UserServiceException e) {
+            if (e.getCode() == ErrorCode.NOT_FOUND) {
+                found = false;
+            } else {
+                failed = true;
+                if (measured) {
+                    errorsByCode.get(e.getCode()).increment();
+                }
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            if (unexpectedLogged.compareAndSet(false, true)) {
+                logger.error("{} failed unexpectedly, later failures are only counted", operation, e);
+            }
+            if (measured) {
+                errorsByCode.get(ErrorCode.STORAGE_FAILURE).increment();
+            }
+        }
+        if (measured) {
+            operationStats.latency.record(System.nanoTime() - due);
+            if (failed) {
+                operationStats.errors.increment();
+            } else if (!found) {
+                operationStats.misses.increment();
+            }
+        }
+    }
+
+    // False when the user picked was not there. A deleted user's id stays in its slot until a
+    // create takes the slot over, so requests keep hitting it the way clients retry stale ids
+    private boolean perform(Operation operation, int slot) {
+        long id = keys.get(slot);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (operation) {
+            case CREATE:
+                User created = userService.createUser(newName(), newEmail(), random.nextInt(18, 90));
+                keys.set(slot, created.getId());
+                return true;
+            case GET:
+                return userService.getUserById(id).isPresent();
+            case UPDATE:
+                userService.updateUser(id, newName(), null, random.nextInt(18, 90));
+                return true;
+            case DELETE:
+                userService.deleteUser(id);
+                return true;
+            case LIST:
+                return !userService.getUserSummariesAfter(id - 1, settings.pageSize).isEmpty();
+            default:
+                throw new IllegalStateException("Unknown operation " + operation);
+        }
+    }
+
+    // Fills the key slots with existing users first and creates the rest
+    private void preload() {
+        int filled = 0;
+        try (Stream<UserSummary> existing = userService.streamUserSummaries()) {
+            Iterator<UserSummary> iterator = existing.iterator();
+            while (filled < settings.users && iterator.hasNext()) {
+                keys.set(filled++, iterator.next().id());
+            }
+        }
+        int reused = filled;
+        while (filled < settings.users) {
+            int batch = Math.min(PRELOAD_BATCH, settings.users - filled);
+            List<User> users = new ArrayList<>(batch);
+            for (int i = 0; i < batch; i++) {
+                users.add(new User(newName(), newEmail(), ThreadLocalRandom.current().nextInt(18, 90)));
+            }
+            BatchSaveResult result = userService.createUsers(users);
+            if (result.getSaved().isEmpty()) {
+                throw new IllegalStateException("Preloading users failed: " + result.getFailures());
+            }
+            for (User user : result.getSaved()) {
+                if (filled < settings.users) {
+                    keys.set(filled++, user.getId());
+                }
+            }
+        }
+        logger.info("Key space ready: {} users, {} existing and {} created", filled, reused, filled - reused);
+    }
+
+    private String newName() {
+        return "Load User " + ThreadLocalRandom.current().nextInt(1_000_000);
+    }
+
+    private String newEmail() {
+        return "load-" + RUN_TAG + "-" + emails.incrementAndGet() + "@example.com";
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = Math.max(1, elapsedNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        long total = 0;
+        logger.info("=== Load test results: {}s at {}/s target, {} threads, {} keys ===",
+                Math.round(seconds), format(settings.rate), settings.virtualThreads ? "virtual" : "platform",
+                settings.zipfian ? "zipfian" : "uniform");
+        for (Operation operation : Operation.values()) {
+            OperationStats operationStats = stats.get(operation);
+            LatencyHistogram.Snapshot snapshot = operationStats.latency.snapshot();
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            total += snapshot.getCount();
+            logger.info("{}: {} requests ({}/s), {} misses, {} errors, mean={}us, p50={}us, p90={}us, p99={}us, "
+                            + "p99.9={}us, max={}us",
+                    operation, snapshot.getCount(), format(snapshot.getCount() / seconds),
+                    operationStats.misses.sum(), operationStats.errors.sum(), micros(snapshot.getMean()),
+                    micros(snapshot.getValueAtPercentile(50.0)), micros(snapshot.getValueAtPercentile(90.0)),
+                    micros(snapshot.getValueAtPercentile(99.0)), micros(snapshot.getValueAtPercentile(99.9)),
+                    micros(snapshot.getMax()));
+        }
+        logger.info("Total: {} requests, {}/s achieved, scheduler lag max={}us", total, format(total / seconds),
+                micros(maxScheduleLagNanos));
+        for (Map.Entry<ErrorCode, LongAdder> errors : errorsByCode.entrySet()) {
+            if (errors.getValue().sum() > 0) {
+                logger.info("Errors {}: {}", errors.getKey(), errors.getValue().sum());
+            }
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static long micros(double nanos) {
+        return Math.round(nanos / 1_000.0);
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicLong counter = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Logs what finished since the previous interval, measured requests only
+    private class IntervalReport implements Runnable {
+        private final Map<Operation, LatencyHistogram.Snapshot> previous = new EnumMap<>(Operation.class);
+        private long lastReport;
+
+        IntervalReport(long measureStart) {
+            this.lastReport = measureStart;
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            if (now <= lastReport) {
+                return;
+            }
+            double seconds = (now - lastReport) / (double) TimeUnit.SECONDS.toNanos(1);
+            lastReport = now;
+            long total = 0;
+            for (Operation operation : Operation.values()) {
+                LatencyHistogram.Snapshot current = stats.get(operation).latency.snapshot();
+                LatencyHistogram.Snapshot last = previous.put(operation, current);
+                LatencyHistogram.Snapshot interval = last == null ? current : current.minus(last);
+                if (interval.getCount() == 0) {
+                    continue;
+                }
+                total += interval.getCount();
+                logger.info("{}: {}/s, p50={}us, p99={}us, p99.9={}us", operation,
+                        format(interval.getCount() / seconds), micros(interval.getValueAtPercentile(50.0)),
+                        micros(interval.getValueAtPercentile(99.0)), micros(interval.getValueAtPercentile(99.9)));
+            }
+            logger.info("Interval: {}/s of {}/s target, {} in flight, scheduler lag max={}us", format(total / seconds),
+                    format(settings.rate), settings.maxInFlight - inFlight.availablePermits(),
+                    micros(maxScheduleLagNanos));
+        }
+    }
+
+    enum Operation {
+        CREATE, GET, UPDATE, DELETE, LIST;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static class OperationStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    // Weighted choice of the next operation, "get:60,list:10" sends six gets for every list
+    static class OperationMix {
+        private final Operation[] operations;
+        private final int[] cumulativeWeights;
+
+        OperationMix(Map<Operation, Integer> weights) {
+            List<Operation> chosen = new ArrayList<>();
+            List<Integer> cumulative = new ArrayList<>();
+            int total = 0;
+            for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+                if (weight.getValue() < 0) {
+                    throw new IllegalArgumentException("Negative weight for " + weight.getKey());
+                }
+                if (weight.getValue() > 0) {
+                    total += weight.getValue();
+                    chosen.add(weight.getKey());
+                    cumulative.add(total);
+                }
+            }
+            if (total == 0) {
+                throw new IllegalArgumentException("Operation mix has no weights: " + weights);
+            }
+            this.operations = chosen.toArray(new Operation[0]);
+            this.cumulativeWeights = cumulative.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        static OperationMix parse(String mix) {
+            Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+            for (String part : mix.split(",")) {
+                String[] entry = part.trim().split(":");
+                if (entry.length != 2) {
+                    throw new IllegalArgumentException("Expected operation:weight in load.mix, got " + part);
+                }
+                weights.put(Operation.valueOf(entry[0].trim().toUpperCase(Locale.ROOT)),
+                        Integer.parseInt(entry[1].trim()));
+            }
+            return new OperationMix(weights);
+        }
+
+        Operation choose(SplittableRandom random) {
+            int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (pick < cumulativeWeights[i]) {
+                    return operations[i];
+                }
+            }
+            return operations[operations.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < operations.length; i++) {
+                int weight = cumulativeWeights[i] - (i == 0 ? 0 : cumulativeWeights[i - 1]);
+                text.append(i == 0 ? "" : ",").append(operations[i]).append(':').append(weight);
+            }
+            return text.toString();
+        }
+    }
+
+    interface KeyChooser {
+        int next(SplittableRandom random);
+    }
+
+    // Zipfian ranks as in Gray et al., "Quickly generating billion-record synthetic databases",
+    // the method YCSB uses: rank r comes up in proportion to 1/(r+1)^exponent. The ranks are spread
+    // over the slots by a multiplicative permutation, so the hot users are not all neighbouring ids
+    // that would land in the same list page or cache segment. The exponent must be below 1.
+    static class ZipfianKeys implements KeyChooser {
+        private static final long SPREAD = 2_654_435_761L;
+
+        private final int count;
+        private final double exponent;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+        private final long spread;
+
+        ZipfianKeys(int count, double exponent) {
+            if (exponent <= 0 || exponent >= 1) {
+                throw new IllegalArgumentException("Zipfian exponent must be between 0 and 1: " + exponent);
+            }
+            this.count = count;
+            this.exponent = exponent;
+            this.zetaN = zeta(count, exponent);
+            this.alpha = 1.0 / (1.0 - exponent);
+            this.eta = (1 - Math.pow(2.0 / count, 1 - exponent)) / (1 - zeta(2, exponent) / zetaN);
+            long multiplier = SPREAD % count;
+            while (gcd(multiplier, count) != 1) {
+                multiplier++;
+            }
+            this.spread = multiplier;
+        }
+
+        @Override
+        public int next(SplittableRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, exponent)) {
+                rank = 1;
+            } else {
+                rank = Math.min(count - 1, (long) (count * Math.pow(eta * u - eta + 1, alpha)));
+            }
+            return (int) (rank * spread % count);
+        }
+
+        private static double zeta(long n, double exponent) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, exponent);
+            }
+            return sum;
+        }
+
+        private static long gcd(long a, long b) {
+            return b == 0 ? a : gcd(b, a % b);
+        }
+    }
+
+    static class Settings {
+        private final String storage;
+        private final double rate;
+        private final Duration duration;
+        private final Duration warmup;
+        private final Duration reportInterval;
+        private final OperationMix mix;
+        private final boolean virtualThreads;
+        private final int platformThreads;
+        private final int maxInFlight;
+        private final boolean zipfian;
+        private final double zipfExponent;
+        private final int users;
+        private final int pageSize;
+
+        Settings(String storage, double rate, Duration duration, Duration warmup, Duration reportInterval,
+                 OperationMix mix, boolean virtualThreads, int platformThreads, int maxInFlight, boolean zipfian,
+                 double zipfExponent, int users, int pageSize) {
+            if (rate <= 0 || duration.isNegative() || duration.isZero() || warmup.isNegative()
+                    || reportInterval.isNegative() || reportInterval.isZero()) {
+                throw new IllegalArgumentException("Rate, duration and report interval must be positive");
+            }
+            if (platformThreads <= 0 || maxInFlight <= 0 || users <= 0 || pageSize <= 0) {
+                throw new IllegalArgumentException("Threads, in-flight limit, users and page size must be positive");
+            }
+            this.storage = storage;
+            this.rate = rate;
+            this.duration = duration;
+            this.warmup = warmup;
+            this.reportInterval = reportInterval;
+            this.mix = mix;
+            this.virtualThreads = virtualThreads;
+            this.platformThreads = platformThreads;
+            this.maxInFlight = maxInFlight;
+            this.zipfian = zipfian;
+            this.zipfExponent = zipfExponent;
+            this.users = users;
+            this.pageSize = pageSize;
+        }
+
+        static Settings fromSystemProperties() {
+            String threads = System.getProperty("load.threads", "virtual");
+            String keys = System.getProperty("load.keys", "uniform");
+            if (!threads.equals("virtual") && !threads.equals("platform")) {
+                throw new IllegalArgumentException("load.threads must be virtual or platform: " + threads);
+            }
+            if (!keys.equals("uniform") && !keys.equals("zipfian")) {
+                throw new IllegalArgumentException("load.keys must be uniform or zipfian: " + keys);
+            }
+            return new Settings(System.getProperty("user.dao", "hibernate"),
+                    Double.parseDouble(System.getProperty("load.rate", "500")),
+                    Duration.ofSeconds(Long.getLong("load.durationSeconds", 60L)),
+                    Duration.ofSeconds(Long.getLong("load.warmupSeconds", 10L)),
+                    Duration.ofSeconds(Long.getLong("load.reportSeconds", 5L)),
+                    OperationMix.parse(System.getProperty("load.mix", "get:60,list:10,update:15,create:10,delete:5")),
+                    threads.equals("virtual"),
+                    Integer.getInteger("load.platformThreads", 64),
+                    Integer.getInteger("load.maxInFlight", 10_000),
+                    keys.equals("zipfian"),
+                    Double.parseDouble(System.getProperty("load.zipfExponent", "0.99")),
+                    Integer.getInteger("load.users", 10_000),
+                    Integer.getInteger("load.pageSize", 20));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "storage=%s, rate=%.1f/s, duration=%ds, warmup=%ds, mix=%s, "
+                            + "threads=%s, maxInFlight=%d, keys=%s, users=%d, pageSize=%d",
+                    storage, rate, duration.toSeconds(), warmup.toSeconds(), mix,
+                    virtualThreads ? "virtual" : "platform(" + platformThreads + ")", maxInFlight,
+                    zipfian ? "zipfian(" + zipfExponent + ")" : "uniform", users, pageSize);
+        }
+    }
+}
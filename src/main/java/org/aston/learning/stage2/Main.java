@@ -1,31 +1,62 @@
 package org.aston.learning.stage2;
 
+import org.aston.learning.stage2.bulk.ExportReport;
+import org.aston.learning.stage2.bulk.FileFormat;
+import org.aston.learning.stage2.bulk.ImportReport;
+import org.aston.learning.stage2.bulk.UserBulkImporter;
+import org.aston.learning.stage2.dao.BloomFilterUserDao;
+import org.aston.learning.stage2.dao.CachingUserDao;
+import org.aston.learning.stage2.dao.UserDao;
 import org.aston.learning.stage2.dao.UserDaoImpl;
+import org.aston.learning.stage2.dao.UserSummary;
 import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.event.UserEventBus;
+import org.aston.learning.stage2.event.UserEventProcessor;
+import org.aston.learning.stage2.event.WaitStrategy;
 import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.metrics.MetricsRegistry;
+import org.aston.learning.stage2.service.AdmissionControlledUserService;
+import org.aston.learning.stage2.service.MeteredUserService;
 import org.aston.learning.stage2.service.UserService;
-import org.aston.learning.stage2.service.UserServiceImpl;
 import org.aston.learning.stage2.util.DatabaseInitializer;
 import org.aston.learning.stage2.util.HibernateUtil;
+import org.aston.learning.stage2.util.StartupTimer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
 import java.util.Scanner;
 
 public class Main {
     private static final Logger logger = LogManager.getLogger(Main.class);
-    private static final UserService userService = new UserServiceImpl(new UserDaoImpl());
+    // -Duser.dao=hibernate (default), sharded, file or memory, see UserServiceFactory
+    private static final String STORAGE = System.getProperty("user.dao", "hibernate");
+    private static final UserDao userStorage = UserServiceFactory.createStorage(STORAGE);
+    private static final UserDao userDao = UserServiceFactory.decorate(userStorage);
+    private static final UserEventBus userEvents = createUserEvents();
+    private static final UserService userService = UserServiceFactory.createService(userDao, userEvents);
     private static final Scanner scanner = new Scanner(System.in);
+    private static final int PAGE_SIZE = 20;
 
     public static void main(String[] args) {
         logger.info("User Service application starting...");
 
         try {
             // Initialize database and create tables
-            DatabaseInitializer.initialize();
-            logger.info("Database initialization completed");
+            if (STORAGE.equals("hibernate")) {
+                DatabaseInitializer.initialize();
+                logger.info("Database initialization completed");
+            }
+            StartupTimer.logSummary();
+
+            // Metrics are always available over JMX, -Dmetrics.dump.seconds=N also logs them periodically
+            long dumpSeconds = Long.getLong("metrics.dump.seconds", 0L);
+            if (dumpSeconds > 0) {
+                MetricsRegistry.startReporter(Duration.ofSeconds(dumpSeconds));
+            }
 
             boolean running = true;
 
@@ -51,6 +82,12 @@ public class Main {
                         deleteUser();
                         break;
                     case "6":
+                        importUsers();
+                        break;
+                    case "7":
+                        exportUsers();
+                        break;
+                    case "8":
                         running = false;
                         break;
                     default:
@@ -69,12 +106,56 @@ public class Main {
         } catch (Exception e) {
             logger.error("Application error", e);
         } finally {
-            HibernateUtil.shutdown();
+            MetricsRegistry.stopReporter();
+            MetricsRegistry.dump();
+            if (userDao instanceof BloomFilterUserDao) {
+                logger.info("Membership filter statistics: {}", userDao);
+            }
+            UserDao cached = userDao instanceof BloomFilterUserDao
+                    ? ((BloomFilterUserDao) userDao).getDelegate()
+                    : userDao;
+            if (cached instanceof CachingUserDao) {
+                logger.info("User cache statistics: {}", ((CachingUserDao) cached).getCache());
+            }
+            if (userService instanceof MeteredUserService
+                    && ((MeteredUserService) userService).getDelegate() instanceof AdmissionControlledUserService) {
+                AdmissionControlledUserService admission =
+                        (AdmissionControlledUserService) ((MeteredUserService) userService).getDelegate();
+                logger.info("Admission statistics: {}, {}", admission.getReadLimiter(), admission.getWriteLimiter());
+            }
+            for (UserEventProcessor processor : userEvents.getProcessors()) {
+                logger.info("User event consumer statistics: {}", processor);
+            }
+            userEvents.close();
+            if (userStorage instanceof UserDaoImpl && ((UserDaoImpl) userStorage).getRouter().getReplicaCount() > 0) {
+                logger.info("Read routing statistics: {}", ((UserDaoImpl) userStorage).getRouter());
+            }
+            UserServiceFactory.close(userDao, userStorage);
             scanner.close();
             logger.info("User Service application stopped");
         }
     }
 
+    // -Duser.events.log=true logs every change from the event stream, mostly useful to watch it work
+    private static UserEventBus createUserEvents() {
+        UserEventBus events = UserEventBus.fromSystemProperties();
+        if (Boolean.getBoolean("user.events.log")) {
+            events.subscribe("log", (event, sequence, endOfBatch) -> logger.info("User change #{}: {}", sequence, event),
+                    WaitStrategy.fromSystemProperties(), 256);
+        }
+        return events;
+    }
+
+    // Service failures are logged here and nowhere below: expected ones as a single line with
+    // their code, storage failures with the stack trace of the underlying cause
+    private static void logFailure(String action, UserServiceException e) {
+        if (e.getCode().isExpected()) {
+            logger.warn("{} failed [{}]: {}", action, e.getCode(), e.getMessage());
+        } else {
+            logger.error("{} failed [{}]: {}", action, e.getCode(), e.getMessage(), e);
+        }
+    }
+
     private static void displayMenu() {
         System.out.println("\n=== User Service ===");
         System.out.println("1. Create User");
@@ -82,7 +163,9 @@ public class Main {
         System.out.println("3. Get All Users");
         System.out.println("4. Update User");
         System.out.println("5. Delete User");
-        System.out.println("6. Exit");
+        System.out.println("6. Import Users from File");
+        System.out.println("7. Export Users to File");
+        System.out.println("8. Exit");
     }
 
     private static void createUser() {
@@ -126,7 +209,7 @@ public class Main {
 
             logger.info("User created successfully with ID: {}", savedUser.getId());
         } catch (UserServiceException e) {
-            logger.error("Error creating user", e);
+            logFailure("Creating user", e);
         }
     }
 
@@ -158,7 +241,7 @@ public class Main {
             }
 
         } catch (UserServiceException e) {
-            logger.error("Error retrieving user by ID", e);
+            logFailure("Retrieving user by ID", e);
         }
     }
 
@@ -166,21 +249,41 @@ public class Main {
         logger.debug("Starting get all users operation");
 
         try {
-            List<User> users = userService.getAllUsers();
-
-            if (users.isEmpty()) {
-                logger.info("No users found in database");
-            } else {
-                logger.debug("Found {} users in database", users.size());
+            Long cursor = null;
+            int shown = 0;
+
+            while (true) {
+                // One row past the page tells whether there is a next one
+                List<UserSummary> summaries = userService.getUserSummariesAfter(cursor, PAGE_SIZE + 1);
+                if (summaries.isEmpty()) {
+                    break;
+                }
 
                 System.out.println("----------------------------------------");
-                for (int i = 0; i < users.size(); i++) {
-                    System.out.println((i + 1) + ". " + users.get(i));
+                List<UserSummary> page = summaries.subList(0, Math.min(PAGE_SIZE, summaries.size()));
+                for (UserSummary summary : page) {
+                    shown++;
+                    System.out.println(shown + ". " + summary);
+                }
+
+                if (summaries.size() <= PAGE_SIZE) {
+                    break;
                 }
+                System.out.print("\nPress enter for the next page or 'q' to stop: ");
+                if ("q".equalsIgnoreCase(scanner.nextLine().trim())) {
+                    break;
+                }
+                cursor = page.get(page.size() - 1).id();
+            }
+
+            if (shown == 0) {
+                logger.info("No users found in database");
+            } else {
+                logger.debug("Displayed {} users", shown);
             }
 
         } catch (UserServiceException e) {
-            logger.error("Error retrieving all users", e);
+            logFailure("Retrieving all users", e);
         }
     }
 
@@ -251,7 +354,7 @@ public class Main {
             logger.info("User updated successfully with ID: {}", updatedUser.getId());
 
         } catch (UserServiceException e) {
-            logger.error("Error updating user", e);
+            logFailure("Updating user", e);
         }
     }
 
@@ -292,7 +395,85 @@ public class Main {
             }
 
         } catch (UserServiceException e) {
-            logger.error("Error deleting user", e);
+            logFailure("Deleting user", e);
+        }
+    }
+
+    // Loads a CSV or NDJSON file through COPY, invalid lines and taken emails are reported, not fatal
+    private static void importUsers() {
+        logger.debug("Starting bulk import operation");
+
+        if (!STORAGE.equals("hibernate")) {
+            logger.warn("Bulk import needs the PostgreSQL storage, current storage is {}", STORAGE);
+            return;
+        }
+
+        try {
+            System.out.print("Enter path of the CSV or NDJSON file: ");
+            String input = scanner.nextLine().trim();
+            if (input.isEmpty()) {
+                logger.warn("Empty path provided during bulk import");
+                return;
+            }
+
+            Path file = Path.of(input);
+            FileFormat format;
+            try {
+                format = FileFormat.of(file);
+            } catch (IllegalArgumentException e) {
+                logger.warn(e.getMessage());
+                return;
+            }
+
+            UserBulkImporter importer =
+                    UserBulkImporter.fromSystemProperties(HibernateUtil::getSessionFactory, userService);
+            // The importer writes around the DAOs, the membership filters are rebuilt after it
+            ImportReport report = userDao instanceof BloomFilterUserDao
+                    ? ((BloomFilterUserDao) userDao).externalWrite(() -> importer.importFile(file, format))
+                    : importer.importFile(file, format);
+            for (ImportReport.Rejection rejection : report.getRejections()) {
+                logger.warn("Rejected line {}: {}", rejection.line(), rejection.reason());
+            }
+            for (ImportReport.Conflict conflict : report.getConflicts()) {
+                if (conflict.existingUserId() != null) {
+                    logger.warn("Skipped line {}: email {} belongs to user {}",
+                            conflict.line(), conflict.email(), conflict.existingUserId());
+                } else {
+                    logger.warn("Skipped line {}: email {} repeats line {}",
+                            conflict.line(), conflict.email(), conflict.duplicateOfLine());
+                }
+            }
+            logger.info("Users imported: {}", report);
+        } catch (UserServiceException e) {
+            logFailure("Importing users", e);
+        }
+    }
+
+    // Works with every storage, a file name ending in .gz makes it gzipped
+    private static void exportUsers() {
+        logger.debug("Starting export operation");
+
+        try {
+            System.out.print("Enter path of the CSV or NDJSON file to write: ");
+            String input = scanner.nextLine().trim();
+            if (input.isEmpty()) {
+                logger.warn("Empty path provided during export");
+                return;
+            }
+
+            Path file = Path.of(input);
+            FileFormat format;
+            try {
+                format = FileFormat.of(file);
+            } catch (IllegalArgumentException e) {
+                logger.warn(e.getMessage());
+                return;
+            }
+
+            ExportReport report = userService.exportUsers(file, format, FileFormat.isGzipped(file));
+            logger.info("Users exported: {}", report);
+        } catch (UserServiceException e) {
+            logFailure("Exporting users", e);
         }
     }
-}
\ No newline at end of file
+}
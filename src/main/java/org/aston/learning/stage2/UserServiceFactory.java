@@ -0,0 +1,107 @@
+package org.aston.learning.stage2;
+
+import org.aston.learning.stage2.dao.BloomFilterUserDao;
+import org.aston.learning.stage2.dao.CachingUserDao;
+import org.aston.learning.stage2.dao.FileUserDao;
+import org.aston.learning.stage2.dao.InMemoryUserDao;
+import org.aston.learning.stage2.dao.ShardedUserDao;
+import org.aston.learning.stage2.dao.UserCache;
+import org.aston.learning.stage2.dao.UserDao;
+import org.aston.learning.stage2.dao.UserDaoImpl;
+import org.aston.learning.stage2.event.UserEventBus;
+import org.aston.learning.stage2.service.AdmissionControlledUserService;
+import org.aston.learning.stage2.service.MeteredUserService;
+import org.aston.learning.stage2.service.RetryPolicy;
+import org.aston.learning.stage2.service.UpdateLocking;
+import org.aston.learning.stage2.service.UserService;
+import org.aston.learning.stage2.service.UserServiceImpl;
+import org.aston.learning.stage2.util.HibernateUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.SessionFactory;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+// Storage, DAO decorators and service layers as configured by system properties. Main and the load
+// generator both build their stack here, so a load run measures what the application runs.
+final class UserServiceFactory {
+    private static final Logger logger = LogManager.getLogger(UserServiceFactory.class);
+
+    private UserServiceFactory() {
+    }
+
+    // hibernate, sharded over the -Duser.dao.shards databases, file for the embedded storage without
+    // PostgreSQL or memory for the non-persistent one used in load tests
+    static UserDao createStorage(String storage) {
+        switch (storage) {
+            case "hibernate":
+                return new UserDaoImpl();
+            case "sharded":
+                // -Duser.dao.shards=jdbc:postgresql://host1:5432/userdb,jdbc:postgresql://host2:5432/userdb
+                List<UserDao> shards = new ArrayList<>();
+                for (SessionFactory shard : HibernateUtil.getShardSessionFactories()) {
+                    shards.add(new UserDaoImpl(shard));
+                }
+                if (shards.isEmpty()) {
+                    throw new IllegalArgumentException("user.dao=sharded needs -Duser.dao.shards");
+                }
+                return new ShardedUserDao(shards);
+            case "file":
+                // -Duser.dao.dir=data [-Duser.dao.compactMb=64]
+                Path directory = Path.of(System.getProperty("user.dao.dir", "data"));
+                long compactMb = Long.getLong("user.dao.compactMb", 64L);
+                return FileUserDao.open(directory, compactMb * 1024 * 1024, Duration.ofSeconds(30));
+            case "memory":
+                return new InMemoryUserDao();
+            default:
+                throw new IllegalArgumentException("Unknown user.dao storage: " + storage);
+        }
+    }
+
+    static UserDao decorate(UserDao storage) {
+        UserDao dao = storage;
+
+        // Cache is opt-in: -Duser.cache.enabled=true [-Duser.cache.maxSize=10000 -Duser.cache.ttlSeconds=300]
+        if (Boolean.getBoolean("user.cache.enabled")) {
+            int maxSize = Integer.getInteger("user.cache.maxSize", 10_000);
+            long ttlSeconds = Long.getLong("user.cache.ttlSeconds", 300L);
+            logger.info("User cache enabled: maxSize={}, ttl={}s", maxSize, ttlSeconds);
+            dao = new CachingUserDao(dao, new UserCache(maxSize, Duration.ofSeconds(ttlSeconds)));
+        }
+        // Membership filters are opt-in too: -Duser.membership.enabled=true, see BloomFilterUserDao for the
+        // settings. Outermost so a ruled out id skips the cache as well. Only for a single writing process
+        if (Boolean.getBoolean("user.membership.enabled")) {
+            dao = BloomFilterUserDao.fromSystemProperties(dao);
+        }
+        return dao;
+    }
+
+    static UserService createService(UserDao dao, UserEventBus events) {
+        UserService service = new UserServiceImpl(dao, UpdateLocking.fromSystemProperties(),
+                RetryPolicy.fromSystemProperties(), events);
+
+        // Admission control is on unless -Duser.admission.enabled=false, see AdmissionLimiter for the limits
+        if (Boolean.parseBoolean(System.getProperty("user.admission.enabled", "true"))) {
+            service = AdmissionControlledUserService.fromSystemProperties(service);
+        }
+        // Outermost so service.* latencies include the time spent waiting for admission
+        return new MeteredUserService(service);
+    }
+
+    // Stops the filters' rebuilds, then closes the storage and any database pools it opened
+    static void close(UserDao dao, UserDao storage) {
+        if (dao instanceof BloomFilterUserDao) {
+            ((BloomFilterUserDao) dao).close();
+        }
+        if (storage instanceof FileUserDao) {
+            ((FileUserDao) storage).close();
+        }
+        if (storage instanceof ShardedUserDao) {
+            ((ShardedUserDao) storage).close();
+        }
+        HibernateUtil.shutdown();
+    }
+}
@@ -0,0 +1,26 @@
+package org.aston.learning.stage2.bulk;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Outcome of one export. bytes is what ended up on disk, uncompressedBytes the size of the text
+// before gzip, the same as bytes for a plain file
+public record ExportReport(Path file, FileFormat format, boolean gzipped, long rows, long bytes,
+                           long uncompressedBytes, long elapsedNanos) {
+
+    public long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    public double rowsPerSecond() {
+        return elapsedNanos == 0 ? 0.0 : rows * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ExportReport{file=%s, format=%s%s, rows=%d, bytes=%d, uncompressed=%d, elapsed=%dms, "
+                        + "rowsPerSecond=%.0f}",
+                file.getFileName(), format, gzipped ? "+gzip" : "", rows, bytes, uncompressedBytes,
+                elapsedMillis(), rowsPerSecond());
+    }
+}
@@ -0,0 +1,32 @@
+package org.aston.learning.stage2.bulk;
+
+import java.nio.file.Path;
+import java.util.Locale;
+
+// Line-oriented user files. CSV starts with a header naming the name, email and age columns in
+// any order, NDJSON has one flat object with those keys per line. Either may be gzipped, which
+// the file name shows with a trailing .gz
+public enum FileFormat {
+    CSV,
+    NDJSON;
+
+    private static final String GZIP_SUFFIX = ".gz";
+
+    public static FileFormat of(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(GZIP_SUFFIX)) {
+            name = name.substring(0, name.length() - GZIP_SUFFIX.length());
+        }
+        if (name.endsWith(".csv")) {
+            return CSV;
+        }
+        if (name.endsWith(".ndjson") || name.endsWith(".jsonl")) {
+            return NDJSON;
+        }
+        throw new IllegalArgumentException("Unknown user file format, expected .csv, .ndjson or .jsonl: " + file);
+    }
+
+    public static boolean isGzipped(Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(GZIP_SUFFIX);
+    }
+}
@@ -0,0 +1,138 @@
+package org.aston.learning.stage2.bulk;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Outcome of one bulk import. Every line of the file ends up counted exactly once: rejected by
+// parsing or validation, skipped as an email conflict or inserted. Only the first rejections and
+// conflicts are kept with their line numbers, a bad file must not fill the heap with them.
+public class ImportReport {
+    private final Path file;
+    private final int maxSamples;
+    private final List<Rejection> rejections = new ArrayList<>();
+    private final List<Conflict> conflicts = new ArrayList<>();
+    private long rowsRead;
+    private long rejected;
+    private long copied;
+    private long existingConflicts;
+    private long duplicatesInFile;
+    private long inserted;
+    private long elapsedNanos;
+
+    ImportReport(Path file, int maxSamples) {
+        this.file = file;
+        this.maxSamples = maxSamples;
+    }
+
+    void addRejected(long rows, List<Rejection> samples) {
+        rejected += rows;
+        for (int i = 0; i < samples.size() && rejections.size() < maxSamples; i++) {
+            rejections.add(samples.get(i));
+        }
+    }
+
+    // Workers finish their chunks out of order, samples are listed by line once all are in
+    void sortRejections() {
+        rejections.sort(Comparator.comparingLong(Rejection::line));
+    }
+
+    void addConflict(Conflict conflict) {
+        if (conflicts.size() < maxSamples) {
+            conflicts.add(conflict);
+        }
+    }
+
+    int getMaxSamples() {
+        return maxSamples;
+    }
+
+    void setRowsRead(long rowsRead) {
+        this.rowsRead = rowsRead;
+    }
+
+    void setCopied(long copied) {
+        this.copied = copied;
+    }
+
+    void setExistingConflicts(long existingConflicts) {
+        this.existingConflicts = existingConflicts;
+    }
+
+    void setDuplicatesInFile(long duplicatesInFile) {
+        this.duplicatesInFile = duplicatesInFile;
+    }
+
+    void setInserted(long inserted) {
+        this.inserted = inserted;
+    }
+
+    void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getCopied() {
+        return copied;
+    }
+
+    // Rows whose email already belonged to a user, including users created while the merge ran
+    public long getExistingConflicts() {
+        return existingConflicts;
+    }
+
+    // Later rows repeating an email of an earlier row, the earliest one is the one imported
+    public long getDuplicatesInFile() {
+        return duplicatesInFile;
+    }
+
+    public long getInserted() {
+        return inserted;
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    public double getRowsPerSecond() {
+        return elapsedNanos == 0 ? 0.0 : rowsRead * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    public List<Rejection> getRejections() {
+        return Collections.unmodifiableList(rejections);
+    }
+
+    public List<Conflict> getConflicts() {
+        return Collections.unmodifiableList(conflicts);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ImportReport{file=%s, read=%d, rejected=%d, copied=%d, existingConflicts=%d, "
+                        + "duplicatesInFile=%d, inserted=%d, elapsed=%dms, rowsPerSecond=%.0f}",
+                file.getFileName(), rowsRead, rejected, copied, existingConflicts, duplicatesInFile, inserted,
+                getElapsedMillis(), getRowsPerSecond());
+    }
+
+    public record Rejection(long line, String reason) {
+    }
+
+    // existingUserId is set when the email belongs to a user already, duplicateOfLine when an
+    // earlier line of the same file has it
+    public record Conflict(long line, String email, Long existingUserId, Long duplicateOfLine) {
+    }
+}
@@ -0,0 +1,27 @@
+package org.aston.learning.stage2.bulk;
+
+// One parsed line of an import file. Rows are reused from chunk to chunk, a line that could not
+// be parsed keeps the reason in error and is rejected by validation
+final class ImportRow {
+    long line;
+    String name;
+    String email;
+    Integer age;
+    String error;
+
+    void set(long line, String name, String email, Integer age) {
+        this.line = line;
+        this.name = name;
+        this.email = email;
+        this.age = age;
+        this.error = null;
+    }
+
+    void fail(long line, String error) {
+        this.line = line;
+        this.name = null;
+        this.email = null;
+        this.age = null;
+        this.error = error;
+    }
+}
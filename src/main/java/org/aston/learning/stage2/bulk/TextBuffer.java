@@ -0,0 +1,188 @@
+package org.aston.learning.stage2.bulk;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+// Growable UTF-8 byte buffer that encodes numbers and strings without allocating, reused for
+// every row it carries. Unpaired surrogates are written as '?', like String.getBytes does.
+final class TextBuffer {
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] bytes;
+    private int length;
+
+    TextBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    byte[] array() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void clear() {
+        length = 0;
+    }
+
+    TextBuffer append(char ascii) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) ascii;
+        return this;
+    }
+
+    TextBuffer append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return appendAscii(Long.toString(value));
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    TextBuffer appendAscii(String value) {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            bytes[length++] = (byte) value.charAt(i);
+        }
+        return this;
+    }
+
+    // Quoted CSV field, quotes inside doubled. Always quoted, so an empty string stays distinct
+    // from an empty unquoted field, which COPY reads as null
+    TextBuffer appendCsv(String value) {
+        // Three bytes per char is the worst case, a doubled quote takes two
+        ensureCapacity(value.length() * 3 + 2);
+        bytes[length++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                bytes[length++] = '"';
+                bytes[length++] = '"';
+            } else if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else {
+                i = encode(value, i);
+            }
+        }
+        bytes[length++] = '"';
+        return this;
+    }
+
+    // JSON string literal with the quotes, control characters escaped
+    TextBuffer appendJson(String value) {
+        // Six bytes for an escaped control character is the worst case
+        ensureCapacity(value.length() * 6 + 2);
+        bytes[length++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                bytes[length++] = '\\';
+                bytes[length++] = (byte) c;
+            } else if (c >= 0x20 && c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else if (c >= 0x80) {
+                i = encode(value, i);
+            } else if (c == '\n') {
+                bytes[length++] = '\\';
+                bytes[length++] = 'n';
+            } else if (c == '\r') {
+                bytes[length++] = '\\';
+                bytes[length++] = 'r';
+            } else if (c == '\t') {
+                bytes[length++] = '\\';
+                bytes[length++] = 't';
+            } else {
+                bytes[length++] = '\\';
+                bytes[length++] = 'u';
+                bytes[length++] = '0';
+                bytes[length++] = '0';
+                bytes[length++] = HEX_DIGITS[c >> 4];
+                bytes[length++] = HEX_DIGITS[c & 0xF];
+            }
+        }
+        bytes[length++] = '"';
+        return this;
+    }
+
+    // ISO-8601 local date-time to the microsecond, the precision of the created_at column, with
+    // trailing zeros of the fraction dropped
+    TextBuffer appendTimestamp(LocalDateTime value) {
+        ensureCapacity(26);
+        appendDigits(value.getYear(), 4);
+        bytes[length++] = '-';
+        appendDigits(value.getMonthValue(), 2);
+        bytes[length++] = '-';
+        appendDigits(value.getDayOfMonth(), 2);
+        bytes[length++] = 'T';
+        appendDigits(value.getHour(), 2);
+        bytes[length++] = ':';
+        appendDigits(value.getMinute(), 2);
+        bytes[length++] = ':';
+        appendDigits(value.getSecond(), 2);
+        int micros = value.getNano() / 1_000;
+        if (micros > 0) {
+            int digits = 6;
+            while (micros % 10 == 0) {
+                micros /= 10;
+                digits--;
+            }
+            bytes[length++] = '.';
+            appendDigits(micros, digits);
+        }
+        return this;
+    }
+
+    // Caller ensured the capacity, value is not negative
+    private void appendDigits(int value, int digits) {
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    // Caller ensured the capacity. Returns the index of the last char consumed
+    private int encode(String value, int index) {
+        char c = value.charAt(index);
+        if (c < 0x800) {
+            bytes[length++] = (byte) (0xC0 | c >> 6);
+            bytes[length++] = (byte) (0x80 | c & 0x3F);
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(++index));
+            bytes[length++] = (byte) (0xF0 | codePoint >> 18);
+            bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+            bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+            bytes[length++] = (byte) (0x80 | codePoint & 0x3F);
+        } else if (Character.isSurrogate(c)) {
+            bytes[length++] = '?';
+        } else {
+            bytes[length++] = (byte) (0xE0 | c >> 12);
+            bytes[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+            bytes[length++] = (byte) (0x80 | c & 0x3F);
+        }
+        return index;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + extra, bytes.length * 2));
+        }
+    }
+}
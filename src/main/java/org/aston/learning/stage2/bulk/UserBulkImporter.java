@@ -0,0 +1,493 @@
+package org.aston.learning.stage2.bulk;
+
+import jakarta.persistence.SequenceGenerator;
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.InvalidUserException;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.metrics.BulkImportMetrics;
+import org.aston.learning.stage2.service.UserService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// Loads user files far too large for createUsers. One thread parses the file into chunks of
+// rows, worker threads validate them with the service's rules and encode the valid ones as
+// COPY CSV, and the calling thread streams the chunks into a temporary staging table with
+// PostgreSQL COPY. A fixed pool of chunks is handed round between the stages, so a slow stage
+// holds the others back and memory stays the same whatever the size of the file.
+//
+// Once everything is copied a few set-based statements merge the staging table into users in
+// the same transaction: rows whose email is taken and later repeats of an email within the file
+// are counted and sampled for the report, the rest is inserted with ids from the users sequence.
+// Nothing is visible to other sessions until the whole file has been merged.
+public class UserBulkImporter {
+    private static final Logger logger = LogManager.getLogger(UserBulkImporter.class);
+    // Column lengths of users, the same limits UserServiceImpl checks
+    private static final int MAX_NAME_LENGTH = 100;
+    private static final int MAX_EMAIL_LENGTH = 150;
+    private static final Chunk END = new Chunk(0);
+
+    // Hibernate's pooled optimizer hands out the block of ids ending at each sequence value,
+    // taking whole blocks the same way keeps the imported ids clear of the ones it allocates
+    private static final String ID_SEQUENCE;
+    private static final int ID_BLOCK;
+
+    static {
+        try {
+            SequenceGenerator generator = User.class.getDeclaredField("id").getAnnotation(SequenceGenerator.class);
+            ID_SEQUENCE = generator.sequenceName();
+            ID_BLOCK = generator.allocationSize();
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Temporary tables skip the WAL, ON COMMIT DROP cleans up after failures as well
+    private static final String CREATE_STAGING = "CREATE TEMPORARY TABLE users_import ("
+            + "line bigint NOT NULL, name varchar(" + MAX_NAME_LENGTH + ") NOT NULL, "
+            + "email varchar(" + MAX_EMAIL_LENGTH + ") NOT NULL, age integer) ON COMMIT DROP";
+    private static final String COPY_STAGING = "COPY users_import (line, name, email, age) FROM STDIN WITH (FORMAT csv)";
+    // Built after the copy, loading into an indexed table is slower than indexing it once
+    private static final String INDEX_STAGING = "CREATE INDEX ON users_import (email, line)";
+    private static final String ANALYZE_STAGING = "ANALYZE users_import";
+    private static final String SAMPLE_EXISTING = "SELECT s.line, s.email, u.id FROM users_import s "
+            + "JOIN users u ON u.email = s.email ORDER BY s.line LIMIT ?";
+    private static final String DELETE_EXISTING = "DELETE FROM users_import s USING users u WHERE u.email = s.email";
+    private static final String SAMPLE_DUPLICATES = "SELECT s.line, s.email, f.first_line FROM users_import s "
+            + "JOIN (SELECT email, min(line) AS first_line FROM users_import GROUP BY email HAVING count(*) > 1) f "
+            + "ON f.email = s.email WHERE s.line > f.first_line ORDER BY s.line LIMIT ?";
+    private static final String DELETE_DUPLICATES = "DELETE FROM users_import s WHERE EXISTS "
+            + "(SELECT 1 FROM users_import f WHERE f.email = s.email AND f.line < s.line)";
+    private static final String COUNT_STAGING = "SELECT count(*) FROM users_import";
+    private static final String NEXT_ID_BLOCKS = "SELECT nextval('" + ID_SEQUENCE + "') FROM generate_series(1, ?)";
+    // Row n of the staging table takes id n % ID_BLOCK of block n / ID_BLOCK. Users created since
+    // the conflicts were removed make ON CONFLICT skip the row instead of failing the merge
+    private static final String MERGE = "INSERT INTO users (id, name, email, age, created_at, version) "
+            + "SELECT b.hi - " + (ID_BLOCK - 1) + " + r.rn % " + ID_BLOCK + ", r.name, r.email, r.age, localtimestamp, 0 "
+            + "FROM (SELECT name, email, age, row_number() OVER (ORDER BY line) - 1 AS rn FROM users_import) r "
+            + "JOIN unnest(?::bigint[]) WITH ORDINALITY AS b(hi, block) ON b.block = r.rn / " + ID_BLOCK + " + 1 "
+            + "ON CONFLICT (email) DO NOTHING";
+
+    private final Supplier<SessionFactory> sessionFactory;
+    private final UserService rules;
+    private final int workers;
+    private final int chunkRows;
+    private final int maxSamples;
+    private final Duration progressInterval;
+
+    public UserBulkImporter(Supplier<SessionFactory> sessionFactory, UserService rules, int workers, int chunkRows,
+                            int maxSamples, Duration progressInterval) {
+        if (workers <= 0 || chunkRows <= 0 || maxSamples < 0) {
+            throw new IllegalArgumentException("Invalid import settings: " + workers + " workers, chunks of "
+                    + chunkRows + " rows, " + maxSamples + " samples");
+        }
+        this.sessionFactory = sessionFactory;
+        this.rules = rules;
+        this.workers = workers;
+        this.chunkRows = chunkRows;
+        this.maxSamples = maxSamples;
+        this.progressInterval = progressInterval;
+    }
+
+    // -Duser.import.workers=<cores>, -Duser.import.chunkRows=5000, -Duser.import.maxSamples=100
+    // and -Duser.import.progressSeconds=5
+    public static UserBulkImporter fromSystemProperties(Supplier<SessionFactory> sessionFactory, UserService rules) {
+        return new UserBulkImporter(sessionFactory, rules,
+                Integer.getInteger("user.import.workers", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("user.import.chunkRows", 5_000),
+                Integer.getInteger("user.import.maxSamples", 100),
+                Duration.ofSeconds(Long.getLong("user.import.progressSeconds", 5L)));
+    }
+
+    public ImportReport importFile(Path file) throws UserServiceException {
+        return importFile(file, FileFormat.of(file));
+    }
+
+    public ImportReport importFile(Path file, FileFormat format) throws UserServiceException {
+        if (FileFormat.isGzipped(file)) {
+            // The reader maps the file, it has to be uncompressed on disk
+            throw new InvalidUserException("Gzipped import files are not supported: " + file);
+        }
+        long start = System.nanoTime();
+        String name = file.getFileName().toString();
+        ImportReport report = new ImportReport(file, maxSamples);
+        logger.info("Importing users from {} ({}, {} validation workers)", file, format, workers);
+
+        try (UserFileReader reader = new UserFileReader(file, format)) {
+            BulkImportMetrics metrics = BulkImportMetrics.register(name, reader.size());
+            ScheduledExecutorService progress = startProgressLog(name, metrics);
+            try (StatelessSession session = sessionFactory.get().openStatelessSession()) {
+                session.doWork(connection -> load(connection, reader, report, metrics));
+                metrics.setPhase("done");
+            } catch (RuntimeException e) {
+                metrics.setPhase("failed");
+                throw e;
+            } finally {
+                progress.shutdownNow();
+                metrics.unregister(name);
+            }
+        } catch (NoSuchFileException e) {
+            throw new InvalidUserException("Import file not found: " + file);
+        } catch (IOException | UncheckedIOException e) {
+            throw new UserServiceException("Failed to read import file " + file, e);
+        } catch (UserServiceException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new UserServiceException("Bulk import of " + file + " failed", e);
+        }
+
+        report.setElapsedNanos(System.nanoTime() - start);
+        logger.info("Import of {} finished: {}", name, report);
+        return report;
+    }
+
+    // The whole import is one transaction, the staging table lives and dies with it
+    private void load(Connection connection, UserFileReader reader, ImportReport report, BulkImportMetrics metrics)
+            throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        boolean committed = false;
+        try {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(CREATE_STAGING);
+            }
+            CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_STAGING);
+            report.setCopied(copy(reader, copyIn, report, metrics));
+            report.setRowsRead(metrics.getRowsRead());
+
+            metrics.setPhase("merge");
+            merge(connection, report);
+            connection.commit();
+            committed = true;
+        } finally {
+            try {
+                if (!committed) {
+                    connection.rollback();
+                }
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    // Runs the parse and validate stages on their own threads and copies what they produce on
+    // the calling one, which owns the connection. Returns the rows COPY took
+    long copy(UserFileReader reader, CopyIn copyIn, ImportReport report, BulkImportMetrics metrics)
+            throws SQLException {
+        // Enough chunks for one being parsed, one being copied and two per worker in between
+        int poolSize = workers * 2 + 2;
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(poolSize);
+        BlockingQueue<Chunk> parsed = new ArrayBlockingQueue<>(poolSize + workers);
+        BlockingQueue<Chunk> encoded = new ArrayBlockingQueue<>(poolSize + workers);
+        for (int i = 0; i < poolSize; i++) {
+            free.add(new Chunk(chunkRows));
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService stages = Executors.newFixedThreadPool(workers + 1, runnable -> {
+            Thread thread = new Thread(runnable, "user-import-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        boolean copied = false;
+        try {
+            stages.execute(() -> runStage(failure, () -> parse(reader, free, parsed, metrics)));
+            for (int i = 0; i < workers; i++) {
+                stages.execute(() -> runStage(failure, () -> validate(parsed, encoded, metrics)));
+            }
+
+            int finished = 0;
+            while (finished < workers) {
+                throwIfFailed(failure);
+                Chunk chunk = encoded.poll(100, TimeUnit.MILLISECONDS);
+                if (chunk == null) {
+                    continue;
+                }
+                if (chunk == END) {
+                    finished++;
+                    continue;
+                }
+                if (chunk.copyData.length() > 0) {
+                    copyIn.writeToCopy(chunk.copyData.array(), 0, chunk.copyData.length());
+                }
+                metrics.recordCopied(chunk.valid);
+                report.addRejected(chunk.rejected, chunk.rejections);
+                free.add(chunk);
+            }
+            throwIfFailed(failure);
+            report.sortRejections();
+            long rows = copyIn.endCopy();
+            copied = true;
+            return rows;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserServiceException("Interrupted while importing users", e);
+        } finally {
+            stages.shutdownNow();
+            if (!copied && copyIn.isActive()) {
+                try {
+                    copyIn.cancelCopy();
+                } catch (SQLException e) {
+                    logger.debug("Failed to cancel the import COPY", e);
+                }
+            }
+        }
+    }
+
+    private void parse(UserFileReader reader, BlockingQueue<Chunk> free, BlockingQueue<Chunk> parsed,
+                       BulkImportMetrics metrics) throws IOException, InterruptedException {
+        long position = 0;
+        while (true) {
+            Chunk chunk = free.take();
+            chunk.size = reader.read(chunk.rows);
+            if (chunk.size == 0) {
+                break;
+            }
+            long read = reader.position();
+            metrics.recordRead(chunk.size, read - position);
+            position = read;
+            parsed.put(chunk);
+        }
+        for (int i = 0; i < workers; i++) {
+            parsed.put(END);
+        }
+    }
+
+    private void validate(BlockingQueue<Chunk> parsed, BlockingQueue<Chunk> encoded, BulkImportMetrics metrics)
+            throws InterruptedException {
+        while (true) {
+            Chunk chunk = parsed.take();
+            if (chunk == END) {
+                encoded.put(END);
+                return;
+            }
+            chunk.clear();
+            for (int i = 0; i < chunk.size; i++) {
+                ImportRow row = chunk.rows[i];
+                String reason = validate(row);
+                if (reason == null) {
+                    chunk.copyData.append(row.line).append(',')
+                            .appendCsv(row.name).append(',')
+                            .appendCsv(row.email).append(',');
+                    // An empty unquoted field, COPY reads it as null
+                    if (row.age != null) {
+                        chunk.copyData.append(row.age);
+                    }
+                    chunk.copyData.append('\n');
+                    chunk.valid++;
+                } else {
+                    chunk.rejected++;
+                    if (chunk.rejections.size() < maxSamples) {
+                        chunk.rejections.add(new ImportReport.Rejection(row.line, reason));
+                    }
+                }
+            }
+            metrics.recordRejected(chunk.rejected);
+            encoded.put(chunk);
+        }
+    }
+
+    // The checks of UserServiceImpl.createUser, returning the reason instead of throwing it. Age may
+    // be missing though, an export writes users whose age was never set without one
+    private String validate(ImportRow row) {
+        if (row.error != null) {
+            return row.error;
+        }
+        String name = row.name;
+        String email = row.email;
+        if (name == null || name.trim().isEmpty()) {
+            return "Name cannot be empty";
+        }
+        if (name.length() > MAX_NAME_LENGTH) {
+            return "Name is longer than " + MAX_NAME_LENGTH + " characters";
+        }
+        // PostgreSQL text cannot hold it, COPY would fail the whole file
+        if (name.indexOf('\0') >= 0) {
+            return "Name contains a NUL character";
+        }
+        if (email == null || email.trim().isEmpty()) {
+            return "Email cannot be empty";
+        }
+        if (email.length() > MAX_EMAIL_LENGTH) {
+            return "Email is longer than " + MAX_EMAIL_LENGTH + " characters";
+        }
+        if (!rules.isValidEmail(email)) {
+            return "Invalid email format: " + email;
+        }
+        if (row.age != null && !rules.isValidAge(row.age)) {
+            return "Invalid age: " + row.age;
+        }
+        return null;
+    }
+
+    private void merge(Connection connection, ImportReport report) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(INDEX_STAGING);
+            statement.execute(ANALYZE_STAGING);
+        }
+
+        try (PreparedStatement sample = connection.prepareStatement(SAMPLE_EXISTING)) {
+            sample.setInt(1, report.getMaxSamples());
+            try (ResultSet rows = sample.executeQuery()) {
+                while (rows.next()) {
+                    report.addConflict(new ImportReport.Conflict(rows.getLong(1), rows.getString(2), rows.getLong(3), null));
+                }
+            }
+        }
+        long existing;
+        try (Statement statement = connection.createStatement()) {
+            existing = statement.executeUpdate(DELETE_EXISTING);
+        }
+
+        try (PreparedStatement sample = connection.prepareStatement(SAMPLE_DUPLICATES)) {
+            sample.setInt(1, report.getMaxSamples());
+            try (ResultSet rows = sample.executeQuery()) {
+                while (rows.next()) {
+                    report.addConflict(new ImportReport.Conflict(rows.getLong(1), rows.getString(2), null, rows.getLong(3)));
+                }
+            }
+        }
+        try (Statement statement = connection.createStatement()) {
+            report.setDuplicatesInFile(statement.executeUpdate(DELETE_DUPLICATES));
+        }
+
+        long candidates;
+        try (Statement statement = connection.createStatement();
+             ResultSet count = statement.executeQuery(COUNT_STAGING)) {
+            count.next();
+            candidates = count.getLong(1);
+        }
+        long inserted = 0;
+        if (candidates > 0) {
+            Array blocks = connection.createArrayOf("bigint", nextIdBlocks(connection, candidates).toArray());
+            try (PreparedStatement merge = connection.prepareStatement(MERGE)) {
+                merge.setArray(1, blocks);
+                inserted = merge.executeUpdate();
+            } finally {
+                blocks.free();
+            }
+        }
+        report.setInserted(inserted);
+        report.setExistingConflicts(existing + candidates - inserted);
+    }
+
+    // The ends of enough id blocks for the rows. The first value of a fresh sequence ends a
+    // block reaching below id 1, which Hibernate never hands out in full either, so it is skipped
+    private List<Long> nextIdBlocks(Connection connection, long rows) throws SQLException {
+        long needed = (rows + ID_BLOCK - 1) / ID_BLOCK;
+        List<Long> blocks = new ArrayList<>((int) needed);
+        try (PreparedStatement next = connection.prepareStatement(NEXT_ID_BLOCKS)) {
+            while (blocks.size() < needed) {
+                next.setLong(1, needed - blocks.size());
+                try (ResultSet values = next.executeQuery()) {
+                    while (values.next()) {
+                        long hi = values.getLong(1);
+                        if (hi >= ID_BLOCK) {
+                            blocks.add(hi);
+                        }
+                    }
+                }
+            }
+        }
+        return blocks;
+    }
+
+    private ScheduledExecutorService startProgressLog(String name, BulkImportMetrics metrics) {
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-import-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodMillis = Math.max(1, progressInterval.toMillis());
+        long[] lastCopied = new long[1];
+        progress.scheduleAtFixedRate(() -> {
+            long copied = metrics.getRowsCopied();
+            double rate = (copied - lastCopied[0]) * 1_000.0 / periodMillis;
+            lastCopied[0] = copied;
+            logger.info(String.format("Importing %s (%s): %.1f%% read, %d rows, %d rejected, %d copied, %.0f rows/s",
+                    name, metrics.getPhase(), metrics.getPercentRead(), metrics.getRowsRead(),
+                    metrics.getRowsRejected(), copied, rate));
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return progress;
+    }
+
+    private static void runStage(AtomicReference<Throwable> failure, Stage stage) {
+        try {
+            stage.run();
+        } catch (InterruptedException e) {
+            // Cancelled because another stage failed or the copy ended
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            failure.compareAndSet(null, new UncheckedIOException(e));
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private static void throwIfFailed(AtomicReference<Throwable> failure) {
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+    }
+
+    private interface Stage {
+        void run() throws IOException, InterruptedException;
+    }
+
+    // Rows of one stretch of the file and, once validated, their COPY encoding
+    private static final class Chunk {
+        final ImportRow[] rows;
+        final TextBuffer copyData;
+        final List<ImportReport.Rejection> rejections = new ArrayList<>();
+        int size;
+        int valid;
+        int rejected;
+
+        Chunk(int capacity) {
+            this.rows = new ImportRow[capacity];
+            for (int i = 0; i < capacity; i++) {
+                rows[i] = new ImportRow();
+            }
+            // Roughly what a row encodes to, the buffer grows if a chunk needs more
+            this.copyData = new TextBuffer(Math.max(1, capacity * 64));
+        }
+
+        void clear() {
+            copyData.clear();
+            rejections.clear();
+            valid = 0;
+            rejected = 0;
+        }
+    }
+}
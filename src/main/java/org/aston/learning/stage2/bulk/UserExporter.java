@@ -0,0 +1,104 @@
+package org.aston.learning.stage2.bulk;
+
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Writes a stream of users to a CSV or NDJSON file, optionally gzipped. The users are written as
+// the stream yields them, with a cursor-backed stream from the DAO the whole table passes through
+// in constant memory. The export goes to a .part file next to the target that is moved into place
+// once complete, so whoever picks the file up never sees half an export.
+public class UserExporter {
+    private static final Logger logger = LogManager.getLogger(UserExporter.class);
+    private static final String PART_SUFFIX = ".part";
+    // The clock is only read every this many rows to decide on a progress line
+    private static final int PROGRESS_CHECK_ROWS = 4096;
+
+    private final int bufferSize;
+    private final int gzipLevel;
+    private final long progressNanos;
+
+    public UserExporter(int bufferSize, int gzipLevel, Duration progressInterval) {
+        if (bufferSize < 64 || gzipLevel < 0 || gzipLevel > 9) {
+            throw new IllegalArgumentException("Invalid export settings: buffer of " + bufferSize
+                    + " bytes, gzip level " + gzipLevel);
+        }
+        this.bufferSize = bufferSize;
+        this.gzipLevel = gzipLevel;
+        this.progressNanos = progressInterval.toNanos();
+    }
+
+    // -Duser.export.bufferKb=256, -Duser.export.gzipLevel=6 and -Duser.export.progressSeconds=5
+    public static UserExporter fromSystemProperties() {
+        return new UserExporter(Integer.getInteger("user.export.bufferKb", 256) * 1024,
+                Integer.getInteger("user.export.gzipLevel", 6),
+                Duration.ofSeconds(Long.getLong("user.export.progressSeconds", 5L)));
+    }
+
+    // Consumes the stream, closing it is up to the caller
+    public ExportReport export(Stream<User> users, Path file, FileFormat format, boolean gzip)
+            throws UserServiceException {
+        long start = System.nanoTime();
+        Path part = file.resolveSibling(file.getFileName() + PART_SUFFIX);
+        logger.info("Exporting users to {} ({}{})", file, format, gzip ? ", gzip" : "");
+
+        ExportReport report;
+        boolean complete = false;
+        try (UserFileWriter writer = new UserFileWriter(part, format, gzip, bufferSize, gzipLevel)) {
+            long rows = 0;
+            long lastRows = 0;
+            long lastProgress = start;
+            Iterator<User> iterator = users.iterator();
+            while (iterator.hasNext()) {
+                writer.write(iterator.next());
+                if (++rows % PROGRESS_CHECK_ROWS == 0) {
+                    long now = System.nanoTime();
+                    if (now - lastProgress >= progressNanos) {
+                        logger.info(String.format("Exporting %s: %d rows, %d bytes, %.0f rows/s", file.getFileName(),
+                                rows, writer.fileBytes(),
+                                (rows - lastRows) * (double) TimeUnit.SECONDS.toNanos(1) / (now - lastProgress)));
+                        lastRows = rows;
+                        lastProgress = now;
+                    }
+                }
+            }
+            writer.finish();
+            report = new ExportReport(file, format, gzip, rows, writer.fileBytes(), writer.textBytes(),
+                    System.nanoTime() - start);
+            complete = true;
+        } catch (IOException e) {
+            throw new UserServiceException("Failed to write export file " + file, e);
+        } finally {
+            if (!complete) {
+                deletePart(part);
+            }
+        }
+
+        try {
+            Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deletePart(part);
+            throw new UserServiceException("Failed to move export file into place: " + file, e);
+        }
+        logger.info("Export to {} finished: {}", file, report);
+        return report;
+    }
+
+    private static void deletePart(Path part) {
+        try {
+            Files.deleteIfExists(part);
+        } catch (IOException e) {
+            logger.warn("Failed to delete incomplete export file {}", part, e);
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package org.aston.learning.stage2.bulk;
+
+import org.aston.learning.stage2.exception.InvalidUserException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+// Parses a user file straight from memory-mapped windows of it, so reading costs no copy into a
+// stream buffer and no decoding of the columns the import does not use. A line is copied into a
+// reused scratch array before parsing, only the fields that become the name, email and age are
+// turned into strings. A CSV record runs on over line breaks inside quoted fields and is counted
+// by the line it starts on. A line that cannot be parsed becomes a failed row, not an exception,
+// so one bad line is reported with its number and the rest of the file still loads.
+final class UserFileReader implements Closeable {
+    // Windows are remapped at line boundaries, so a line may not be longer than one
+    private static final long MAP_WINDOW = 64L << 20;
+
+    private final Path file;
+    private final FileFormat format;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int position;
+    private long lineNumber;
+    private long linesRead;
+    // Line breaks inside the quoted fields of the record nextLine found
+    private int recordBreaks;
+    private byte[] line = new byte[1024];
+    private int cursor;
+    private int length;
+
+    // CSV columns by header position, -1 for the columns the import ignores
+    private int[] columnFields;
+    private final String[] fields = new String[3];
+
+    private static final int NAME = 0;
+    private static final int EMAIL = 1;
+    private static final int AGE = 2;
+
+    UserFileReader(Path file, FileFormat format) throws IOException {
+        this.file = file;
+        this.format = format;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            this.size = channel.size();
+            map(0);
+            skipByteOrderMark();
+            if (format == FileFormat.CSV) {
+                readHeader();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    long position() {
+        return windowStart + position;
+    }
+
+    // Parses up to rows.length lines into rows, blank lines are skipped. Returns 0 at the end
+    int read(ImportRow[] rows) throws IOException {
+        int count = 0;
+        while (count < rows.length && nextLine()) {
+            if (isBlank()) {
+                continue;
+            }
+            ImportRow row = rows[count++];
+            try {
+                if (format == FileFormat.CSV) {
+                    parseCsv(row);
+                } else {
+                    parseJson(row);
+                }
+            } catch (MalformedLineException e) {
+                row.fail(lineNumber, e.getMessage());
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void map(long start) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW, size - start));
+        windowStart = start;
+        position = 0;
+    }
+
+    private void skipByteOrderMark() {
+        if (window.limit() >= 3 && window.get(0) == (byte) 0xEF && window.get(1) == (byte) 0xBB
+                && window.get(2) == (byte) 0xBF) {
+            position = 3;
+        }
+    }
+
+    // Copies the next line without its terminator into line, false at the end of the file
+    private boolean nextLine() throws IOException {
+        while (true) {
+            int limit = window.limit();
+            int end = format == FileFormat.CSV ? csvRecordEnd(limit) : lineEnd(limit);
+            if (end >= 0) {
+                copyLine(end);
+                position = end + 1;
+                return true;
+            }
+            if (windowStart + limit >= size) {
+                if (position == limit) {
+                    return false;
+                }
+                // Last line without a terminator
+                copyLine(limit);
+                position = limit;
+                return true;
+            }
+            if (position == 0) {
+                throw new InvalidUserException(String.format("Line %d of %s is longer than %d bytes",
+                        linesRead + 1, file, MAP_WINDOW));
+            }
+            // The line runs past the window, map the next one starting with it
+            map(windowStart + position);
+        }
+    }
+
+    private int lineEnd(int limit) {
+        recordBreaks = 0;
+        for (int i = position; i < limit; i++) {
+            if (window.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The newline ending the CSV record at the position, -1 if the window ends first. Quotes only
+    // open a field at its start, as in decodeCsvField, and a doubled quote closes and reopens it
+    private int csvRecordEnd(int limit) {
+        boolean quoted = false;
+        boolean canOpen = true;
+        int breaks = 0;
+        for (int i = position; i < limit; i++) {
+            byte b = window.get(i);
+            if (quoted) {
+                if (b == '"') {
+                    quoted = false;
+                    canOpen = true;
+                } else if (b == '\n') {
+                    breaks++;
+                }
+            } else if (b == '\n') {
+                recordBreaks = breaks;
+                return i;
+            } else if (b == '"' && canOpen) {
+                quoted = true;
+            } else {
+                canOpen = b == ',';
+            }
+        }
+        recordBreaks = breaks;
+        return -1;
+    }
+
+    private void copyLine(int end) {
+        int lineLength = end - position;
+        if (lineLength > 0 && window.get(end - 1) == '\r') {
+            lineLength--;
+        }
+        if (lineLength > line.length) {
+            line = new byte[Math.max(lineLength, line.length * 2)];
+        }
+        window.get(position, line, 0, lineLength);
+        length = lineLength;
+        cursor = 0;
+        lineNumber = linesRead + 1;
+        linesRead += 1 + recordBreaks;
+    }
+
+    private boolean isBlank() {
+        for (int i = 0; i < length; i++) {
+            if (line[i] != ' ' && line[i] != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readHeader() throws IOException {
+        while (nextLine()) {
+            if (isBlank()) {
+                continue;
+            }
+            try {
+                readColumns();
+            } catch (MalformedLineException e) {
+                throw new InvalidUserException("Malformed header in " + file + ": " + e.getMessage());
+            }
+            return;
+        }
+        throw new InvalidUserException("Import file " + file + " has no header line");
+    }
+
+    private void readColumns() throws MalformedLineException {
+        int count = countFields();
+        columnFields = new int[count];
+        boolean[] found = new boolean[3];
+        cursor = 0;
+        for (int column = 0; column < count; column++) {
+            String header = decodeCsvField(true).trim().toLowerCase(Locale.ROOT);
+            int field = switch (header) {
+                case "name" -> NAME;
+                case "email" -> EMAIL;
+                case "age" -> AGE;
+                default -> -1;
+            };
+            if (field >= 0 && found[field]) {
+                throw new InvalidUserException("Import file " + file + " has two " + header + " columns");
+            }
+            if (field >= 0) {
+                found[field] = true;
+            }
+            columnFields[column] = field;
+            cursor++;
+        }
+        requireColumn(found[NAME], "name");
+        requireColumn(found[EMAIL], "email");
+        requireColumn(found[AGE], "age");
+    }
+
+    private void requireColumn(boolean found, String column) {
+        if (!found) {
+            throw new InvalidUserException("Import file " + file + " has no " + column + " column");
+        }
+    }
+
+    private void parseCsv(ImportRow row) throws MalformedLineException {
+        fields[NAME] = null;
+        fields[EMAIL] = null;
+        fields[AGE] = null;
+        int column = 0;
+        while (true) {
+            int field = column < columnFields.length ? columnFields[column] : -1;
+            if (field >= 0) {
+                fields[field] = decodeCsvField(true);
+            } else {
+                decodeCsvField(false);
+            }
+            column++;
+            if (cursor >= length) {
+                break;
+            }
+            // Skips the comma
+            cursor++;
+        }
+        if (column != columnFields.length) {
+            throw new MalformedLineException("Expected " + columnFields.length + " fields, found " + column);
+        }
+        row.set(lineNumber, fields[NAME], fields[EMAIL], parseAge(fields[AGE].trim()));
+    }
+
+    private int countFields() throws MalformedLineException {
+        int count = 0;
+        cursor = 0;
+        while (true) {
+            decodeCsvField(false);
+            count++;
+            if (cursor >= length) {
+                return count;
+            }
+            cursor++;
+        }
+    }
+
+    // Reads the field at the cursor and leaves the cursor on the comma after it or the line end.
+    // Decoded quoted fields have their doubled quotes collapsed in place, which only ever shrinks
+    // the field, so skipped fields leave the line as it was
+    private String decodeCsvField(boolean decode) throws MalformedLineException {
+        if (cursor < length && line[cursor] == '"') {
+            int start = ++cursor;
+            int end = start;
+            while (true) {
+                if (cursor >= length) {
+                    throw new MalformedLineException("Unterminated quoted field");
+                }
+                byte b = line[cursor++];
+                if (b == '"') {
+                    if (cursor < length && line[cursor] == '"') {
+                        cursor++;
+                    } else {
+                        break;
+                    }
+                }
+                if (decode) {
+                    line[end++] = b;
+                }
+            }
+            if (cursor < length && line[cursor] != ',') {
+                throw new MalformedLineException("Unexpected text after a quoted field");
+            }
+            return decode ? new String(line, start, end - start, StandardCharsets.UTF_8) : null;
+        }
+        int start = cursor;
+        while (cursor < length && line[cursor] != ',') {
+            cursor++;
+        }
+        return decode ? new String(line, start, cursor - start, StandardCharsets.UTF_8) : null;
+    }
+
+    private void parseJson(ImportRow row) throws MalformedLineException {
+        String name = null;
+        String email = null;
+        Integer age = null;
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            cursor++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                String key = readJsonString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                switch (key) {
+                    case "name" -> name = readJsonStringOrNull();
+                    case "email" -> email = readJsonStringOrNull();
+                    case "age" -> age = readJsonAge();
+                    default -> skipJsonValue();
+                }
+                skipWhitespace();
+                byte next = peek();
+                cursor++;
+                if (next == '}') {
+                    break;
+                }
+                if (next != ',') {
+                    throw new MalformedLineException("Expected ',' or '}' at column " + cursor);
+                }
+            }
+        }
+        skipWhitespace();
+        if (cursor < length) {
+            throw new MalformedLineException("Unexpected text after the object at column " + (cursor + 1));
+        }
+        row.set(lineNumber, name, email, age);
+    }
+
+    private String readJsonStringOrNull() throws MalformedLineException {
+        if (peek() == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        return readJsonString();
+    }
+
+    private Integer readJsonAge() throws MalformedLineException {
+        byte first = peek();
+        if (first == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        if (first == '"') {
+            return parseAge(readJsonString().trim());
+        }
+        int start = cursor;
+        skipJsonNumber();
+        return parseAge(new String(line, start, cursor - start, StandardCharsets.US_ASCII));
+    }
+
+    // Strings without escapes are decoded straight from the line, the rest through a builder
+    private String readJsonString() throws MalformedLineException {
+        expect('"');
+        int start = cursor;
+        while (cursor < length && line[cursor] != '"' && line[cursor] != '\\') {
+            cursor++;
+        }
+        if (cursor >= length) {
+            throw new MalformedLineException("Unterminated string");
+        }
+        if (line[cursor] == '"') {
+            return new String(line, start, cursor++ - start, StandardCharsets.UTF_8);
+        }
+
+        StringBuilder value = new StringBuilder(cursor - start + 16);
+        value.append(new String(line, start, cursor - start, StandardCharsets.UTF_8));
+        while (true) {
+            if (cursor >= length) {
+                throw new MalformedLineException("Unterminated string");
+            }
+            byte b = line[cursor];
+            if (b == '"') {
+                cursor++;
+                return value.toString();
+            }
+            if (b != '\\') {
+                int run = cursor;
+                while (cursor < length && line[cursor] != '"' && line[cursor] != '\\') {
+                    cursor++;
+                }
+                value.append(new String(line, run, cursor - run, StandardCharsets.UTF_8));
+                continue;
+            }
+            if (cursor + 1 >= length) {
+                throw new MalformedLineException("Unterminated string");
+            }
+            byte escaped = line[cursor + 1];
+            cursor += 2;
+            switch (escaped) {
+                case '"', '\\', '/' -> value.append((char) escaped);
+                case 'b' -> value.append('\b');
+                case 'f' -> value.append('\f');
+                case 'n' -> value.append('\n');
+                case 'r' -> value.append('\r');
+                case 't' -> value.append('\t');
+                case 'u' -> {
+                    if (cursor + 4 > length) {
+                        throw new MalformedLineException("Truncated unicode escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(new String(line, cursor, 4, StandardCharsets.US_ASCII), 16));
+                    } catch (NumberFormatException e) {
+                        throw new MalformedLineException("Invalid unicode escape");
+                    }
+                    cursor += 4;
+                }
+                default -> throw new MalformedLineException("Invalid escape '\\" + (char) escaped + "'");
+            }
+        }
+    }
+
+    private void skipJsonValue() throws MalformedLineException {
+        switch (peek()) {
+            case '"' -> readJsonString();
+            case 'n' -> expectLiteral("null");
+            case 't' -> expectLiteral("true");
+            case 'f' -> expectLiteral("false");
+            case '{', '[' -> skipJsonNested();
+            default -> skipJsonNumber();
+        }
+    }
+
+    // Objects and arrays under keys the import ignores, only strings need parsing to find the end
+    private void skipJsonNested() throws MalformedLineException {
+        int depth = 0;
+        do {
+            byte b = peek();
+            if (b == '"') {
+                readJsonString();
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            }
+            cursor++;
+        } while (depth > 0);
+    }
+
+    private void skipJsonNumber() throws MalformedLineException {
+        int start = cursor;
+        while (cursor < length) {
+            byte b = line[cursor];
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+                cursor++;
+            } else {
+                break;
+            }
+        }
+        if (cursor == start) {
+            throw new MalformedLineException("Unexpected character at column " + (cursor + 1));
+        }
+    }
+
+    private void expectLiteral(String literal) throws MalformedLineException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (cursor >= length || line[cursor] != literal.charAt(i)) {
+                throw new MalformedLineException("Unexpected character at column " + (cursor + 1));
+            }
+            cursor++;
+        }
+    }
+
+    private void expect(char expected) throws MalformedLineException {
+        if (cursor >= length || line[cursor] != expected) {
+            throw new MalformedLineException("Expected '" + expected + "' at column " + (cursor + 1));
+        }
+        cursor++;
+    }
+
+    private byte peek() throws MalformedLineException {
+        if (cursor >= length) {
+            throw new MalformedLineException("Unexpected end of line");
+        }
+        return line[cursor];
+    }
+
+    private void skipWhitespace() {
+        while (cursor < length && (line[cursor] == ' ' || line[cursor] == '\t')) {
+            cursor++;
+        }
+    }
+
+    private static Integer parseAge(String value) throws MalformedLineException {
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            throw new MalformedLineException("Invalid age: " + value);
+        }
+    }
+
+    // Control flow inside the parser only, never leaves the reader and needs no stack trace
+    private static final class MalformedLineException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        MalformedLineException(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
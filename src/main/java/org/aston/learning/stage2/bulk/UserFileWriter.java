@@ -0,0 +1,172 @@
+package org.aston.learning.stage2.bulk;
+
+import org.aston.learning.stage2.entity.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Writes users as CSV or NDJSON lines to a file channel. Rows are encoded into a reused text
+// buffer, which is moved into a direct buffer every few dozen kilobytes, straight or through
+// the deflater, and the direct buffer goes to the channel whenever it fills up. Nothing is
+// allocated per row and memory stays the same whatever the number of users.
+final class UserFileWriter implements Closeable {
+    static final String CSV_HEADER = "id,name,email,age,created_at,version\n";
+    private static final int TEXT_FLUSH_BYTES = 32 * 1024;
+    // Minimal gzip member header: deflate, no flags, no mtime, unknown OS
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final FileFormat format;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final TextBuffer text = new TextBuffer(TEXT_FLUSH_BYTES + 1024);
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private long textBytes;
+    private long fileBytes;
+
+    UserFileWriter(Path file, FileFormat format, boolean gzip, int bufferSize, int gzipLevel) throws IOException {
+        this.format = format;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        // Raw deflate, the gzip header and trailer are written here
+        this.deflater = gzip ? new Deflater(gzipLevel, true) : null;
+        this.crc = gzip ? new CRC32() : null;
+        if (gzip) {
+            buffer.put(GZIP_HEADER);
+        }
+        if (format == FileFormat.CSV) {
+            text.appendAscii(CSV_HEADER);
+        }
+    }
+
+    void write(User user) throws IOException {
+        if (format == FileFormat.CSV) {
+            writeCsv(user);
+        } else {
+            writeJson(user);
+        }
+        if (text.length() >= TEXT_FLUSH_BYTES) {
+            flushText();
+        }
+    }
+
+    // Uncompressed bytes of the export
+    long textBytes() {
+        return textBytes;
+    }
+
+    // Bytes on disk, compressed if gzipped
+    long fileBytes() {
+        return fileBytes;
+    }
+
+    // Flushes everything and forces it to disk, the channel stays open until close
+    void finish() throws IOException {
+        flushText();
+        if (deflater != null) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(buffer);
+                if (!buffer.hasRemaining()) {
+                    flushBuffer();
+                }
+            }
+            if (buffer.remaining() < 8) {
+                flushBuffer();
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt((int) crc.getValue())
+                    .putInt((int) textBytes)
+                    .order(ByteOrder.BIG_ENDIAN);
+        }
+        flushBuffer();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (deflater != null) {
+            deflater.end();
+        }
+        channel.close();
+    }
+
+    private void writeCsv(User user) {
+        text.append(user.getId()).append(',')
+                .appendCsv(user.getName()).append(',')
+                .appendCsv(user.getEmail()).append(',');
+        if (user.getAge() != null) {
+            text.append(user.getAge());
+        }
+        text.append(',');
+        if (user.getCreatedAt() != null) {
+            text.appendTimestamp(user.getCreatedAt());
+        }
+        text.append(',').append(user.getVersion() == null ? 0L : user.getVersion()).append('\n');
+    }
+
+    private void writeJson(User user) {
+        text.appendAscii("{\"id\":").append(user.getId())
+                .appendAscii(",\"name\":").appendJson(user.getName())
+                .appendAscii(",\"email\":").appendJson(user.getEmail())
+                .appendAscii(",\"age\":");
+        if (user.getAge() != null) {
+            text.append(user.getAge());
+        } else {
+            text.appendAscii("null");
+        }
+        text.appendAscii(",\"createdAt\":");
+        LocalDateTime createdAt = user.getCreatedAt();
+        if (createdAt != null) {
+            text.append('"').appendTimestamp(createdAt).append('"');
+        } else {
+            text.appendAscii("null");
+        }
+        text.appendAscii(",\"version\":").append(user.getVersion() == null ? 0L : user.getVersion())
+                .append('}').append('\n');
+    }
+
+    private void flushText() throws IOException {
+        byte[] bytes = text.array();
+        int length = text.length();
+        textBytes += length;
+        if (deflater != null) {
+            crc.update(bytes, 0, length);
+            deflater.setInput(bytes, 0, length);
+            // The text buffer is reused, the deflater has to take all of it before returning
+            while (!deflater.needsInput()) {
+                deflater.deflate(buffer);
+                if (!buffer.hasRemaining()) {
+                    flushBuffer();
+                }
+            }
+        } else {
+            for (int offset = 0; offset < length; ) {
+                int chunk = Math.min(buffer.remaining(), length - offset);
+                buffer.put(bytes, offset, chunk);
+                offset += chunk;
+                if (!buffer.hasRemaining()) {
+                    flushBuffer();
+                }
+            }
+        }
+        text.clear();
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fileBytes += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
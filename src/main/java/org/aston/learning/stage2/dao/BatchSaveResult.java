@@ -0,0 +1,65 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.entity.User;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class BatchSaveResult {
+    private final List<User> saved = new ArrayList<>();
+    private final List<Failure> failures = new ArrayList<>();
+
+    public void addSaved(User user) {
+        saved.add(user);
+    }
+
+    public void addFailure(User user, String reason) {
+        failures.add(new Failure(user, reason));
+    }
+
+    public void merge(BatchSaveResult other) {
+        saved.addAll(other.saved);
+        failures.addAll(other.failures);
+    }
+
+    public List<User> getSaved() {
+        return Collections.unmodifiableList(saved);
+    }
+
+    public List<Failure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchSaveResult{saved=%d, failed=%d}", saved.size(), failures.size());
+    }
+
+    public static class Failure {
+        private final User user;
+        private final String reason;
+
+        public Failure(User user, String reason) {
+            this.user = user;
+            this.reason = reason;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Failure{email='%s', reason='%s'}", user.getEmail(), reason);
+        }
+    }
+}
@@ -0,0 +1,560 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.DuplicateEmailException;
+import org.aston.learning.stage2.exception.InvalidUserException;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.metrics.MembershipFilterMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+// Counting Bloom filters over the ids and the normalized emails of all users. An id the filter rules
+// out is answered as missing without a storage call: findById, the updates and deletes by id. An
+// email it rules out saves the duplicate check before an insert, a maybe-taken one is checked first
+// so a duplicate fails without a doomed INSERT. The insert itself still enforces uniqueness.
+//
+// Ruling out is only sound while every write passes through here. Writes around it, like the bulk
+// importer's COPY, go through externalWrite(), and a second process writing the same storage is
+// not supported. Deleted ids are removed from the filter, emails are not as the delete does not
+// know them; they stay maybe-taken until the next rebuild, which costs a check and nothing else.
+public class BloomFilterUserDao implements UserDao {
+    private static final Logger logger = LogManager.getLogger(BloomFilterUserDao.class);
+    private static final String IDS = "ids";
+    private static final String EMAILS = "emails";
+
+    private final UserDao delegate;
+    private final long expectedUsers;
+    private final double falsePositiveRate;
+    private final MembershipFilterMetrics idMetrics;
+    private final MembershipFilterMetrics emailMetrics;
+    private final Object rebuildLock = new Object();
+    // Guarded by this: external writes running and how many started, a build overlapping one is dropped
+    private int externalWrites;
+    private long externalWritesStarted;
+    private final AtomicBoolean growthScheduled = new AtomicBoolean();
+    // Null until the first build finished and while an external write runs, lookups go to the storage then
+    private volatile Filters live;
+    // Receives the writes made while it is filled from the storage
+    private volatile Filters building;
+    private ScheduledExecutorService rebuilder;
+
+    public BloomFilterUserDao(UserDao delegate, long expectedUsers, double falsePositiveRate) {
+        if (expectedUsers <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid membership filter settings: " + expectedUsers
+                    + " expected users, false positive rate " + falsePositiveRate);
+        }
+        this.delegate = delegate;
+        this.expectedUsers = expectedUsers;
+        this.falsePositiveRate = falsePositiveRate;
+        this.idMetrics = MembershipFilterMetrics.register(IDS, new View(filters -> filters.ids));
+        this.emailMetrics = MembershipFilterMetrics.register(EMAILS, new View(filters -> filters.emails));
+    }
+
+    // -Duser.membership.expectedUsers=1000000 -Duser.membership.falsePositiveRate=0.01
+    // -Duser.membership.rebuildMinutes=0, periodic rebuilds are off unless set
+    public static BloomFilterUserDao fromSystemProperties(UserDao delegate) {
+        BloomFilterUserDao dao = new BloomFilterUserDao(delegate,
+                Long.getLong("user.membership.expectedUsers", 1_000_000L),
+                Double.parseDouble(System.getProperty("user.membership.falsePositiveRate", "0.01")));
+        dao.start(Duration.ofMinutes(Long.getLong("user.membership.rebuildMinutes", 0L)));
+        return dao;
+    }
+
+    // Builds the filters in the background, until then every lookup goes to the storage. Periodic
+    // rebuilds drop the emails of deleted users and resize the filters to the number of users
+    public synchronized void start(Duration rebuildInterval) {
+        if (rebuilder != null) {
+            return;
+        }
+        rebuilder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "membership-rebuild");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebuilder.execute(this::rebuildQuietly);
+        if (!rebuildInterval.isZero() && !rebuildInterval.isNegative()) {
+            long intervalMillis = rebuildInterval.toMillis();
+            rebuilder.scheduleWithFixedDelay(this::rebuildQuietly, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+            logger.info("Membership filters rebuilt every {}", rebuildInterval);
+        }
+    }
+
+    public synchronized void close() {
+        if (rebuilder != null) {
+            rebuilder.shutdownNow();
+            rebuilder = null;
+        }
+        idMetrics.unregister(IDS);
+        emailMetrics.unregister(EMAILS);
+    }
+
+    public UserDao getDelegate() {
+        return delegate;
+    }
+
+    public boolean isReady() {
+        return live != null;
+    }
+
+    public MembershipFilterMetrics getIdMetrics() {
+        return idMetrics;
+    }
+
+    public MembershipFilterMetrics getEmailMetrics() {
+        return emailMetrics;
+    }
+
+    // Streams every id and email of the storage into new filters and swaps them in. Writes made
+    // meanwhile go to the new filters as well, so none falls between the stream and the swap
+    public void rebuild() throws UserServiceException {
+        synchronized (rebuildLock) {
+            long startedExternalWrites;
+            synchronized (this) {
+                if (externalWrites > 0) {
+                    logger.debug("Membership filter rebuild skipped, an external write is running");
+                    return;
+                }
+                startedExternalWrites = externalWritesStarted;
+            }
+            long start = System.nanoTime();
+            Filters current = live;
+            // Twice the users there are leaves room to grow until the next rebuild
+            long capacity = Math.max(expectedUsers, current == null ? 0 : current.ids.entries() * 2);
+            Filters fresh = new Filters(capacity, falsePositiveRate);
+            building = fresh;
+            boolean published = false;
+            // From the primary, a lagging replica would leave out users committed before building was set
+            try (Stream<UserSummary> users = SessionRouter.readFromPrimary(delegate::streamSummaries)) {
+                users.forEach(user -> fresh.add(user.id(), user.email()));
+                synchronized (this) {
+                    // A write around this DAO since the start may be neither in the stream nor in fresh
+                    if (externalWrites == 0 && externalWritesStarted == startedExternalWrites) {
+                        live = fresh;
+                        published = true;
+                    }
+                }
+            } finally {
+                // Only after the swap, a writer that finds no building filter then finds the new live one
+                building = null;
+                growthScheduled.set(false);
+            }
+
+            long elapsed = System.nanoTime() - start;
+            if (published) {
+                idMetrics.recordRebuild(elapsed);
+                emailMetrics.recordRebuild(elapsed);
+                logger.info("Membership filters built in {} ms: {}", TimeUnit.NANOSECONDS.toMillis(elapsed), fresh);
+                // More users than expected, the next build is sized from this one
+                if (fresh.ids.entries() > capacity && growthScheduled.compareAndSet(false, true)) {
+                    scheduleRebuild();
+                }
+            } else {
+                logger.info("Membership filters discarded, an external write ran while they were built");
+            }
+        }
+    }
+
+    // For writes that go around this DAO, like the bulk importer's COPY. The filters are dropped
+    // before the write starts, the users it adds would be missing from them, and rebuilt after it
+    public <T> T externalWrite(Supplier<T> write) {
+        synchronized (this) {
+            externalWrites++;
+            externalWritesStarted++;
+            live = null;
+        }
+        try {
+            return write.get();
+        } finally {
+            synchronized (this) {
+                externalWrites--;
+            }
+            scheduleRebuild();
+        }
+    }
+
+    @Override
+    public User save(User user) throws UserServiceException {
+        Filters filters = live;
+        if (filters == null) {
+            emailMetrics.recordBypass();
+        } else if (user.getEmail() != null) {
+            if (filters.emails.mightContain(hashEmail(user.getEmail()))) {
+                boolean taken = delegate.existsByEmail(user.getEmail());
+                emailMetrics.recordPositive(taken);
+                if (taken) {
+                    throw new DuplicateEmailException(user.getEmail());
+                }
+            } else {
+                emailMetrics.recordDefiniteNegative();
+            }
+        }
+        User savedUser = delegate.save(user);
+        added(savedUser);
+        return savedUser;
+    }
+
+    @Override
+    public BatchSaveResult saveAll(Collection<User> users) throws UserServiceException {
+        // The storage checks the batch's emails in bulk already
+        BatchSaveResult result = delegate.saveAll(users);
+        for (User user : result.getSaved()) {
+            added(user);
+        }
+        return result;
+    }
+
+    @Override
+    public Optional<User> findById(Long id) throws UserServiceException {
+        Filters filters = live;
+        if (ruledOut(filters, id)) {
+            return Optional.empty();
+        }
+        Optional<User> user = delegate.findById(id);
+        recordLookup(filters, user.isPresent());
+        return user;
+    }
+
+    @Override
+    public List<User> findByIds(Collection<Long> ids) throws UserServiceException {
+        Filters filters = live;
+        if (filters == null) {
+            idMetrics.recordBypass();
+            return delegate.findByIds(ids);
+        }
+        Set<Long> candidates = new LinkedHashSet<>();
+        for (Long id : ids) {
+            if (id != null && filters.ids.mightContain(hashId(id))) {
+                candidates.add(id);
+            } else {
+                idMetrics.recordDefiniteNegative();
+            }
+        }
+        if (candidates.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<User> users = delegate.findByIds(candidates);
+        // As many true positives as users found, the other candidates were false ones
+        for (int i = 0; i < candidates.size(); i++) {
+            idMetrics.recordPositive(i < users.size());
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> findAll() throws UserServiceException {
+        return delegate.findAll();
+    }
+
+    @Override
+    public List<User> findAll(int page, int size) throws UserServiceException {
+        return delegate.findAll(page, size);
+    }
+
+    @Override
+    public UserPage findPageAfter(Long lastId, int size) throws UserServiceException {
+        return delegate.findPageAfter(lastId, size);
+    }
+
+    @Override
+    public Stream<User> streamAll() throws UserServiceException {
+        return delegate.streamAll();
+    }
+
+    @Override
+    public List<UserSummary> findSummaries(int page, int size) throws UserServiceException {
+        return delegate.findSummaries(page, size);
+    }
+
+    @Override
+    public List<UserSummary> findSummariesAfter(Long lastId, int size) throws UserServiceException {
+        return delegate.findSummariesAfter(lastId, size);
+    }
+
+    @Override
+    public Stream<UserSummary> streamSummaries() throws UserServiceException {
+        return delegate.streamSummaries();
+    }
+
+    @Override
+    public User update(User user) throws UserServiceException {
+        User updatedUser = delegate.update(user);
+        emailAdded(updatedUser.getEmail());
+        return updatedUser;
+    }
+
+    @Override
+    public Optional<User> updateLocked(Long id, Consumer<User> changes) throws UserServiceException {
+        Filters filters = live;
+        if (ruledOut(filters, id)) {
+            return Optional.empty();
+        }
+        Optional<User> user = delegate.updateLocked(id, changes);
+        recordLookup(filters, user.isPresent());
+        user.ifPresent(updatedUser -> emailAdded(updatedUser.getEmail()));
+        return user;
+    }
+
+    @Override
+    public void delete(Long id) throws UserServiceException {
+        Filters filters = live;
+        if (ruledOut(filters, id)) {
+            return;
+        }
+        // Whether a row went is unknown here, so the id stays in the filter until the next rebuild
+        delegate.delete(id);
+    }
+
+    @Override
+    public int updateFields(Long id, String name, String email, Integer age) throws UserServiceException {
+        if (name == null && email == null && age == null) {
+            throw new InvalidUserException("No fields to update for user ID: " + id);
+        }
+        Filters filters = live;
+        if (ruledOut(filters, id)) {
+            return 0;
+        }
+        int updated = delegate.updateFields(id, name, email, age);
+        recordLookup(filters, updated > 0);
+        if (updated > 0 && email != null) {
+            emailAdded(email);
+        }
+        return updated;
+    }
+
+    @Override
+    public int deleteById(Long id) throws UserServiceException {
+        Filters filters = live;
+        if (ruledOut(filters, id)) {
+            return 0;
+        }
+        int deleted = delegate.deleteById(id);
+        recordLookup(filters, deleted > 0);
+        // Only a filter that was live before the delete surely holds the id. One swapped in since
+        // may have been built without it, and taking out what was never added breaks other entries
+        if (deleted > 0 && filters != null && filters == live) {
+            filters.ids.remove(hashId(id));
+        }
+        return deleted;
+    }
+
+    @Override
+    public Optional<String> deleteReturningEmail(Long id) throws UserServiceException {
+        Filters filters = live;
+        if (ruledOut(filters, id)) {
+            return Optional.empty();
+        }
+        Optional<String> email = delegate.deleteReturningEmail(id);
+        recordLookup(filters, email.isPresent());
+        if (email.isPresent() && filters != null && filters == live) {
+            filters.ids.remove(hashId(id));
+        }
+        return email;
+    }
+
+    @Override
+    public boolean existsByEmail(String email) throws UserServiceException {
+        Filters filters = live;
+        if (filters == null) {
+            emailMetrics.recordBypass();
+            return delegate.existsByEmail(email);
+        }
+        if (email == null || !filters.emails.mightContain(hashEmail(email))) {
+            emailMetrics.recordDefiniteNegative();
+            return false;
+        }
+        boolean exists = delegate.existsByEmail(email);
+        emailMetrics.recordPositive(exists);
+        return exists;
+    }
+
+    private boolean ruledOut(Filters filters, Long id) {
+        if (filters == null) {
+            idMetrics.recordBypass();
+            return false;
+        }
+        if (id != null && !filters.ids.mightContain(hashId(id))) {
+            idMetrics.recordDefiniteNegative();
+            return true;
+        }
+        return false;
+    }
+
+    private void recordLookup(Filters filters, boolean found) {
+        if (filters != null) {
+            idMetrics.recordPositive(found);
+        }
+    }
+
+    // Called once the storage committed. The filter being built is updated first: a writer that
+    // sees none then sees the live filter it turned into
+    private void added(User user) {
+        if (user.getId() == null || user.getEmail() == null) {
+            return;
+        }
+        long idHash = hashId(user.getId());
+        long emailHash = hashEmail(user.getEmail());
+        Filters next = building;
+        if (next != null) {
+            next.add(idHash, emailHash);
+        }
+        Filters current = live;
+        if (current != null) {
+            current.add(idHash, emailHash);
+            if (current.ids.entries() > current.ids.capacity() && growthScheduled.compareAndSet(false, true)) {
+                logger.info("Membership filters hold {} users, over their capacity of {}, rebuilding them larger",
+                        current.ids.entries(), current.ids.capacity());
+                scheduleRebuild();
+            }
+        }
+    }
+
+    private void emailAdded(String email) {
+        if (email == null) {
+            return;
+        }
+        long emailHash = hashEmail(email);
+        Filters next = building;
+        if (next != null) {
+            next.addEmail(emailHash);
+        }
+        Filters current = live;
+        if (current != null) {
+            current.addEmail(emailHash);
+        }
+    }
+
+    private synchronized void scheduleRebuild() {
+        if (rebuilder != null) {
+            rebuilder.execute(this::rebuildQuietly);
+        }
+    }
+
+    private void rebuildQuietly() {
+        try {
+            rebuild();
+        } catch (RuntimeException e) {
+            logger.warn("Membership filter rebuild failed, keeping the current filters", e);
+        }
+    }
+
+    static long hashId(long id) {
+        return mix(id);
+    }
+
+    // FNV-1a over the trimmed, lower-cased email. Emails differing only in case share a hash, which
+    // only makes them maybe-taken, the storage has the final word
+    static long hashEmail(String email) {
+        int start = 0;
+        int end = email.length();
+        while (start < end && Character.isWhitespace(email.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(email.charAt(end - 1))) {
+            end--;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash ^= Character.toLowerCase(email.charAt(i));
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    // SplitMix64 finalizer, spreads every input bit over both halves used for double hashing
+    private static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilterUserDao{ids=" + idMetrics + ", emails=" + emailMetrics + "}";
+    }
+
+    private static final class Filters {
+        private final CountingBloomFilter ids;
+        private final CountingBloomFilter emails;
+
+        Filters(long capacity, double falsePositiveRate) {
+            this.ids = new CountingBloomFilter(capacity, falsePositiveRate);
+            this.emails = new CountingBloomFilter(capacity, falsePositiveRate);
+        }
+
+        void add(long id, String email) {
+            add(hashId(id), hashEmail(email));
+        }
+
+        void add(long idHash, long emailHash) {
+            ids.add(idHash);
+            addEmail(emailHash);
+        }
+
+        // Emails are never taken out again, one already maybe-taken would only inflate the count
+        void addEmail(long emailHash) {
+            if (!emails.mightContain(emailHash)) {
+                emails.add(emailHash);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ids=" + ids + ", emails=" + emails;
+        }
+    }
+
+    private class View implements MembershipFilterMetrics.Source {
+        private final Function<Filters, CountingBloomFilter> filter;
+
+        View(Function<Filters, CountingBloomFilter> filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean isReady() {
+            return live != null;
+        }
+
+        @Override
+        public long entries() {
+            Filters filters = live;
+            return filters == null ? 0 : filter.apply(filters).entries();
+        }
+
+        @Override
+        public long capacity() {
+            Filters filters = live;
+            return filters == null ? 0 : filter.apply(filters).capacity();
+        }
+
+        @Override
+        public long memoryBytes() {
+            Filters filters = live;
+            return filters == null ? 0 : filter.apply(filters).memoryBytes();
+        }
+
+        @Override
+        public double expectedFalsePositiveRate() {
+            Filters filters = live;
+            return filters == null ? 0.0 : filter.apply(filters).expectedFalsePositiveRate();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+public class CachingUserDao implements UserDao {
+    private static final Logger logger = LogManager.getLogger(CachingUserDao.class);
+    private final UserDao delegate;
+    private final UserCache cache;
+
+    public CachingUserDao(UserDao delegate, UserCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    public UserCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public User save(User user) throws UserServiceException {
+        User savedUser = delegate.save(user);
+        cache.put(savedUser);
+        return savedUser;
+    }
+
+    @Override
+    public BatchSaveResult saveAll(Collection<User> users) throws UserServiceException {
+        // Bulk imports are not cached to avoid flushing out the hot set
+        return delegate.saveAll(users);
+    }
+
+    @Override
+    public Optional<User> findById(Long id) throws UserServiceException {
+        // While the thread reads from the primary it has to see every committed write, which an entry
+        // filled from a replica may have missed. Such reads skip the cache and don't fill it either
+        if (SessionRouter.isRoutedToPrimary()) {
+            return delegate.findById(id);
+        }
+        Optional<User> cached = cache.get(id);
+        if (cached.isPresent()) {
+            logger.trace("User cache hit for ID: {}", id);
+            return cached;
+        }
+
+        long generation = cache.generation(id);
+        Optional<User> user = delegate.findById(id);
+        user.ifPresent(found -> cache.putIfAbsent(found, generation));
+        return user;
+    }
+
+    @Override
+    public List<User> findByIds(Collection<Long> ids) throws UserServiceException {
+        if (SessionRouter.isRoutedToPrimary()) {
+            return delegate.findByIds(ids);
+        }
+        // Only the ids missing from the cache go to the delegate, in one multi-get
+        Set<Long> distinctIds = new LinkedHashSet<>(ids);
+        Map<Long, User> found = new HashMap<>();
+        Map<Long, Long> misses = new HashMap<>();
+        for (Long id : distinctIds) {
+            Optional<User> cached = cache.get(id);
+            if (cached.isPresent()) {
+                found.put(id, cached.get());
+            } else if (id != null) {
+                misses.put(id, cache.generation(id));
+            }
+        }
+        if (!misses.isEmpty()) {
+            for (User user : delegate.findByIds(misses.keySet())) {
+                cache.putIfAbsent(user, misses.get(user.getId()));
+                found.put(user.getId(), user);
+            }
+        }
+
+        List<User> users = new ArrayList<>(found.size());
+        for (Long id : distinctIds) {
+            User user = found.get(id);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> findAll() throws UserServiceException {
+        return delegate.findAll();
+    }
+
+    @Override
+    public List<User> findAll(int page, int size) throws UserServiceException {
+        return delegate.findAll(page, size);
+    }
+
+    @Override
+    public UserPage findPageAfter(Long lastId, int size) throws UserServiceException {
+        return delegate.findPageAfter(lastId, size);
+    }
+
+    @Override
+    public Stream<User> streamAll() throws UserServiceException {
+        return delegate.streamAll();
+    }
+
+    @Override
+    public List<UserSummary> findSummaries(int page, int size) throws UserServiceException {
+        return delegate.findSummaries(page, size);
+    }
+
+    @Override
+    public List<UserSummary> findSummariesAfter(Long lastId, int size) throws UserServiceException {
+        return delegate.findSummariesAfter(lastId, size);
+    }
+
+    @Override
+    public Stream<UserSummary> streamSummaries() throws UserServiceException {
+        return delegate.streamSummaries();
+    }
+
+    // Updates drop the entry rather than store what they return: concurrent updates return in call
+    // order, not commit order, so the older version could be cached last. Invalidating also bumps
+    // the generation, which drops a fill that read the row before the update
+    @Override
+    public User update(User user) throws UserServiceException {
+        try {
+            return delegate.update(user);
+        } finally {
+            cache.invalidate(user.getId());
+        }
+    }
+
+    @Override
+    public Optional<User> updateLocked(Long id, Consumer<User> changes) throws UserServiceException {
+        try {
+            return delegate.updateLocked(id, changes);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public void delete(Long id) throws UserServiceException {
+        try {
+            delegate.delete(id);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public int updateFields(Long id, String name, String email, Integer age) throws UserServiceException {
+        // Dropped like the other updates, the version the database assigned is not even known here
+        try {
+            return delegate.updateFields(id, name, email, age);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public int deleteById(Long id) throws UserServiceException {
+        try {
+            return delegate.deleteById(id);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public Optional<String> deleteReturningEmail(Long id) throws UserServiceException {
+        try {
+            return delegate.deleteReturningEmail(id);
+        } finally {
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public boolean existsByEmail(String email) throws UserServiceException {
+        return delegate.existsByEmail(email);
+    }
+}
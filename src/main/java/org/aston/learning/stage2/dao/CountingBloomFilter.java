@@ -0,0 +1,125 @@
+package org.aston.learning.stage2.dao;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bloom filter with 4-bit counters instead of bits, so entries can be removed again. Sixteen
+// counters share a long and are updated by compare-and-set, no locks. A counter that reaches 15
+// stays there, it can no longer tell how many entries use it. Keys come in as 64-bit hashes, split
+// into the two halves of double hashing (Kirsch and Mitzenmacher) for the k probes.
+final class CountingBloomFilter {
+    private static final int COUNTERS_PER_WORD = 16;
+    private static final long COUNTER_MASK = 0xFL;
+    private static final double LN2 = Math.log(2);
+
+    private final AtomicLongArray words;
+    private final long counters;
+    private final int hashes;
+    private final long capacity;
+    private final LongAdder entries = new LongAdder();
+
+    CountingBloomFilter(long capacity, double falsePositiveRate) {
+        if (capacity <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid Bloom filter settings: capacity " + capacity
+                    + ", false positive rate " + falsePositiveRate);
+        }
+        // m = -n ln p / (ln 2)^2 counters and k = m/n ln 2 probes give rate p at n entries
+        long optimal = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+        long wordCount = Math.max(1, (optimal + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+        if (wordCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter for " + capacity + " entries is too large");
+        }
+        this.words = new AtomicLongArray((int) wordCount);
+        this.counters = wordCount * COUNTERS_PER_WORD;
+        this.hashes = Math.max(1, (int) Math.round((double) counters / capacity * LN2));
+        this.capacity = capacity;
+    }
+
+    void add(long hash) {
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            increment(Math.floorMod(hash + i * h2, counters));
+        }
+        entries.increment();
+    }
+
+    // Only entries that were added may be removed, anything else would zero counters other
+    // entries rely on. A hash the filter rules out is left alone for that reason
+    boolean remove(long hash) {
+        if (!mightContain(hash)) {
+            return false;
+        }
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            decrement(Math.floorMod(hash + i * h2, counters));
+        }
+        entries.decrement();
+        return true;
+    }
+
+    // False means the key was never added, true that it probably was
+    boolean mightContain(long hash) {
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long index = Math.floorMod(hash + i * h2, counters);
+            if ((words.get((int) (index / COUNTERS_PER_WORD)) >>> shift(index) & COUNTER_MASK) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long entries() {
+        return entries.sum();
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    long memoryBytes() {
+        return (long) words.length() * Long.BYTES;
+    }
+
+    // (1 - e^(-kn/m))^k for the current number of entries
+    double expectedFalsePositiveRate() {
+        double n = Math.max(0, entries.sum());
+        return Math.pow(1 - Math.exp(-hashes * n / counters), hashes);
+    }
+
+    private void increment(long index) {
+        int word = (int) (index / COUNTERS_PER_WORD);
+        int shift = shift(index);
+        long current;
+        do {
+            current = words.get(word);
+            if ((current >>> shift & COUNTER_MASK) == COUNTER_MASK) {
+                return;
+            }
+        } while (!words.compareAndSet(word, current, current + (1L << shift)));
+    }
+
+    private void decrement(long index) {
+        int word = (int) (index / COUNTERS_PER_WORD);
+        int shift = shift(index);
+        long current;
+        do {
+            current = words.get(word);
+            long counter = current >>> shift & COUNTER_MASK;
+            if (counter == 0 || counter == COUNTER_MASK) {
+                return;
+            }
+        } while (!words.compareAndSet(word, current, current - (1L << shift)));
+    }
+
+    private static int shift(long index) {
+        return (int) (index % COUNTERS_PER_WORD) * 4;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CountingBloomFilter{entries=%d, capacity=%d, counters=%d, hashes=%d, memory=%dKB, "
+                        + "expectedFpr=%.4f}",
+                entries(), capacity, counters, hashes, memoryBytes() / 1024, expectedFalsePositiveRate());
+    }
+}
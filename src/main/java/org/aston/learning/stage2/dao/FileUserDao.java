@@ -0,0 +1,559 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.ConcurrentUpdateException;
+import org.aston.learning.stage2.exception.DuplicateEmailException;
+import org.aston.learning.stage2.exception.InvalidUserException;
+import org.aston.learning.stage2.exception.UserNotFoundException;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+// Embedded storage for deployments without PostgreSQL. Users live in a memory-mapped UserLog,
+// memory only holds id -> record location and email -> id. Writes are serialized and wait for
+// a group-committed fsync, reads are lock-free.
+public class FileUserDao implements UserDao, AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(FileUserDao.class);
+    private static final long DEFAULT_COMPACTION_THRESHOLD = 64L * 1024 * 1024;
+    private static final Duration DEFAULT_COMPACTION_CHECK = Duration.ofSeconds(30);
+
+    private final Path directory;
+    private final UserLog log;
+    private final ConcurrentNavigableMap<Long, Long> index = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Long> emails = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Object compactionMonitor = new Object();
+    private final long compactionThreshold;
+    private final ScheduledExecutorService compactor;
+
+    private FileUserDao(Path directory, long compactionThreshold) {
+        if (compactionThreshold <= 0) {
+            throw new IllegalArgumentException("Compaction threshold must be positive: " + compactionThreshold);
+        }
+        this.directory = directory;
+        this.compactionThreshold = compactionThreshold;
+
+        long start = System.nanoTime();
+        try {
+            // Assigned before recovery, replay reads earlier records back through it
+            this.log = new UserLog(directory);
+            log.recover(this::replay);
+        } catch (IOException e) {
+            throw new UserServiceException("Failed to open user storage: " + directory, e);
+        }
+        logger.info("User storage opened in {}: {} users, next id {}, recovered in {} ms",
+                directory, index.size(), nextId.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static FileUserDao open(Path directory) {
+        return open(directory, DEFAULT_COMPACTION_THRESHOLD, DEFAULT_COMPACTION_CHECK);
+    }
+
+    // Snapshot and compaction keep the log that has to be replayed on restart bounded. The checks
+    // are scheduled once the DAO is built, the compactor thread must not see it half-constructed
+    public static FileUserDao open(Path directory, long compactionThreshold, Duration compactionCheck) {
+        if (compactionCheck.isNegative() || compactionCheck.isZero()) {
+            throw new IllegalArgumentException("Compaction check interval must be positive: " + compactionCheck);
+        }
+        FileUserDao dao = new FileUserDao(directory, compactionThreshold);
+        long periodMillis = compactionCheck.toMillis();
+        dao.compactor.scheduleWithFixedDelay(dao::compactIfNeeded, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return dao;
+    }
+
+    @Override
+    public User save(User user) throws UserServiceException {
+        return execute("save", () -> {
+            long lsn;
+            writeLock.lock();
+            try {
+                lsn = insert(user);
+            } finally {
+                writeLock.unlock();
+            }
+            log.sync(lsn);
+            logger.info("User saved successfully: {}", user.getEmail());
+            return user;
+        });
+    }
+
+    @Override
+    public BatchSaveResult saveAll(Collection<User> users) throws UserServiceException {
+        return execute("saveAll", () -> {
+            BatchSaveResult result = new BatchSaveResult();
+            long lsn = -1;
+            for (User user : users) {
+                writeLock.lock();
+                try {
+                    lsn = insert(user);
+                    result.addSaved(user);
+                } catch (UserServiceException e) {
+                    result.addFailure(user, e.getMessage());
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            // One fsync for the whole batch
+            log.sync(lsn);
+            logger.info("Batch saved: {} users, {} rejected", result.getSaved().size(), result.getFailures().size());
+            return result;
+        });
+    }
+
+    @Override
+    public Optional<User> findById(Long id) throws UserServiceException {
+        return execute("findById", () -> {
+            Long location = index.get(id);
+            return Optional.ofNullable(location == null ? null : read(id, location, UserRecord::decode));
+        });
+    }
+
+    @Override
+    public List<User> findByIds(Collection<Long> ids) throws UserServiceException {
+        return execute("findByIds", () -> {
+            List<User> users = new ArrayList<>(ids.size());
+            for (Long id : new LinkedHashSet<>(ids)) {
+                Long location = id == null ? null : index.get(id);
+                User user = location == null ? null : read(id, location, UserRecord::decode);
+                if (user != null) {
+                    users.add(user);
+                }
+            }
+            return users;
+        });
+    }
+
+    @Override
+    public List<User> findAll() throws UserServiceException {
+        return execute("findAll", () -> readAll(index.entrySet().iterator(), Integer.MAX_VALUE, UserRecord::decode));
+    }
+
+    @Override
+    public List<User> findAll(int page, int size) throws UserServiceException {
+        return execute("findAllPaged", () -> {
+            Iterator<Map.Entry<Long, Long>> entries = index.entrySet().iterator();
+            // Walks past the skipped ids like OFFSET does, findPageAfter seeks instead
+            for (long skip = (long) page * size; skip > 0 && entries.hasNext(); skip--) {
+                entries.next();
+            }
+            return readAll(entries, size, UserRecord::decode);
+        });
+    }
+
+    @Override
+    public UserPage findPageAfter(Long lastId, int size) throws UserServiceException {
+        return execute("findPageAfter", () -> {
+            Iterator<Map.Entry<Long, Long>> entries = index.tailMap(lastId == null ? 0L : lastId, false)
+                    .entrySet().iterator();
+            List<User> users = readAll(entries, size, UserRecord::decode);
+            Long nextCursor = !users.isEmpty() && users.size() == size && entries.hasNext()
+                    ? users.get(size - 1).getId() : null;
+            return new UserPage(users, nextCursor);
+        });
+    }
+
+    @Override
+    public Stream<User> streamAll() throws UserServiceException {
+        // Weakly consistent, ids written while streaming may or may not show up
+        return index.entrySet().stream()
+                .map(entry -> read(entry.getKey(), entry.getValue(), UserRecord::decode))
+                .filter(Objects::nonNull);
+    }
+
+    @Override
+    public List<UserSummary> findSummaries(int page, int size) throws UserServiceException {
+        return execute("findSummaries", () -> {
+            Iterator<Map.Entry<Long, Long>> entries = index.entrySet().iterator();
+            for (long skip = (long) page * size; skip > 0 && entries.hasNext(); skip--) {
+                entries.next();
+            }
+            return readAll(entries, size, UserRecord::summary);
+        });
+    }
+
+    @Override
+    public List<UserSummary> findSummariesAfter(Long lastId, int size) throws UserServiceException {
+        return execute("findSummariesAfter", () -> readAll(
+                index.tailMap(lastId == null ? 0L : lastId, false).entrySet().iterator(), size, UserRecord::summary));
+    }
+
+    @Override
+    public Stream<UserSummary> streamSummaries() throws UserServiceException {
+        return index.entrySet().stream()
+                .map(entry -> read(entry.getKey(), entry.getValue(), UserRecord::summary))
+                .filter(Objects::nonNull);
+    }
+
+    @Override
+    public User update(User user) throws UserServiceException {
+        return execute("update", () -> {
+            long lsn;
+            writeLock.lock();
+            try {
+                Long location = user.getId() == null ? null : index.get(user.getId());
+                if (location == null) {
+                    throw new UserNotFoundException(user.getId());
+                }
+                ByteBuffer current = log.read(location);
+                long version = UserRecord.version(current);
+                if (user.getVersion() == null || user.getVersion() != version) {
+                    throw new ConcurrentUpdateException("User was modified concurrently: " + user.getId());
+                }
+                user.setVersion(version + 1);
+                try {
+                    lsn = write(user, UserRecord.email(current));
+                } catch (RuntimeException e) {
+                    user.setVersion(version);
+                    throw e;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            log.sync(lsn);
+            logger.info("User updated successfully: {}", user.getEmail());
+            return user;
+        });
+    }
+
+    @Override
+    public Optional<User> updateLocked(Long id, Consumer<User> changes) throws UserServiceException {
+        return execute("updateLocked", () -> {
+            long lsn;
+            User user;
+            writeLock.lock();
+            try {
+                Long location = id == null ? null : index.get(id);
+                if (location == null) {
+                    return Optional.<User>empty();
+                }
+                user = UserRecord.decode(log.read(location));
+                String oldEmail = user.getEmail();
+                long version = user.getVersion();
+                changes.accept(user);
+                user.setId(id);
+                user.setVersion(version + 1);
+                lsn = write(user, oldEmail);
+            } finally {
+                writeLock.unlock();
+            }
+            log.sync(lsn);
+            logger.info("User updated under lock: {}", id);
+            return Optional.of(user);
+        });
+    }
+
+    @Override
+    public void delete(Long id) throws UserServiceException {
+        deleteById(id);
+    }
+
+    @Override
+    public int updateFields(Long id, String name, String email, Integer age) throws UserServiceException {
+        return execute("updateFields", () -> {
+            if (name == null && email == null && age == null) {
+                throw new InvalidUserException("No fields to update for user ID: " + id);
+            }
+            long lsn;
+            writeLock.lock();
+            try {
+                Long location = index.get(id);
+                if (location == null) {
+                    logger.info("User fields updated: id={}, rows=0", id);
+                    return 0;
+                }
+                User user = UserRecord.decode(log.read(location));
+                String oldEmail = user.getEmail();
+                if (name != null) {
+                    user.setName(name);
+                }
+                if (email != null) {
+                    user.setEmail(email);
+                }
+                if (age != null) {
+                    user.setAge(age);
+                }
+                user.setVersion(user.getVersion() + 1);
+                lsn = write(user, oldEmail);
+            } finally {
+                writeLock.unlock();
+            }
+            log.sync(lsn);
+            logger.info("User fields updated: id={}, rows=1", id);
+            return 1;
+        });
+    }
+
+    @Override
+    public int deleteById(Long id) throws UserServiceException {
+        return execute("deleteById", () -> remove(id) != null ? 1 : 0);
+    }
+
+    @Override
+    public Optional<String> deleteReturningEmail(Long id) throws UserServiceException {
+        return execute("deleteReturningEmail", () -> Optional.ofNullable(remove(id)));
+    }
+
+    // The email of the removed user, null if there was none
+    private String remove(Long id) {
+        String email;
+        long lsn;
+        writeLock.lock();
+        try {
+            Long location = index.get(id);
+            if (location == null) {
+                logger.info("User deleted: id={}, rows=0", id);
+                return null;
+            }
+            email = UserRecord.email(log.read(location));
+            log.append(UserRecord.delete(id));
+            lsn = log.appendedLsn();
+            index.remove(id);
+            emails.remove(email, id);
+        } finally {
+            writeLock.unlock();
+        }
+        log.sync(lsn);
+        logger.info("User deleted: id={}, rows=1", id);
+        return email;
+    }
+
+    @Override
+    public boolean existsByEmail(String email) throws UserServiceException {
+        return execute("existsByEmail", () -> email != null && emails.containsKey(email));
+    }
+
+    // Writes a snapshot of all live users and drops the log segments it replaces
+    public void compact() throws UserServiceException {
+        synchronized (compactionMonitor) {
+            long start = System.nanoTime();
+            int generation;
+            long snapshotNextId;
+            writeLock.lock();
+            try {
+                generation = log.roll();
+                snapshotNextId = nextId.get();
+            } finally {
+                writeLock.unlock();
+            }
+
+            // Entries pointing at older segments are exactly the state at the roll, anything
+            // changed since then is in the new log and is replayed on top of the snapshot
+            Relocations relocations = new Relocations();
+            try (UserLog.SnapshotWriter writer = log.newSnapshot(generation)) {
+                writer.append(UserRecord.nextId(snapshotNextId));
+                for (Map.Entry<Long, Long> entry : index.entrySet()) {
+                    long location = entry.getValue();
+                    if (UserLog.isBefore(location, generation)) {
+                        relocations.add(entry.getKey(), location, writer.copy(location));
+                    }
+                }
+                writer.commit();
+            } catch (IOException e) {
+                throw new UserServiceException("User storage compaction failed", e);
+            }
+
+            // Only repoint ids nobody changed in the meantime
+            for (int i = 0; i < relocations.size; i++) {
+                index.replace(relocations.ids[i], relocations.from[i], relocations.to[i]);
+            }
+            log.dropBefore(generation);
+            logger.info("User storage compacted: {} users in snapshot {} in {} ms", relocations.size, generation,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        synchronized (compactionMonitor) {
+            writeLock.lock();
+            try {
+                log.close();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        logger.info("User storage closed: {}", directory);
+    }
+
+    private void compactIfNeeded() {
+        try {
+            if (log.activeSize() >= compactionThreshold) {
+                compact();
+            }
+        } catch (Exception e) {
+            logger.error("Scheduled user storage compaction failed", e);
+        }
+    }
+
+    // Caller holds writeLock
+    private long insert(User user) {
+        if (user.getId() != null) {
+            throw new InvalidUserException("User already has an ID: " + user.getId());
+        }
+        requireFields(user);
+        if (emails.containsKey(user.getEmail())) {
+            throw new DuplicateEmailException(user.getEmail());
+        }
+        // The id is only taken once the record is in the log, a failed append leaves both the
+        // sequence and the caller's user as they were
+        long id = nextId.get();
+        Long version = user.getVersion();
+        user.setId(id);
+        user.setVersion(0L);
+        try {
+            long lsn = write(user, null);
+            nextId.set(id + 1);
+            return lsn;
+        } catch (RuntimeException e) {
+            user.setId(null);
+            user.setVersion(version);
+            throw e;
+        }
+    }
+
+    // Caller holds writeLock, so checking and claiming the email can't race another writer
+    private long write(User user, String oldEmail) {
+        requireFields(user);
+        String email = user.getEmail();
+        Long owner = emails.get(email);
+        if (owner != null && !owner.equals(user.getId())) {
+            throw new DuplicateEmailException(email);
+        }
+
+        long location = log.append(UserRecord.put(user));
+        emails.put(email, user.getId());
+        if (oldEmail != null && !oldEmail.equals(email)) {
+            emails.remove(oldEmail, user.getId());
+        }
+        index.put(user.getId(), location);
+        return log.appendedLsn();
+    }
+
+    private static void requireFields(User user) {
+        if (user.getName() == null || user.getEmail() == null) {
+            throw new InvalidUserException("User name and email are required");
+        }
+    }
+
+    // Rebuilds the indexes from the snapshot and log records, in write order
+    private void replay(long location, ByteBuffer body) {
+        long id = UserRecord.id(body);
+        switch (UserRecord.type(body)) {
+            case UserRecord.PUT -> {
+                Long previous = index.put(id, location);
+                if (previous != null) {
+                    emails.remove(UserRecord.email(log.read(previous)), id);
+                }
+                emails.put(UserRecord.email(body), id);
+                nextId.accumulateAndGet(id + 1, Math::max);
+            }
+            case UserRecord.DELETE -> {
+                Long previous = index.remove(id);
+                if (previous != null) {
+                    emails.remove(UserRecord.email(log.read(previous)), id);
+                }
+                nextId.accumulateAndGet(id + 1, Math::max);
+            }
+            case UserRecord.NEXT_ID -> nextId.accumulateAndGet(id, Math::max);
+            default -> throw new IllegalStateException("Unknown user record type: " + UserRecord.type(body));
+        }
+    }
+
+    private <T> List<T> readAll(Iterator<Map.Entry<Long, Long>> entries, int limit, Function<ByteBuffer, T> decoder) {
+        List<T> rows = new ArrayList<>();
+        while (rows.size() < limit && entries.hasNext()) {
+            Map.Entry<Long, Long> entry = entries.next();
+            T row = read(entry.getKey(), entry.getValue(), decoder);
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    // A location can go stale when compaction moves the record, the index then has the new one
+    private <T> T read(long id, long location, Function<ByteBuffer, T> decoder) {
+        while (true) {
+            ByteBuffer body = log.read(location);
+            if (body != null) {
+                return decoder.apply(body);
+            }
+            Long current = index.get(id);
+            if (current == null) {
+                return null;
+            }
+            location = current;
+        }
+    }
+
+    private <T> T execute(String operation, Supplier<T> action) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = action.get();
+            success = true;
+            return result;
+        } catch (UserServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new UserServiceException("Storage operation failed", e);
+        } finally {
+            MetricsRegistry.operation("dao." + operation).record(System.nanoTime() - start, success);
+        }
+    }
+
+    private static final class Relocations {
+        private long[] ids = new long[1024];
+        private long[] from = new long[1024];
+        private long[] to = new long[1024];
+        private int size;
+
+        void add(long id, long oldLocation, long newLocation) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                from = Arrays.copyOf(from, size * 2);
+                to = Arrays.copyOf(to, size * 2);
+            }
+            ids[size] = id;
+            from[size] = oldLocation;
+            to[size] = newLocation;
+            size++;
+        }
+    }
+}
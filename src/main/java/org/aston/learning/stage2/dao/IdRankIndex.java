@@ -0,0 +1,110 @@
+package org.aston.learning.stage2.dao;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Fenwick tree over the id space with one count per live id. It gives the k-th live id
+// and the next live id after a given one in O(log n), so pages come out in id order
+// without sorting or copying the users. Updates are atomic adds and commute, so
+// writers only share the lock with the occasional doubling of the tree.
+final class IdRankIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final ReentrantReadWriteLock growLock = new ReentrantReadWriteLock();
+    private volatile AtomicIntegerArray tree = new AtomicIntegerArray(INITIAL_CAPACITY + 1);
+
+    void add(long id) {
+        update(id, 1);
+    }
+
+    void remove(long id) {
+        update(id, -1);
+    }
+
+    // Smallest live id with k live ids at or below it, -1 if there are fewer than k
+    long select(long k) {
+        if (k <= 0) {
+            return -1;
+        }
+        growLock.readLock().lock();
+        try {
+            AtomicIntegerArray current = tree;
+            int capacity = current.length() - 1;
+            int position = 0;
+            long remaining = k;
+            for (int step = capacity; step > 0; step >>= 1) {
+                int next = position + step;
+                if (next <= capacity) {
+                    int count = current.get(next);
+                    if (count < remaining) {
+                        position = next;
+                        remaining -= count;
+                    }
+                }
+            }
+            return position < capacity ? position + 1 : -1;
+        } finally {
+            growLock.readLock().unlock();
+        }
+    }
+
+    // Number of live ids at or below the id
+    long rank(long id) {
+        growLock.readLock().lock();
+        try {
+            AtomicIntegerArray current = tree;
+            long count = 0;
+            for (int i = (int) Math.min(id, current.length() - 1); i > 0; i -= i & -i) {
+                count += current.get(i);
+            }
+            return count;
+        } finally {
+            growLock.readLock().unlock();
+        }
+    }
+
+    // First live id after the given one, -1 if there is none
+    long next(long id) {
+        return select(rank(id) + 1);
+    }
+
+    private void update(long id, int delta) {
+        if (id <= 0 || id > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Id out of range for the in-memory index: " + id);
+        }
+        if (id >= tree.length()) {
+            grow(id);
+        }
+        growLock.readLock().lock();
+        try {
+            AtomicIntegerArray current = tree;
+            for (int i = (int) id; i < current.length(); i += i & -i) {
+                current.addAndGet(i, delta);
+            }
+        } finally {
+            growLock.readLock().unlock();
+        }
+    }
+
+    // With a power of two capacity n, the doubled tree keeps nodes 1..n, the new node 2n
+    // covers the whole old range and everything in between covers ids nobody has used yet
+    private void grow(long id) {
+        growLock.writeLock().lock();
+        try {
+            AtomicIntegerArray current = tree;
+            while (id >= current.length()) {
+                int capacity = current.length() - 1;
+                AtomicIntegerArray doubled = new AtomicIntegerArray(capacity * 2 + 1);
+                for (int i = 1; i <= capacity; i++) {
+                    doubled.set(i, current.get(i));
+                }
+                doubled.set(capacity * 2, current.get(capacity));
+                current = doubled;
+            }
+            tree = current;
+        } finally {
+            growLock.writeLock().unlock();
+        }
+    }
+}
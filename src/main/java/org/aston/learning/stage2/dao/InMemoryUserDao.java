@@ -0,0 +1,387 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.ConcurrentUpdateException;
+import org.aston.learning.stage2.exception.DuplicateEmailException;
+import org.aston.learning.stage2.exception.InvalidUserException;
+import org.aston.learning.stage2.exception.UserNotFoundException;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+// Non-persistent storage for load tests and a cache-only tier. Users are striped by id over
+// LongUserMaps, each with its own writer lock, so findById is a wait-free probe. The email index
+// enforces User.email uniqueness and IdRankIndex serves pages in id order.
+public class InMemoryUserDao implements UserDao {
+    private static final Logger logger = LogManager.getLogger(InMemoryUserDao.class);
+    private static final int STRIPES = 16;
+
+    private final LongUserMap[] stripes = new LongUserMap[STRIPES];
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final ConcurrentMap<String, Long> emails = new ConcurrentHashMap<>();
+    private final IdRankIndex ids = new IdRankIndex();
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    public InMemoryUserDao() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LongUserMap();
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public User save(User user) throws UserServiceException {
+        return execute("save", () -> {
+            insert(user);
+            logger.debug("User saved successfully: {}", user.getEmail());
+            return user;
+        });
+    }
+
+    @Override
+    public BatchSaveResult saveAll(Collection<User> users) throws UserServiceException {
+        return execute("saveAll", () -> {
+            BatchSaveResult result = new BatchSaveResult();
+            for (User user : users) {
+                try {
+                    insert(user);
+                    result.addSaved(user);
+                } catch (UserServiceException e) {
+                    result.addFailure(user, e.getMessage());
+                }
+            }
+            logger.info("Batch saved: {} users, {} rejected", result.getSaved().size(), result.getFailures().size());
+            return result;
+        });
+    }
+
+    @Override
+    public Optional<User> findById(Long id) throws UserServiceException {
+        return execute("findById", () -> {
+            User user = get(id);
+            return user == null ? Optional.empty() : Optional.of(copyOf(user));
+        });
+    }
+
+    @Override
+    public List<User> findByIds(Collection<Long> ids) throws UserServiceException {
+        return execute("findByIds", () -> {
+            List<User> users = new ArrayList<>(ids.size());
+            for (Long id : new LinkedHashSet<>(ids)) {
+                User user = get(id);
+                if (user != null) {
+                    users.add(copyOf(user));
+                }
+            }
+            return users;
+        });
+    }
+
+    @Override
+    public List<User> findAll() throws UserServiceException {
+        return execute("findAll", () -> collect(ids.select(1), Integer.MAX_VALUE, InMemoryUserDao::copyOf));
+    }
+
+    @Override
+    public List<User> findAll(int page, int size) throws UserServiceException {
+        return execute("findAllPaged", () -> {
+            // Jumps straight to the first id of the page instead of walking the skipped ones
+            return collect(ids.select((long) page * size + 1), size, InMemoryUserDao::copyOf);
+        });
+    }
+
+    @Override
+    public UserPage findPageAfter(Long lastId, int size) throws UserServiceException {
+        return execute("findPageAfter", () -> {
+            List<User> users = collect(ids.next(lastId == null ? 0L : lastId), size, InMemoryUserDao::copyOf);
+            Long nextCursor = users.size() == size && size > 0 && ids.next(users.get(size - 1).getId()) > 0
+                    ? users.get(size - 1).getId() : null;
+            return new UserPage(users, nextCursor);
+        });
+    }
+
+    @Override
+    public Stream<User> streamAll() throws UserServiceException {
+        // Lazy walk in id order, users saved or deleted meanwhile may or may not show up
+        return Stream.iterate(ids.select(1), id -> id > 0, ids::next)
+                .map(this::get)
+                .filter(Objects::nonNull)
+                .map(InMemoryUserDao::copyOf);
+    }
+
+    @Override
+    public List<UserSummary> findSummaries(int page, int size) throws UserServiceException {
+        return execute("findSummaries", () -> collect(ids.select((long) page * size + 1), size, InMemoryUserDao::summaryOf));
+    }
+
+    @Override
+    public List<UserSummary> findSummariesAfter(Long lastId, int size) throws UserServiceException {
+        return execute("findSummariesAfter", () -> collect(ids.next(lastId == null ? 0L : lastId), size, InMemoryUserDao::summaryOf));
+    }
+
+    @Override
+    public Stream<UserSummary> streamSummaries() throws UserServiceException {
+        return Stream.iterate(ids.select(1), id -> id > 0, ids::next)
+                .map(this::get)
+                .filter(Objects::nonNull)
+                .map(InMemoryUserDao::summaryOf);
+    }
+
+    @Override
+    public User update(User user) throws UserServiceException {
+        return execute("update", () -> {
+            Long id = user.getId();
+            if (id == null || id <= 0) {
+                throw new UserNotFoundException(id);
+            }
+            requireFields(user);
+            ReentrantLock lock = lockFor(id);
+            lock.lock();
+            try {
+                User current = stripeFor(id).get(id);
+                if (current == null) {
+                    throw new UserNotFoundException(id);
+                }
+                if (!Objects.equals(current.getVersion(), user.getVersion())) {
+                    throw new ConcurrentUpdateException("User was modified concurrently: " + id);
+                }
+                User updated = copyOf(user);
+                updated.setVersion(current.getVersion() + 1);
+                replace(current, updated);
+                user.setVersion(updated.getVersion());
+            } finally {
+                lock.unlock();
+            }
+            logger.debug("User updated successfully: {}", user.getEmail());
+            return user;
+        });
+    }
+
+    @Override
+    public Optional<User> updateLocked(Long id, Consumer<User> changes) throws UserServiceException {
+        return execute("updateLocked", () -> {
+            if (id == null || id <= 0) {
+                return Optional.empty();
+            }
+            ReentrantLock lock = lockFor(id);
+            lock.lock();
+            try {
+                User current = stripeFor(id).get(id);
+                if (current == null) {
+                    return Optional.empty();
+                }
+                User updated = copyOf(current);
+                changes.accept(updated);
+                requireFields(updated);
+                updated.setId(id);
+                updated.setVersion(current.getVersion() + 1);
+                replace(current, updated);
+                return Optional.of(copyOf(updated));
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    @Override
+    public void delete(Long id) throws UserServiceException {
+        deleteById(id);
+    }
+
+    @Override
+    public int updateFields(Long id, String name, String email, Integer age) throws UserServiceException {
+        return execute("updateFields", () -> {
+            if (name == null && email == null && age == null) {
+                throw new InvalidUserException("No fields to update for user ID: " + id);
+            }
+            if (id == null || id <= 0) {
+                return 0;
+            }
+            ReentrantLock lock = lockFor(id);
+            lock.lock();
+            try {
+                User current = stripeFor(id).get(id);
+                if (current == null) {
+                    return 0;
+                }
+                User updated = copyOf(current);
+                if (name != null) {
+                    updated.setName(name);
+                }
+                if (email != null) {
+                    updated.setEmail(email);
+                }
+                if (age != null) {
+                    updated.setAge(age);
+                }
+                updated.setVersion(current.getVersion() + 1);
+                replace(current, updated);
+                return 1;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    @Override
+    public int deleteById(Long id) throws UserServiceException {
+        return execute("deleteById", () -> remove(id) != null ? 1 : 0);
+    }
+
+    @Override
+    public Optional<String> deleteReturningEmail(Long id) throws UserServiceException {
+        return execute("deleteReturningEmail", () -> Optional.ofNullable(remove(id)));
+    }
+
+    @Override
+    public boolean existsByEmail(String email) throws UserServiceException {
+        return execute("existsByEmail", () -> email != null && emails.containsKey(email));
+    }
+
+    public int size() {
+        int size = 0;
+        for (LongUserMap stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    // The email of the removed user, null if there was none
+    private String remove(Long id) {
+        if (id == null || id <= 0) {
+            return null;
+        }
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            User removed = stripeFor(id).remove(id);
+            if (removed == null) {
+                return null;
+            }
+            ids.remove(id);
+            emails.remove(removed.getEmail(), id);
+            return removed.getEmail();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void insert(User user) {
+        if (user.getId() != null) {
+            throw new InvalidUserException("User already has an ID: " + user.getId());
+        }
+        requireFields(user);
+        long id = nextId.getAndIncrement();
+        // Claiming the email first makes the unique check atomic across stripes
+        if (emails.putIfAbsent(user.getEmail(), id) != null) {
+            throw new DuplicateEmailException(user.getEmail());
+        }
+        user.setId(id);
+        user.setVersion(0L);
+
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try {
+            stripeFor(id).put(id, copyOf(user));
+            ids.add(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the stripe lock of the user
+    private void replace(User current, User updated) {
+        Long id = current.getId();
+        String oldEmail = current.getEmail();
+        String newEmail = updated.getEmail();
+        if (!newEmail.equals(oldEmail)) {
+            Long owner = emails.putIfAbsent(newEmail, id);
+            if (owner != null && !owner.equals(id)) {
+                throw new DuplicateEmailException(newEmail);
+            }
+        }
+        if (updated.getCreatedAt() == null) {
+            updated.setCreatedAt(current.getCreatedAt());
+        }
+        stripeFor(id).put(id, updated);
+        if (!newEmail.equals(oldEmail)) {
+            emails.remove(oldEmail, id);
+        }
+    }
+
+    private <T> List<T> collect(long firstId, int limit, Function<User, T> mapper) {
+        List<T> rows = new ArrayList<>(Math.min(limit, 64));
+        for (long id = firstId; id > 0 && rows.size() < limit; id = ids.next(id)) {
+            User user = get(id);
+            if (user != null) {
+                rows.add(mapper.apply(user));
+            }
+        }
+        return rows;
+    }
+
+    private User get(Long id) {
+        return id == null || id <= 0 ? null : stripeFor(id).get(id);
+    }
+
+    private LongUserMap stripeFor(long id) {
+        return stripes[(int) (id & (STRIPES - 1))];
+    }
+
+    private ReentrantLock lockFor(long id) {
+        return locks[(int) (id & (STRIPES - 1))];
+    }
+
+    private static void requireFields(User user) {
+        if (user.getName() == null || user.getEmail() == null) {
+            throw new InvalidUserException("User name and email are required");
+        }
+    }
+
+    // The dao.* metrics of the other storages, so a load run against memory compares with theirs
+    private static <T> T execute(String operation, Supplier<T> action) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = action.get();
+            success = true;
+            return result;
+        } finally {
+            MetricsRegistry.operation("dao." + operation).record(System.nanoTime() - start, success);
+        }
+    }
+
+    private static UserSummary summaryOf(User user) {
+        Integer age = user.getAge();
+        return new UserSummary(user.getId(), user.getName(), user.getEmail(), age == null ? UserSummary.NO_AGE : age);
+    }
+
+    // Stored users are never handed out, callers get their own copies
+    private static User copyOf(User user) {
+        // No-arg constructor, the copying constructor would read the clock for createdAt
+        User copy = new User();
+        copy.setId(user.getId());
+        copy.setName(user.getName());
+        copy.setEmail(user.getEmail());
+        copy.setAge(user.getAge());
+        copy.setCreatedAt(user.getCreatedAt());
+        copy.setVersion(user.getVersion());
+        return copy;
+    }
+}
@@ -0,0 +1,148 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.entity.User;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// Open-addressing id -> User map with linear probing over a primitive long[] of keys.
+// One writer at a time (the caller locks), readers never block or retry: they probe
+// a volatile table whose slots are published value first, key last, with release stores.
+final class LongUserMap {
+    private static final long EMPTY = 0L;
+    private static final long TOMBSTONE = -1L;
+    private static final int MIN_CAPACITY = 16;
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(User[].class);
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private volatile int size;
+    private int used;
+
+    // Ids are positive, 0 and -1 mark free and deleted slots
+    User get(long id) {
+        Table current = table;
+        long[] keys = current.keys;
+        int index = current.slot(id);
+        for (int probes = 0; probes <= current.mask; probes++) {
+            long key = (long) KEYS.getAcquire(keys, index);
+            if (key == id) {
+                User user = (User) VALUES.getAcquire(current.values, index);
+                // The slot may have been freed and reused for another id since the key was read
+                return user != null && user.getId() == id ? user : null;
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+            index = (index + 1) & current.mask;
+        }
+        return null;
+    }
+
+    // Caller holds the writer lock, the stored user must not be modified afterwards
+    User put(long id, User user) {
+        Table current = table;
+        int index = current.slot(id);
+        int free = -1;
+        for (int probes = 0; probes <= current.mask; probes++) {
+            long key = current.keys[index];
+            if (key == id) {
+                User previous = current.values[index];
+                VALUES.setRelease(current.values, index, user);
+                return previous;
+            }
+            if (key == EMPTY) {
+                break;
+            }
+            if (key == TOMBSTONE && free < 0) {
+                free = index;
+            }
+            index = (index + 1) & current.mask;
+        }
+
+        if (free < 0) {
+            if ((used + 1) * 2 > current.keys.length) {
+                current = resize();
+                index = current.slot(id);
+                while (current.keys[index] != EMPTY) {
+                    index = (index + 1) & current.mask;
+                }
+            }
+            free = index;
+            used++;
+        }
+        VALUES.setRelease(current.values, free, user);
+        KEYS.setRelease(current.keys, free, id);
+        size++;
+        return null;
+    }
+
+    // Caller holds the writer lock
+    User remove(long id) {
+        Table current = table;
+        int index = current.slot(id);
+        for (int probes = 0; probes <= current.mask; probes++) {
+            long key = current.keys[index];
+            if (key == id) {
+                User previous = current.values[index];
+                KEYS.setRelease(current.keys, index, TOMBSTONE);
+                VALUES.setRelease(current.values, index, null);
+                size--;
+                return previous;
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+            index = (index + 1) & current.mask;
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Rehashes live entries into a fresh table, dropping tombstones. Readers still
+    // probing the old table see it as of the moment the new one was published.
+    private Table resize() {
+        Table old = table;
+        int capacity = MIN_CAPACITY;
+        while (capacity < (size + 1) * 4) {
+            capacity <<= 1;
+        }
+        Table resized = new Table(capacity);
+        for (int i = 0; i < old.keys.length; i++) {
+            long key = old.keys[i];
+            if (key != EMPTY && key != TOMBSTONE) {
+                int index = resized.slot(key);
+                while (resized.keys[index] != EMPTY) {
+                    index = (index + 1) & resized.mask;
+                }
+                resized.keys[index] = key;
+                resized.values[index] = old.values[i];
+            }
+        }
+        used = size;
+        table = resized;
+        return resized;
+    }
+
+    private static final class Table {
+        private final long[] keys;
+        private final User[] values;
+        private final int mask;
+        private final int shift;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new User[capacity];
+            this.mask = capacity - 1;
+            this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        // Fibonacci hashing spreads the strided ids each stripe receives
+        int slot(long id) {
+            return (int) ((id * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.util.HibernateUtil;
+import org.hibernate.SessionFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Chooses the database for each DAO call. Writes go to the primary, reads are spread over the
+// replicas. A thread that has just written keeps reading from the primary for the stickiness
+// window, so it sees its own writes even while the replicas lag behind.
+//
+// The window belongs to the thread that wrote. Work it hands to other threads does not inherit it:
+// calls run by AsyncUserServiceImpl on its executor, and lookups that join a SingleFlight query
+// another thread started, may read from a replica that has not seen the write yet. Reads that must
+// see every committed write go through readFromPrimary().
+public class SessionRouter {
+    private static final Logger logger = LogManager.getLogger(SessionRouter.class);
+    public static final int PRIMARY = -1;
+    // Nesting depth of readFromPrimary on the thread, shared by all routers, null outside of it
+    private static final ThreadLocal<int[]> primaryScope = new ThreadLocal<>();
+    // Latest end of a read-your-writes window any router opened on the thread, for the layers above
+    // the routers. A router itself only sticks to its own primary
+    private static final ThreadLocal<Long> stickyUntil = new ThreadLocal<>();
+
+    public enum Strategy { ROUND_ROBIN, LEAST_LOADED }
+
+    private final Supplier<SessionFactory> primary;
+    private final List<Supplier<SessionFactory>> replicas;
+    private final Strategy strategy;
+    private final long stickyNanos;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final AtomicIntegerArray inFlight;
+    private final LongAdder[] replicaReads;
+    private final LongAdder primaryReads = new LongAdder();
+    private final LongAdder stickyReads = new LongAdder();
+    private final ThreadLocal<Long> lastWrite = new ThreadLocal<>();
+
+    public SessionRouter(Supplier<SessionFactory> primary) {
+        this(primary, List.of(), Strategy.ROUND_ROBIN, 0L, TimeUnit.MILLISECONDS);
+    }
+
+    public SessionRouter(Supplier<SessionFactory> primary, List<Supplier<SessionFactory>> replicas,
+                         Strategy strategy, long stickiness, TimeUnit unit) {
+        this.primary = primary;
+        this.replicas = List.copyOf(replicas);
+        this.strategy = strategy;
+        this.stickyNanos = unit.toNanos(stickiness);
+        this.inFlight = new AtomicIntegerArray(this.replicas.size());
+        this.replicaReads = new LongAdder[this.replicas.size()];
+        for (int i = 0; i < replicaReads.length; i++) {
+            replicaReads[i] = new LongAdder();
+        }
+    }
+
+    // -Duser.dao.replicas=url1,url2 [-Duser.dao.routing=round_robin|least_loaded -Duser.dao.stickyMillis=1000]
+    public static SessionRouter fromSystemProperties() {
+        int replicaCount = HibernateUtil.getReplicaUrls().size();
+        if (replicaCount == 0) {
+            return new SessionRouter(HibernateUtil::getSessionFactory);
+        }
+        List<Supplier<SessionFactory>> replicas = new ArrayList<>(replicaCount);
+        for (int i = 0; i < replicaCount; i++) {
+            int index = i;
+            replicas.add(() -> HibernateUtil.getReplicaSessionFactories().get(index));
+        }
+        Strategy strategy = Strategy.valueOf(System.getProperty("user.dao.routing", "round_robin").toUpperCase());
+        long stickyMillis = Long.getLong("user.dao.stickyMillis", 1000L);
+        logger.info("Routing reads over {} replicas: strategy={}, read-your-writes window={}ms",
+                replicaCount, strategy, stickyMillis);
+        return new SessionRouter(HibernateUtil::getSessionFactory, replicas, strategy, stickyMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public SessionFactory primary() {
+        return primary.get();
+    }
+
+    // Called after a committed write, starts the read-your-writes window of the thread
+    public void recordWrite() {
+        if (stickyNanos > 0 && !replicas.isEmpty()) {
+            long now = System.nanoTime();
+            lastWrite.set(now);
+            Long until = stickyUntil.get();
+            if (until == null || now + stickyNanos - until > 0) {
+                stickyUntil.set(now + stickyNanos);
+            }
+        }
+    }
+
+    // Reads started by the action go to the primary of every router without opening a read-your-writes
+    // window: version reads before an optimistic update, rebuilds of indexes kept next to the database.
+    // Streams are routed when they are opened, so one opened inside keeps reading from the primary
+    public static <T> T readFromPrimary(Supplier<T> action) {
+        int[] depth = primaryScope.get();
+        if (depth == null) {
+            depth = new int[1];
+            primaryScope.set(depth);
+        }
+        depth[0]++;
+        try {
+            return action.get();
+        } finally {
+            if (--depth[0] == 0) {
+                primaryScope.remove();
+            }
+        }
+    }
+
+    // True while the thread's reads go to the primary, inside readFromPrimary or the read-your-writes
+    // window of a write. Anything read from a replica before then may not have seen that write
+    public static boolean isRoutedToPrimary() {
+        if (primaryScope.get() != null) {
+            return true;
+        }
+        Long until = stickyUntil.get();
+        if (until == null) {
+            return false;
+        }
+        if (System.nanoTime() - until < 0) {
+            return true;
+        }
+        stickyUntil.remove();
+        return false;
+    }
+
+    // Route for a read, to be handed back to sessionFactory(route) and releaseRead(route)
+    public int acquireRead() {
+        if (replicas.isEmpty() || primaryScope.get() != null) {
+            primaryReads.increment();
+            return PRIMARY;
+        }
+        Long writtenAt = lastWrite.get();
+        if (writtenAt != null) {
+            if (System.nanoTime() - writtenAt < stickyNanos) {
+                stickyReads.increment();
+                return PRIMARY;
+            }
+            lastWrite.remove();
+        }
+
+        int route = strategy == Strategy.LEAST_LOADED ? leastLoaded() : roundRobin();
+        inFlight.incrementAndGet(route);
+        replicaReads[route].increment();
+        return route;
+    }
+
+    public SessionFactory sessionFactory(int route) {
+        return route == PRIMARY ? primary.get() : replicas.get(route).get();
+    }
+
+    public void releaseRead(int route) {
+        if (route != PRIMARY) {
+            inFlight.decrementAndGet(route);
+        }
+    }
+
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    public long getReplicaReads(int route) {
+        return replicaReads[route].sum();
+    }
+
+    public long getPrimaryReads() {
+        return primaryReads.sum() + stickyReads.sum();
+    }
+
+    private int roundRobin() {
+        return Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+    }
+
+    // Fewest reads in flight, ties broken by a rotating start so idle replicas share the load
+    private int leastLoaded() {
+        int size = replicas.size();
+        int start = Math.floorMod(nextReplica.getAndIncrement(), size);
+        int best = start;
+        int bestLoad = inFlight.get(start);
+        for (int i = 1; i < size && bestLoad > 0; i++) {
+            int candidate = (start + i) % size;
+            int load = inFlight.get(candidate);
+            if (load < bestLoad) {
+                best = candidate;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder replicaStats = new StringBuilder();
+        for (int i = 0; i < replicaReads.length; i++) {
+            replicaStats.append(i == 0 ? "" : ", ").append(replicaReads[i].sum());
+        }
+        return String.format("SessionRouter{strategy=%s, primaryReads=%d, stickyReads=%d, replicaReads=[%s]}",
+                strategy, primaryReads.sum(), stickyReads.sum(), replicaStats);
+    }
+}
@@ -0,0 +1,532 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.DuplicateEmailException;
+import org.aston.learning.stage2.exception.InvalidUserException;
+import org.aston.learning.stage2.exception.UserNotFoundException;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Spreads users over N shard DAOs, each with its own database and id sequence. The global id is
+// localId * N + shard, so the shard of a user follows from its id alone, ids stay unique without
+// coordination and the id order of every shard is also its share of the global id order.
+// New users are placed by a hash of their email. Changing the number of shards needs a migration.
+// Emails are unique per shard in the database and across shards through an in-memory routing index
+// (email -> global id) rebuilt from the shards on startup, so one process owns a set of shards.
+public class ShardedUserDao implements UserDao, AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(ShardedUserDao.class);
+    // Owner of an email whose user is still being inserted
+    private static final long PENDING = 0L;
+
+    private final List<UserDao> shards;
+    private final int shardCount;
+    private final ConcurrentMap<String, Long> emails = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public ShardedUserDao(List<UserDao> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = List.copyOf(shards);
+        this.shardCount = this.shards.size();
+        rebuildEmailIndex();
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public int shardOf(long id) {
+        return (int) (id % shardCount);
+    }
+
+    @Override
+    public User save(User user) throws UserServiceException {
+        int shard = placementOf(user.getEmail());
+        // Any owner is a conflict here, another save's PENDING claim included, or its failure would
+        // release a claim this save relies on
+        if (emails.putIfAbsent(user.getEmail(), PENDING) != null) {
+            throw new DuplicateEmailException(user.getEmail());
+        }
+        try {
+            User savedUser = shards.get(shard).save(user);
+            toGlobal(shard, savedUser);
+            emails.replace(savedUser.getEmail(), PENDING, savedUser.getId());
+            return savedUser;
+        } catch (RuntimeException e) {
+            emails.remove(user.getEmail(), PENDING);
+            throw e;
+        }
+    }
+
+    @Override
+    public BatchSaveResult saveAll(Collection<User> users) throws UserServiceException {
+        BatchSaveResult result = new BatchSaveResult();
+        List<List<User>> batches = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            batches.add(new ArrayList<>());
+        }
+        for (User user : users) {
+            if (user.getEmail() != null && emails.putIfAbsent(user.getEmail(), PENDING) == null) {
+                batches.get(placementOf(user.getEmail())).add(user);
+            } else {
+                result.addFailure(user, "User with this email already exists: " + user.getEmail());
+            }
+        }
+
+        List<BatchSaveResult> shardResults = scatter(shard -> batches.get(shard).isEmpty()
+                ? new BatchSaveResult() : saveBatch(shard, batches.get(shard)));
+        for (BatchSaveResult shardResult : shardResults) {
+            result.merge(shardResult);
+        }
+        logger.info("Batch saved across {} shards: {} users, {} rejected",
+                shardCount, result.getSaved().size(), result.getFailures().size());
+        return result;
+    }
+
+    @Override
+    public Optional<User> findById(Long id) throws UserServiceException {
+        if (id == null || id <= 0) {
+            return Optional.empty();
+        }
+        int shard = shardOf(id);
+        return shards.get(shard).findById(localId(id)).map(user -> toGlobal(shard, user));
+    }
+
+    @Override
+    public List<User> findByIds(Collection<Long> ids) throws UserServiceException {
+        Set<Long> distinctIds = new LinkedHashSet<>(ids);
+        List<List<Long>> localIds = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            localIds.add(new ArrayList<>());
+        }
+        for (Long id : distinctIds) {
+            if (id != null && id > 0) {
+                localIds.get(shardOf(id)).add(localId(id));
+            }
+        }
+
+        Map<Long, User> found = new HashMap<>(distinctIds.size() * 2);
+        List<List<User>> shardUsers = scatter(shard -> localIds.get(shard).isEmpty()
+                ? List.<User>of() : globalUsers(shard, shards.get(shard).findByIds(localIds.get(shard))));
+        for (List<User> users : shardUsers) {
+            for (User user : users) {
+                found.put(user.getId(), user);
+            }
+        }
+
+        List<User> users = new ArrayList<>(found.size());
+        for (Long id : distinctIds) {
+            User user = found.get(id);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> findAll() throws UserServiceException {
+        return merge(scatter(shard -> globalUsers(shard, shards.get(shard).findAll())), User::getId, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<User> findAll(int page, int size) throws UserServiceException {
+        // The first (page + 1) * size users of every shard contain the page, merged by id
+        int window = Math.multiplyExact(page + 1, size);
+        List<User> merged = merge(scatter(shard -> globalUsers(shard, shards.get(shard).findAll(0, window))),
+                User::getId, window);
+        int from = Math.min(page * size, merged.size());
+        return new ArrayList<>(merged.subList(from, merged.size()));
+    }
+
+    @Override
+    public UserPage findPageAfter(Long lastId, int size) throws UserServiceException {
+        // Every shard seeks past its own part of the cursor, one page each is enough for the merge
+        List<UserPage> pages = scatter(shard -> shards.get(shard).findPageAfter(localCursor(shard, lastId), size));
+        List<List<User>> shardUsers = new ArrayList<>(shardCount);
+        boolean more = false;
+        for (int shard = 0; shard < shardCount; shard++) {
+            shardUsers.add(globalUsers(shard, new ArrayList<>(pages.get(shard).getUsers())));
+            more |= pages.get(shard).hasNext();
+        }
+        List<User> merged = merge(shardUsers, User::getId, Integer.MAX_VALUE);
+        if (merged.size() <= size && !more) {
+            return new UserPage(merged, null);
+        }
+        List<User> page = new ArrayList<>(merged.subList(0, Math.min(size, merged.size())));
+        return new UserPage(page, page.isEmpty() ? null : page.get(page.size() - 1).getId());
+    }
+
+    @Override
+    public Stream<User> streamAll() throws UserServiceException {
+        return mergeStreams(shard -> shards.get(shard).streamAll().map(user -> toGlobal(shard, user)), User::getId);
+    }
+
+    @Override
+    public List<UserSummary> findSummaries(int page, int size) throws UserServiceException {
+        int window = Math.multiplyExact(page + 1, size);
+        List<UserSummary> merged = merge(
+                scatter(shard -> globalSummaries(shard, shards.get(shard).findSummaries(0, window))),
+                UserSummary::id, window);
+        int from = Math.min(page * size, merged.size());
+        return new ArrayList<>(merged.subList(from, merged.size()));
+    }
+
+    @Override
+    public List<UserSummary> findSummariesAfter(Long lastId, int size) throws UserServiceException {
+        return merge(scatter(shard -> globalSummaries(shard,
+                shards.get(shard).findSummariesAfter(localCursor(shard, lastId), size))), UserSummary::id, size);
+    }
+
+    @Override
+    public Stream<UserSummary> streamSummaries() throws UserServiceException {
+        return mergeStreams(shard -> shards.get(shard).streamSummaries().map(summary -> globalSummary(shard, summary)),
+                UserSummary::id);
+    }
+
+    @Override
+    public User update(User user) throws UserServiceException {
+        Long id = user.getId();
+        if (id == null || id <= 0) {
+            throw new UserNotFoundException(id);
+        }
+        int shard = shardOf(id);
+        EmailClaim claim = claimChangedEmail(shard, id, user.getEmail());
+        boolean success = false;
+        user.setId(localId(id));
+        try {
+            User updatedUser = shards.get(shard).update(user);
+            updatedUser.setId(id);
+            success = true;
+            return updatedUser;
+        } finally {
+            user.setId(id);
+            settle(claim, id, success);
+        }
+    }
+
+    @Override
+    public Optional<User> updateLocked(Long id, Consumer<User> changes) throws UserServiceException {
+        if (id == null || id <= 0) {
+            return Optional.empty();
+        }
+        int shard = shardOf(id);
+        // The new email is claimed from inside the locked transaction, a taken one rolls it back
+        EmailClaim[] claim = new EmailClaim[1];
+        boolean success = false;
+        try {
+            Optional<User> updatedUser = shards.get(shard).updateLocked(localId(id), user -> {
+                String oldEmail = user.getEmail();
+                user.setId(id);
+                changes.accept(user);
+                user.setId(localId(id));
+                if (user.getEmail() != null && !user.getEmail().equals(oldEmail)) {
+                    claimEmail(user.getEmail(), id);
+                    claim[0] = new EmailClaim(oldEmail, user.getEmail());
+                }
+            });
+            success = true;
+            return updatedUser.map(user -> toGlobal(shard, user));
+        } finally {
+            settle(claim[0], id, success);
+        }
+    }
+
+    @Override
+    public void delete(Long id) throws UserServiceException {
+        deleteById(id);
+    }
+
+    @Override
+    public int updateFields(Long id, String name, String email, Integer age) throws UserServiceException {
+        if (name == null && email == null && age == null) {
+            throw new InvalidUserException("No fields to update for user ID: " + id);
+        }
+        if (id == null || id <= 0) {
+            return 0;
+        }
+        int shard = shardOf(id);
+        EmailClaim claim = claimChangedEmail(shard, id, email);
+        boolean success = false;
+        try {
+            int updated = shards.get(shard).updateFields(localId(id), name, email, age);
+            success = updated > 0;
+            return updated;
+        } finally {
+            settle(claim, id, success);
+        }
+    }
+
+    @Override
+    public int deleteById(Long id) throws UserServiceException {
+        return deleteReturningEmail(id).isPresent() ? 1 : 0;
+    }
+
+    // The shard reports the email the row had when it went. A read before the delete could miss
+    // a change of email in between and leave the new one in the routing index
+    @Override
+    public Optional<String> deleteReturningEmail(Long id) throws UserServiceException {
+        if (id == null || id <= 0) {
+            return Optional.empty();
+        }
+        Optional<String> email = shards.get(shardOf(id)).deleteReturningEmail(localId(id));
+        email.ifPresent(deleted -> emails.remove(deleted, id));
+        return email;
+    }
+
+    @Override
+    public boolean existsByEmail(String email) throws UserServiceException {
+        // The routing index knows every email of every shard, including ones still being inserted
+        return email != null && emails.containsKey(email);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private BatchSaveResult saveBatch(int shard, List<User> batch) {
+        BatchSaveResult shardResult;
+        try {
+            shardResult = shards.get(shard).saveAll(batch);
+        } catch (RuntimeException e) {
+            for (User user : batch) {
+                emails.remove(user.getEmail(), PENDING);
+            }
+            throw e;
+        }
+        for (User user : shardResult.getSaved()) {
+            toGlobal(shard, user);
+            emails.replace(user.getEmail(), PENDING, user.getId());
+        }
+        for (BatchSaveResult.Failure failure : shardResult.getFailures()) {
+            emails.remove(failure.getUser().getEmail(), PENDING);
+        }
+        return shardResult;
+    }
+
+    private void rebuildEmailIndex() {
+        long start = System.nanoTime();
+        scatter(shard -> {
+            // The index has to hold every committed email, a lagging replica of the shard may not
+            try (Stream<UserSummary> summaries = SessionRouter.readFromPrimary(shards.get(shard)::streamSummaries)) {
+                summaries.forEach(summary -> emails.put(summary.email(), globalId(shard, summary.id())));
+            }
+            return null;
+        });
+        logger.info("Email routing index rebuilt from {} shards: {} users in {} ms",
+                shardCount, emails.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void claimEmail(String email, long id) {
+        Long owner = emails.putIfAbsent(email, id);
+        if (owner != null && owner != id) {
+            throw new DuplicateEmailException(email);
+        }
+    }
+
+    // Claims the email if the user doesn't own it yet, null if there is nothing to claim
+    private EmailClaim claimChangedEmail(int shard, long id, String email) {
+        if (email == null || Long.valueOf(id).equals(emails.get(email))) {
+            return null;
+        }
+        claimEmail(email, id);
+        try {
+            String oldEmail = SessionRouter.readFromPrimary(() -> shards.get(shard).findById(localId(id)))
+                    .map(User::getEmail)
+                    .orElse(null);
+            return new EmailClaim(oldEmail, email);
+        } catch (RuntimeException e) {
+            emails.remove(email, id);
+            throw e;
+        }
+    }
+
+    // After the write: a successful one releases the old email, a failed one the claimed new email
+    private void settle(EmailClaim claim, long id, boolean success) {
+        if (claim == null) {
+            return;
+        }
+        if (!success) {
+            emails.remove(claim.newEmail(), id);
+        } else if (claim.oldEmail() != null && !claim.oldEmail().equals(claim.newEmail())) {
+            emails.remove(claim.oldEmail(), id);
+        }
+    }
+
+    private int placementOf(String email) {
+        if (email == null) {
+            throw new InvalidUserException("User name and email are required");
+        }
+        return Math.floorMod(email.hashCode() * 0x9E3779B9, shardCount);
+    }
+
+    private long globalId(int shard, long localId) {
+        return localId * shardCount + shard;
+    }
+
+    private long localId(long id) {
+        return id / shardCount;
+    }
+
+    // Largest local id of the shard whose global id is not after the cursor
+    private Long localCursor(int shard, Long lastId) {
+        if (lastId == null || lastId < shard) {
+            return lastId == null ? null : 0L;
+        }
+        return (lastId - shard) / shardCount;
+    }
+
+    private User toGlobal(int shard, User user) {
+        user.setId(globalId(shard, user.getId()));
+        return user;
+    }
+
+    private List<User> globalUsers(int shard, List<User> users) {
+        for (User user : users) {
+            toGlobal(shard, user);
+        }
+        return users;
+    }
+
+    private UserSummary globalSummary(int shard, UserSummary summary) {
+        return new UserSummary(globalId(shard, summary.id()), summary.name(), summary.email(), summary.age());
+    }
+
+    private List<UserSummary> globalSummaries(int shard, List<UserSummary> summaries) {
+        List<UserSummary> global = new ArrayList<>(summaries.size());
+        for (UserSummary summary : summaries) {
+            global.add(globalSummary(shard, summary));
+        }
+        return global;
+    }
+
+    // Runs the call on every shard in parallel and returns the results in shard order
+    private <T> List<T> scatter(IntFunction<T> call) {
+        if (shardCount == 1) {
+            return List.of(call.apply(0));
+        }
+        List<Callable<T>> calls = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            int shard = i;
+            calls.add(() -> call.apply(shard));
+        }
+        List<T> results = new ArrayList<>(shardCount);
+        try {
+            for (Future<T> future : executor.invokeAll(calls)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserServiceException("Interrupted while querying shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UserServiceException("Shard query failed", e.getCause());
+        }
+        return results;
+    }
+
+    // K-way merge of lists already sorted by id, up to limit rows
+    private static <T> List<T> merge(List<List<T>> sorted, ToLongFunction<T> id, int limit) {
+        List<Iterator<T>> iterators = new ArrayList<>(sorted.size());
+        int total = 0;
+        for (List<T> rows : sorted) {
+            iterators.add(rows.iterator());
+            total += rows.size();
+        }
+        List<T> merged = new ArrayList<>(Math.min(total, limit));
+        Iterator<T> iterator = new MergingIterator<>(iterators, id);
+        while (merged.size() < limit && iterator.hasNext()) {
+            merged.add(iterator.next());
+        }
+        return merged;
+    }
+
+    // Lazy merge of the shard streams, closing the result closes every shard stream
+    private <T> Stream<T> mergeStreams(IntFunction<Stream<T>> open, ToLongFunction<T> id) {
+        List<Stream<T>> streams = new ArrayList<>(shardCount);
+        try {
+            for (int shard = 0; shard < shardCount; shard++) {
+                streams.add(open.apply(shard));
+            }
+        } catch (RuntimeException e) {
+            streams.forEach(Stream::close);
+            throw e;
+        }
+        List<Iterator<T>> iterators = new ArrayList<>(shardCount);
+        for (Stream<T> stream : streams) {
+            iterators.add(stream.iterator());
+        }
+        Spliterator<T> merged = Spliterators.spliteratorUnknownSize(new MergingIterator<>(iterators, id),
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(merged, false).onClose(() -> streams.forEach(Stream::close));
+    }
+
+    private static final class MergingIterator<T> implements Iterator<T> {
+        private final PriorityQueue<Head<T>> heads;
+        private final ToLongFunction<T> id;
+
+        MergingIterator(List<Iterator<T>> iterators, ToLongFunction<T> id) {
+            this.id = id;
+            this.heads = new PriorityQueue<>(Math.max(1, iterators.size()), Comparator.comparingLong(head -> head.id));
+            for (Iterator<T> iterator : iterators) {
+                advance(iterator);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            Head<T> head = heads.remove();
+            advance(head.rest);
+            return head.row;
+        }
+
+        private void advance(Iterator<T> iterator) {
+            if (iterator.hasNext()) {
+                T row = iterator.next();
+                heads.add(new Head<>(row, id.applyAsLong(row), iterator));
+            }
+        }
+    }
+
+    private record Head<T>(T row, long id, Iterator<T> rest) {
+    }
+
+    private record EmailClaim(String oldEmail, String newEmail) {
+    }
+}
@@ -0,0 +1,211 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.entity.User;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class UserCache {
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    // CLOCK ring, readers only set the referenced flag so they never take a lock
+    private final Queue<Entry> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger clockSize = new AtomicInteger();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // Bumped by every write to an id of the stripe. A fill whose read started before the bump
+    // may hold what the write replaced and is dropped
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public UserCache(int maxSize, Duration ttl) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+        }
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Cache TTL must be positive: " + ttl);
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    public Optional<User> get(Long id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        if (entry.isExpired(System.nanoTime())) {
+            if (entries.remove(id, entry)) {
+                expirations.increment();
+            }
+            misses.increment();
+            return Optional.empty();
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        hits.increment();
+        return Optional.of(copyOf(entry.user));
+    }
+
+    // Used on writes, always replaces the cached value
+    public void put(User user) {
+        bumpGeneration(user.getId());
+        Entry entry = new Entry(copyOf(user), System.nanoTime() + ttlNanos);
+        entries.put(user.getId(), entry);
+        addToClock(entry);
+        evictIfNeeded();
+    }
+
+    // To be taken before the read whose result goes to putIfAbsent
+    public long generation(Long id) {
+        return generations.get(stripe(id));
+    }
+
+    // Used on reads, never overwrites a value stored by a concurrent write and drops the user if
+    // a write to its id happened since the generation was taken
+    public void putIfAbsent(User user, long generation) {
+        int stripe = stripe(user.getId());
+        if (generations.get(stripe) != generation) {
+            return;
+        }
+        Entry entry = new Entry(copyOf(user), System.nanoTime() + ttlNanos);
+        if (entries.putIfAbsent(user.getId(), entry) == null) {
+            // A write that bumped the generation after the check may have invalidated before the insert
+            if (generations.get(stripe) != generation) {
+                entries.remove(user.getId(), entry);
+                return;
+            }
+            addToClock(entry);
+            evictIfNeeded();
+        }
+    }
+
+    public void invalidate(Long id) {
+        // Before the removal, so a fill either sees the new generation or is removed with the entry
+        bumpGeneration(id);
+        entries.remove(id);
+    }
+
+    public void invalidateAll() {
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    private void bumpGeneration(Long id) {
+        generations.incrementAndGet(stripe(id));
+    }
+
+    private static int stripe(Long id) {
+        return Long.hashCode(id * 0x9E3779B97F4A7C15L) & (GENERATION_STRIPES - 1);
+    }
+
+    private void addToClock(Entry entry) {
+        clock.add(entry);
+        clockSize.incrementAndGet();
+    }
+
+    private void evictIfNeeded() {
+        // Replaced and invalidated entries stay in the ring until swept, so its size is bounded too
+        if ((entries.size() <= maxSize && clockSize.get() <= 2 * maxSize) || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            // Two passes are enough for the second-chance bits to settle
+            int budget = 2 * clockSize.get();
+            while (budget-- > 0 && (entries.size() > maxSize || clockSize.get() > maxSize)) {
+                Entry candidate = clock.poll();
+                if (candidate == null) {
+                    return;
+                }
+                clockSize.decrementAndGet();
+                Long id = candidate.user.getId();
+                if (entries.get(id) != candidate) {
+                    continue;
+                }
+                if (entries.size() <= maxSize) {
+                    addToClock(candidate);
+                } else if (candidate.referenced) {
+                    candidate.referenced = false;
+                    addToClock(candidate);
+                } else if (entries.remove(id, candidate)) {
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Callers get their own copy, so changes to a returned user never leak into the cache
+    private static User copyOf(User user) {
+        User copy = new User(user.getName(), user.getEmail(), user.getAge());
+        copy.setId(user.getId());
+        copy.setCreatedAt(user.getCreatedAt());
+        copy.setVersion(user.getVersion());
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UserCache{size=%d, hits=%d, misses=%d, hitRate=%.2f, evictions=%d, expirations=%d}",
+                size(), getHitCount(), getMissCount(), getHitRate(), getEvictionCount(), getExpirationCount());
+    }
+
+    private static class Entry {
+        private final User user;
+        private final long expiresAt;
+        private volatile boolean referenced;
+
+        Entry(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+}
@@ -3,14 +3,34 @@ package org.aston.learning.stage2.dao;
 import org.aston.learning.stage2.entity.User;
 import org.aston.learning.stage2.exception.UserServiceException;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface UserDao {
     User save(User user) throws UserServiceException;
+    BatchSaveResult saveAll(Collection<User> users) throws UserServiceException;
     Optional<User> findById(Long id) throws UserServiceException;
+    List<User> findByIds(Collection<Long> ids) throws UserServiceException;
     List<User> findAll() throws UserServiceException;
     List<User> findAll(int page, int size) throws UserServiceException;
+    UserPage findPageAfter(Long lastId, int size) throws UserServiceException;
+    Stream<User> streamAll() throws UserServiceException;
+    List<UserSummary> findSummaries(int page, int size) throws UserServiceException;
+    List<UserSummary> findSummariesAfter(Long lastId, int size) throws UserServiceException;
+    Stream<UserSummary> streamSummaries() throws UserServiceException;
+    // Throws ConcurrentUpdateException when the user's version is no longer the stored one
     User update(User user) throws UserServiceException;
+    // Applies the changes while holding the row lock, empty if there is no such user
+    Optional<User> updateLocked(Long id, Consumer<User> changes) throws UserServiceException;
     void delete(Long id) throws UserServiceException;
+    // Throws InvalidUserException when there is no field to update
+    int updateFields(Long id, String name, String email, Integer age) throws UserServiceException;
+    int deleteById(Long id) throws UserServiceException;
+    // Email the deleted row had at the moment it went, empty if there was no such user
+    Optional<String> deleteReturningEmail(Long id) throws UserServiceException;
+    // Exact match as the unique constraint sees it, read where a just deleted user no longer shows
+    boolean existsByEmail(String email) throws UserServiceException;
 }
\ No newline at end of file
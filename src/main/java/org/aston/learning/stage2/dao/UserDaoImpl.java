@@ -1,69 +1,252 @@
 package org.aston.learning.stage2.dao;
 
 import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.ConcurrentUpdateException;
+import org.aston.learning.stage2.exception.DuplicateEmailException;
+import org.aston.learning.stage2.exception.InvalidUserException;
 import org.aston.learning.stage2.exception.UserServiceException;
-import org.aston.learning.stage2.util.HibernateUtil;
+import org.aston.learning.stage2.metrics.MetricsRegistry;
+import org.aston.learning.stage2.metrics.OperationMetrics;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.PessimisticLockException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.SharedSessionContract;
+import org.hibernate.StaleStateException;
+import org.hibernate.StatelessSession;
 import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.exception.LockAcquisitionException;
+import org.hibernate.query.MutationQuery;
 import org.hibernate.query.Query;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class UserDaoImpl implements UserDao {
     private static final Logger logger = LogManager.getLogger(UserDaoImpl.class);
+    private static final int DEFAULT_BATCH_SIZE = 50;
+    private static final int DEFAULT_FETCH_SIZE = 500;
+    private static final int IN_BATCH_SIZE = 512;
+    // One statement, so the email is the one the row had when it was deleted
+    private static final String DELETE_RETURNING_EMAIL = "DELETE FROM users WHERE id = :id RETURNING email";
+    private static final OperationMetrics CONNECTION_WAIT = MetricsRegistry.operation("dao.connectionWait");
+
+    private final SessionRouter router;
+    private final int batchSize;
+    private final int fetchSize;
+
+    public UserDaoImpl() {
+        this(DEFAULT_BATCH_SIZE, DEFAULT_FETCH_SIZE);
+    }
+
+    public UserDaoImpl(int batchSize, int fetchSize) {
+        this(SessionRouter.fromSystemProperties(), batchSize, fetchSize);
+    }
+
+    public UserDaoImpl(SessionFactory sessionFactory) {
+        this(() -> sessionFactory, DEFAULT_BATCH_SIZE, DEFAULT_FETCH_SIZE);
+    }
+
+    public UserDaoImpl(Supplier<SessionFactory> sessionFactory, int batchSize, int fetchSize) {
+        this(new SessionRouter(sessionFactory), batchSize, fetchSize);
+    }
+
+    // Reads go to the router's replicas, writes and the reads right after them to its primary
+    public UserDaoImpl(SessionRouter router, int batchSize, int fetchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("Fetch size must be positive: " + fetchSize);
+        }
+        this.router = router;
+        this.batchSize = batchSize;
+        this.fetchSize = fetchSize;
+    }
+
+    public SessionRouter getRouter() {
+        return router;
+    }
 
     @Override
     public User save(User user) throws UserServiceException {
-        return executeInTransaction(session -> {
+        return executeInTransaction("save", session -> {
             session.persist(user);
             logger.info("User saved successfully: {}", user.getEmail());
             return user;
         });
     }
 
+    @Override
+    public BatchSaveResult saveAll(Collection<User> users) throws UserServiceException {
+        return executeInTransaction("saveAll", session -> {
+            session.setJdbcBatchSize(batchSize);
+            BatchSaveResult result = new BatchSaveResult();
+            List<User> chunk = new ArrayList<>(batchSize);
+
+            for (User user : users) {
+                chunk.add(user);
+                if (chunk.size() == batchSize) {
+                    saveChunk(session, chunk, result);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                saveChunk(session, chunk, result);
+            }
+
+            logger.info("Batch saved: {} users, {} rejected", result.getSaved().size(), result.getFailures().size());
+            return result;
+        });
+    }
+
     @Override
     public Optional<User> findById(Long id) throws UserServiceException {
-        return executeInTransaction(session -> {
-            User user = session.find(User.class, id);
+        return executeReadOnly("findById", session -> {
+            User user = session.get(User.class, id);
             return Optional.ofNullable(user);
         });
     }
 
+    @Override
+    public List<User> findByIds(Collection<Long> ids) throws UserServiceException {
+        return executeReadOnly("findByIds", session -> {
+            // One round trip per IN_BATCH_SIZE ids, padding keeps the number of distinct statements small
+            List<Long> distinctIds = new ArrayList<>(new LinkedHashSet<>(ids));
+            Map<Long, User> found = new HashMap<>(distinctIds.size() * 2);
+            for (int from = 0; from < distinctIds.size(); from += IN_BATCH_SIZE) {
+                List<Long> batch = distinctIds.subList(from, Math.min(from + IN_BATCH_SIZE, distinctIds.size()));
+                for (User user : session.createNamedQuery(User.FIND_BY_IDS, User.class)
+                        .setParameterList("ids", batch)
+                        .list()) {
+                    found.put(user.getId(), user);
+                }
+            }
+
+            // Request order, missing ids are left out
+            List<User> users = new ArrayList<>(found.size());
+            for (Long id : distinctIds) {
+                User user = found.get(id);
+                if (user != null) {
+                    users.add(user);
+                }
+            }
+            return users;
+        });
+    }
+
     @Override
     public List<User> findAll() throws UserServiceException {
-        return executeInTransaction(session -> {
-            Query<User> query = session.createQuery("FROM User", User.class);
+        return executeReadOnly("findAll", session -> {
+            Query<User> query = session.createNamedQuery(User.FIND_ALL, User.class);
             return query.list();
         });
     }
 
     @Override
     public List<User> findAll(int page, int size) throws UserServiceException {
-        return executeInTransaction(session -> {
-            Query<User> query = session.createQuery("FROM User", User.class)
+        return executeReadOnly("findAllPaged", session -> {
+            Query<User> query = session.createNamedQuery(User.FIND_ALL, User.class)
                     .setMaxResults(size)
                     .setFirstResult(page * size);
             return query.list();
         });
     }
 
+    @Override
+    public UserPage findPageAfter(Long lastId, int size) throws UserServiceException {
+        return executeReadOnly("findPageAfter", session -> {
+            // Seek by primary key instead of OFFSET, one extra row tells if there is a next page
+            Query<User> query = session.createNamedQuery(User.FIND_PAGE_AFTER, User.class)
+                    .setParameter("lastId", lastId == null ? 0L : lastId)
+                    .setMaxResults(size + 1);
+            List<User> users = query.list();
+
+            if (users.size() <= size) {
+                return new UserPage(users, null);
+            }
+            List<User> page = new ArrayList<>(users.subList(0, size));
+            return new UserPage(page, page.get(size - 1).getId());
+        });
+    }
+
+    @Override
+    public Stream<User> streamAll() throws UserServiceException {
+        return stream(User.FIND_ALL, User.class);
+    }
+
+    @Override
+    public List<UserSummary> findSummaries(int page, int size) throws UserServiceException {
+        return executeReadOnly("findSummaries", session -> session
+                .createNamedQuery(User.FIND_SUMMARIES, UserSummary.class)
+                .setMaxResults(size)
+                .setFirstResult(page * size)
+                .list());
+    }
+
+    @Override
+    public List<UserSummary> findSummariesAfter(Long lastId, int size) throws UserServiceException {
+        return executeReadOnly("findSummariesAfter", session -> session
+                .createNamedQuery(User.FIND_SUMMARIES_AFTER, UserSummary.class)
+                .setParameter("lastId", lastId == null ? 0L : lastId)
+                .setMaxResults(size)
+                .list());
+    }
+
+    @Override
+    public Stream<UserSummary> streamSummaries() throws UserServiceException {
+        return stream(User.FIND_SUMMARIES, UserSummary.class);
+    }
+
     @Override
     public User update(User user) throws UserServiceException {
-        return executeInTransaction(session -> {
-            User updatedUser = session.merge(user);
+        // A stateless update is the bare UPDATE ... WHERE id = ? AND version = ?, no SELECT first like merge.
+        // A concurrent write makes it match no row and Hibernate reports the stale version
+        return executeInTransaction("update", () -> router.primary().openStatelessSession(), session -> {
+            session.update(user);
             logger.info("User updated successfully: {}", user.getEmail());
-            return updatedUser;
+            return user;
+        });
+    }
+
+    @Override
+    public Optional<User> updateLocked(Long id, Consumer<User> changes) throws UserServiceException {
+        return executeInTransaction("updateLocked", session -> {
+            // SELECT ... FOR UPDATE, other writers of the row wait for this transaction to end
+            User user = session.find(User.class, id, LockModeType.PESSIMISTIC_WRITE);
+            if (user == null) {
+                return Optional.empty();
+            }
+            changes.accept(user);
+            session.flush();
+            logger.info("User updated under row lock: {}", id);
+            return Optional.of(user);
         });
     }
 
     @Override
     public void delete(Long id) throws UserServiceException {
-        executeInTransactionVoid(session -> {
+        executeInTransactionVoid("delete", session -> {
             User user = session.find(User.class, id);
             if (user != null) {
                 session.remove(user);
@@ -72,34 +255,337 @@ public class UserDaoImpl implements UserDao {
         });
     }
 
-    private <T> T executeInTransaction(Function<Session, T> function) {
-        Transaction transaction = null;
-        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
-            transaction = session.beginTransaction();
-            T result = function.apply(session);
-            transaction.commit();
-            return result;
+    @Override
+    public int updateFields(Long id, String name, String email, Integer age) throws UserServiceException {
+        if (name == null && email == null && age == null) {
+            throw new InvalidUserException("No fields to update for user ID: " + id);
+        }
+        return executeInTransaction("updateFields", session -> {
+            // Only non-null fields go into the SET clause, the row count replaces a prior SELECT
+            StringBuilder hql = new StringBuilder("UPDATE User u SET ");
+            String separator = "";
+            if (name != null) {
+                hql.append("u.name = :name");
+                separator = ", ";
+            }
+            if (email != null) {
+                hql.append(separator).append("u.email = :email");
+                separator = ", ";
+            }
+            if (age != null) {
+                hql.append(separator).append("u.age = :age");
+                separator = ", ";
+            }
+            // Versioned readers of the row must see it as changed
+            hql.append(separator).append("u.version = u.version + 1");
+            hql.append(" WHERE u.id = :id");
+
+            MutationQuery query = session.createMutationQuery(hql.toString())
+                    .setParameter("id", id);
+            if (name != null) {
+                query.setParameter("name", name);
+            }
+            if (email != null) {
+                query.setParameter("email", email);
+            }
+            if (age != null) {
+                query.setParameter("age", age);
+            }
+
+            int updated = query.executeUpdate();
+            logger.info("User fields updated: id={}, rows={}", id, updated);
+            return updated;
+        });
+    }
+
+    @Override
+    public int deleteById(Long id) throws UserServiceException {
+        return executeInTransaction("deleteById", session -> {
+            int deleted = session.createNamedMutationQuery(User.DELETE_BY_ID)
+                    .setParameter("id", id)
+                    .executeUpdate();
+            logger.info("User deleted: id={}, rows={}", id, deleted);
+            return deleted;
+        });
+    }
+
+    @Override
+    public Optional<String> deleteReturningEmail(Long id) throws UserServiceException {
+        return executeInTransaction("deleteReturningEmail", session -> {
+            List<String> emails = session.createNativeQuery(DELETE_RETURNING_EMAIL, String.class)
+                    .addSynchronizedEntityClass(User.class)
+                    .setParameter("id", id)
+                    .list();
+            logger.info("User deleted: id={}, rows={}", id, emails.size());
+            return emails.stream().findFirst();
+        });
+    }
+
+    @Override
+    public boolean existsByEmail(String email) throws UserServiceException {
+        // On the primary, a replica behind it could still list the email of a deleted user. A read
+        // there opens no read-your-writes window, unlike a transaction that could have written
+        return SessionRouter.readFromPrimary(() -> executeReadOnly("existsByEmail", session -> !session
+                .createNamedQuery(User.FIND_EMAILS_IN, String.class)
+                .setParameterList("emails", List.of(email))
+                .setMaxResults(1)
+                .list()
+                .isEmpty()));
+    }
+
+    private void saveChunk(Session session, List<User> chunk, BatchSaveResult result) {
+        // A failed flush marks the whole transaction rollback-only,
+        // so rows with already taken emails are rejected before the insert
+        Set<String> emails = new HashSet<>();
+        for (User user : chunk) {
+            emails.add(user.getEmail());
+        }
+        Set<String> existingEmails = new HashSet<>(
+                session.createNamedQuery(User.FIND_EMAILS_IN, String.class)
+                        .setParameterList("emails", emails)
+                        .list());
+
+        for (User user : chunk) {
+            if (existingEmails.add(user.getEmail())) {
+                session.persist(user);
+                result.addSaved(user);
+            } else {
+                result.addFailure(user, "User with this email already exists: " + user.getEmail());
+            }
+        }
+
+        // Send the chunk as one JDBC batch and drop it from the persistence context
+        session.flush();
+        session.clear();
+    }
+
+    private <T> Stream<T> stream(String queryName, Class<T> resultType) {
+        // The session stays open until the stream is closed, so it can't use executeReadOnly
+        int route = router.acquireRead();
+        StatelessSession session;
+        try {
+            session = router.sessionFactory(route).openStatelessSession();
+        } catch (RuntimeException e) {
+            router.releaseRead(route);
+            throw translate(e);
+        }
+        boolean autoCommit = false;
+        try {
+            autoCommit = beginReadOnly(session);
+            // Forward-only scroll with autocommit off makes PostgreSQL use a server-side cursor,
+            // a stateless session keeps no persistence context, so memory stays flat
+            ScrollableResults<T> results = session.createNamedQuery(queryName, resultType)
+                    .setFetchSize(fetchSize)
+                    .scroll(ScrollMode.FORWARD_ONLY);
+
+            boolean streamAutoCommit = autoCommit;
+            return StreamSupport.stream(new ScrollSpliterator<>(results), false)
+                    .onClose(() -> closeStream(route, session, streamAutoCommit, results));
+        } catch (Exception e) {
+            try {
+                endReadOnly(session, autoCommit, false);
+            } finally {
+                session.close();
+                router.releaseRead(route);
+            }
+            throw translate(e);
+        }
+    }
+
+    private void closeStream(int route, StatelessSession session, boolean autoCommit, ScrollableResults<?> results) {
+        try {
+            results.close();
+            endReadOnly(session, autoCommit, true);
+        } catch (Exception e) {
+            throw translate(e);
+        } finally {
+            session.close();
+            router.releaseRead(route);
+        }
+    }
+
+    private static class ScrollSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+        private final ScrollableResults<T> results;
+
+        ScrollSpliterator(ScrollableResults<T> results) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.results = results;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            T row;
+            try {
+                if (!results.next()) {
+                    return false;
+                }
+                row = results.get();
+            } catch (Exception e) {
+                throw translate(e);
+            }
+            action.accept(row);
+            return true;
+        }
+    }
+
+    // Queries run in a stateless session: no persistence context, snapshots or dirty checking.
+    // The JDBC transaction is ended by hand because Hibernate would release the connection
+    // on commit, before the read-only flag is reset for the next borrower
+    private <T> T executeReadOnly(String operation, Function<StatelessSession, T> function) {
+        long start = System.nanoTime();
+        boolean success = false;
+        int route = router.acquireRead();
+        try (StatelessSession session = router.sessionFactory(route).openStatelessSession()) {
+            boolean autoCommit = beginReadOnly(session);
+            try {
+                T result = function.apply(session);
+                success = true;
+                return result;
+            } finally {
+                endReadOnly(session, autoCommit, success);
+            }
         } catch (Exception e) {
-            if (transaction != null) {
-                transaction.rollback();
+            success = false;
+            throw translate(e);
+        } finally {
+            router.releaseRead(route);
+            operationMetrics(operation).record(System.nanoTime() - start, success);
+        }
+    }
+
+    private boolean beginReadOnly(StatelessSession session) {
+        // The first JDBC call acquires the pooled connection, so this is the connection wait
+        long start = System.nanoTime();
+        return session.doReturningWork(connection -> {
+            CONNECTION_WAIT.record(System.nanoTime() - start, true);
+            boolean autoCommit = connection.getAutoCommit();
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
+            connection.setReadOnly(true);
+            return autoCommit;
+        });
+    }
+
+    private void endReadOnly(StatelessSession session, boolean autoCommit, boolean commit) {
+        session.doWork(connection -> {
+            try {
+                if (commit) {
+                    connection.commit();
+                } else {
+                    connection.rollback();
+                }
+            } finally {
+                connection.setReadOnly(false);
+                if (autoCommit) {
+                    connection.setAutoCommit(true);
+                }
+            }
+        });
+    }
+
+    private <T> T executeInTransaction(String operation, Function<Session, T> function) {
+        return executeInTransaction(operation, () -> router.primary().openSession(), function);
+    }
+
+    private <S extends SharedSessionContract, T> T executeInTransaction(String operation, Supplier<S> openSession,
+                                                                       Function<S, T> function) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try (S session = openSession.get()) {
+            Transaction transaction = beginTransaction(session);
+            try {
+                T result = function.apply(session);
+                transaction.commit();
+                router.recordWrite();
+                success = true;
+                return result;
+            } catch (RuntimeException e) {
+                // Before the session closes, afterwards the connection is gone
+                rollback(transaction);
+                throw e;
             }
-            logger.error("Transaction failed", e);
-            throw new UserServiceException("Database operation failed", e);
+        } catch (Exception e) {
+            throw translate(e);
+        } finally {
+            operationMetrics(operation).record(System.nanoTime() - start, success);
         }
     }
 
-    private void executeInTransactionVoid(Consumer<Session> consumer) {
-        Transaction transaction = null;
-        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
-            transaction = session.beginTransaction();
-            consumer.accept(session);
-            transaction.commit();
+    private void executeInTransactionVoid(String operation, Consumer<Session> consumer) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try (Session session = router.primary().openSession()) {
+            Transaction transaction = beginTransaction(session);
+            try {
+                consumer.accept(session);
+                transaction.commit();
+                router.recordWrite();
+                success = true;
+            } catch (RuntimeException e) {
+                rollback(transaction);
+                throw e;
+            }
         } catch (Exception e) {
-            if (transaction != null) {
-                transaction.rollback();
+            throw translate(e);
+        } finally {
+            operationMetrics(operation).record(System.nanoTime() - start, success);
+        }
+    }
+
+    private static void rollback(Transaction transaction) {
+        if (transaction.getStatus().canRollback()) {
+            transaction.rollback();
+        }
+    }
+
+    // The one place storage exceptions become UserServiceExceptions. Expected outcomes get their
+    // stackless types, anything else is wrapped once with the original as the cause and is left
+    // for the caller at the boundary to log
+    private static UserServiceException translate(Exception e) {
+        if (e instanceof UserServiceException) {
+            return (UserServiceException) e;
+        }
+        if (isConcurrentUpdate(e)) {
+            return new ConcurrentUpdateException("User was modified concurrently", e);
+        }
+        if (isUniqueViolation(e)) {
+            // email is the only unique column besides the generated id
+            return new DuplicateEmailException(null, e);
+        }
+        return new UserServiceException("Database operation failed", e);
+    }
+
+    private static boolean isUniqueViolation(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConstraintViolationException
+                    && ((ConstraintViolationException) cause).getKind() == ConstraintViolationException.ConstraintKind.UNIQUE) {
+                return true;
             }
-            logger.error("Transaction failed", e);
-            throw new UserServiceException("Database operation failed", e);
         }
+        return false;
+    }
+
+    // Stale versions and lost lock races, the caller may retry on fresh data
+    private static boolean isConcurrentUpdate(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockException || cause instanceof StaleStateException
+                    || cause instanceof PessimisticLockException || cause instanceof LockAcquisitionException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Beginning the transaction acquires the pooled connection, so this is the connection wait
+    private Transaction beginTransaction(SharedSessionContract session) {
+        long start = System.nanoTime();
+        Transaction transaction = session.beginTransaction();
+        CONNECTION_WAIT.record(System.nanoTime() - start, true);
+        return transaction;
+    }
+
+    private static OperationMetrics operationMetrics(String operation) {
+        return MetricsRegistry.operation("dao." + operation);
     }
 }
\ No newline at end of file
@@ -0,0 +1,493 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.metrics.MetricsRegistry;
+import org.aston.learning.stage2.metrics.OperationMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Append-only record store on memory-mapped segment files.
+// Records are framed as [int body length][int crc32c of body][body], a zero length ends the data.
+// Generation N has a log file users-N.log and, once compacted, a snapshot users-N.snap holding
+// everything written before log N. Recovery loads the newest snapshot and replays the logs after it.
+// A location is the segment id in the high 32 bits and the record offset in the low 32 bits.
+final class UserLog implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(UserLog.class);
+    private static final Pattern FILE_NAME = Pattern.compile("users-(\\d+)\\.(log|snap)");
+    private static final int HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 4 * 1024 * 1024;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final OperationMetrics FSYNC = MetricsRegistry.operation("filedao.fsync");
+
+    interface RecordVisitor {
+        void visit(long location, ByteBuffer body);
+    }
+
+    private final Path directory;
+    private final ConcurrentMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+
+    // Appends and rolls are serialized, a group commit leader only reads the tail under the lock
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private Segment active;
+    private volatile int writeOffset;
+    private long activeBaseLsn;
+    private volatile long appendedLsn;
+
+    private final Object syncMonitor = new Object();
+    private volatile long durableLsn;
+    private boolean syncing;
+
+    UserLog(Path directory) {
+        this.directory = directory;
+    }
+
+    // Must run once before any other call, the visitor may already read earlier locations back
+    void recover(RecordVisitor visitor) throws IOException {
+        Files.createDirectories(directory);
+        TreeMap<Integer, Path> logs = new TreeMap<>();
+        TreeMap<Integer, Path> snapshots = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String fileName = file.getFileName().toString();
+                Matcher matcher = FILE_NAME.matcher(fileName);
+                if (matcher.matches()) {
+                    int generation = Integer.parseInt(matcher.group(1));
+                    (matcher.group(2).equals("log") ? logs : snapshots).put(generation, file);
+                } else if (fileName.endsWith(".tmp")) {
+                    // Snapshot interrupted before its rename, the logs still have the data
+                    Files.delete(file);
+                }
+            }
+        }
+
+        int firstGeneration = logs.isEmpty() ? 1 : logs.firstKey();
+        if (!snapshots.isEmpty()) {
+            firstGeneration = snapshots.lastKey();
+            Segment snapshot = mapSnapshot(firstGeneration, snapshots.lastEntry().getValue());
+            segments.put(snapshot.id, snapshot);
+            scan(snapshot, visitor);
+        }
+        deleteBefore(firstGeneration, logs, snapshots);
+
+        List<Integer> replay = List.copyOf(logs.tailMap(firstGeneration, true).keySet());
+        if (replay.isEmpty()) {
+            active = openLog(firstGeneration, INITIAL_CAPACITY);
+            segments.put(active.id, active);
+            return;
+        }
+        for (int generation : replay) {
+            Segment segment = openLog(generation, 0);
+            segments.put(segment.id, segment);
+            int end = scan(segment, visitor);
+            if (generation == replay.get(replay.size() - 1)) {
+                active = segment;
+                writeOffset = end;
+                // Anything after a torn record must not be read back after the next crash
+                zero(segment.buffer, end, segment.buffer.capacity());
+            }
+        }
+        appendedLsn = writeOffset;
+        durableLsn = writeOffset;
+    }
+
+    // Visits valid records in order and returns the offset where the data ends
+    private int scan(Segment segment, RecordVisitor visitor) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            ByteBuffer body = buffer.slice(offset + HEADER_SIZE, length);
+            CRC32C crc = new CRC32C();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                logger.warn("Corrupt record in {} at offset {}, ignoring the rest of the segment", segment.path, offset);
+                break;
+            }
+            visitor.visit(location(segment.id, offset), body);
+            offset += HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    // Caller serializes writes to keep its indexes in step with the log
+    long append(byte[] body) {
+        appendLock.lock();
+        try {
+            int size = HEADER_SIZE + body.length;
+            ensureCapacity(size);
+            MappedByteBuffer buffer = active.buffer;
+            int offset = writeOffset;
+
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            buffer.put(offset + HEADER_SIZE, body);
+            buffer.putInt(offset + 4, (int) crc.getValue());
+            buffer.putInt(offset, body.length);
+
+            writeOffset += size;
+            appendedLsn = activeBaseLsn + writeOffset;
+            return location(active.id, offset);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    long appendedLsn() {
+        return appendedLsn;
+    }
+
+    long activeSize() {
+        return writeOffset;
+    }
+
+    // Returns a view of the record body, or null when compaction already dropped its segment
+    ByteBuffer read(long location) {
+        Segment segment = segments.get((int) (location >>> 32));
+        if (segment == null) {
+            return null;
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = (int) location;
+        return buffer.slice(offset + HEADER_SIZE, buffer.getInt(offset));
+    }
+
+    // Group commit: one caller forces everything appended so far while the others wait for it
+    void sync(long lsn) {
+        while (true) {
+            synchronized (syncMonitor) {
+                while (durableLsn < lsn && syncing) {
+                    try {
+                        syncMonitor.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for log sync", e);
+                    }
+                }
+                if (durableLsn >= lsn) {
+                    return;
+                }
+                syncing = true;
+            }
+
+            long synced = -1;
+            try {
+                synced = forceActive();
+            } finally {
+                synchronized (syncMonitor) {
+                    syncing = false;
+                    if (synced > durableLsn) {
+                        durableLsn = synced;
+                    }
+                    syncMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    private long forceActive() {
+        Segment segment;
+        long baseLsn;
+        long endLsn;
+        appendLock.lock();
+        try {
+            segment = active;
+            baseLsn = activeBaseLsn;
+            endLsn = appendedLsn;
+        } finally {
+            appendLock.unlock();
+        }
+
+        int from = (int) (Math.max(durableLsn, baseLsn) - baseLsn);
+        int to = (int) (endLsn - baseLsn);
+        if (to > from) {
+            long start = System.nanoTime();
+            segment.buffer.force(from, to - from);
+            FSYNC.record(System.nanoTime() - start, true);
+        }
+        return endLsn;
+    }
+
+    // Starts the next log generation, everything before it is durable once this returns
+    int roll() {
+        appendLock.lock();
+        try {
+            active.buffer.force();
+            markDurable(appendedLsn);
+
+            int generation = generation(active.id) + 1;
+            Segment next = openLog(generation, INITIAL_CAPACITY);
+            segments.put(next.id, next);
+            active = next;
+            activeBaseLsn = appendedLsn;
+            writeOffset = 0;
+            return generation;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to roll user log", e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Only locations written before the given log generation belong in its snapshot
+    static boolean isBefore(long location, int generation) {
+        return generation((int) (location >>> 32)) < generation;
+    }
+
+    SnapshotWriter newSnapshot(int generation) throws IOException {
+        return new SnapshotWriter(generation);
+    }
+
+    // Forgets segments older than the generation and deletes their files
+    void dropBefore(int generation) {
+        for (Segment segment : segments.values()) {
+            if (generation(segment.id) < generation) {
+                segments.remove(segment.id);
+                segment.close();
+                try {
+                    Files.deleteIfExists(segment.path);
+                } catch (IOException e) {
+                    logger.warn("Failed to delete compacted segment {}", segment.path, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        appendLock.lock();
+        try {
+            if (active != null) {
+                active.buffer.force();
+                markDurable(appendedLsn);
+            }
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Record too large: " + size + " bytes");
+        }
+        int capacity = active.buffer.capacity();
+        if (writeOffset + size <= capacity) {
+            return;
+        }
+        if (capacity >= MAX_CAPACITY) {
+            roll();
+            return;
+        }
+        try {
+            int newCapacity = (int) Math.min(MAX_CAPACITY,
+                    Math.max(Math.max(2L * capacity, INITIAL_CAPACITY), (long) writeOffset + size));
+            active.buffer.force();
+            // Readers switch to the bigger mapping, old locations stay valid in both
+            active.buffer = active.channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to grow user log " + active.path, e);
+        }
+    }
+
+    private void markDurable(long lsn) {
+        synchronized (syncMonitor) {
+            if (lsn > durableLsn) {
+                durableLsn = lsn;
+            }
+            syncMonitor.notifyAll();
+        }
+    }
+
+    private Segment openLog(int generation, int minCapacity) throws IOException {
+        Path path = directory.resolve("users-" + generation + ".log");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        int capacity = (int) Math.max(minCapacity, Math.min(channel.size(), MAX_CAPACITY));
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        return new Segment(logSegmentId(generation), path, channel, buffer);
+    }
+
+    private Segment mapSnapshot(int generation, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Segment(snapshotSegmentId(generation), path, null, buffer);
+        }
+    }
+
+    private void deleteBefore(int generation, Map<Integer, Path> logs, Map<Integer, Path> snapshots) throws IOException {
+        for (Map<Integer, Path> files : List.of(logs, snapshots)) {
+            for (Map.Entry<Integer, Path> entry : files.entrySet()) {
+                if (entry.getKey() < generation) {
+                    Files.delete(entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static void zero(MappedByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | offset;
+    }
+
+    private static int logSegmentId(int generation) {
+        return generation * 2 + 1;
+    }
+
+    private static int snapshotSegmentId(int generation) {
+        return generation * 2;
+    }
+
+    private static int generation(int segmentId) {
+        return segmentId / 2;
+    }
+
+    // Copies live records into users-N.snap, the rename in commit makes it visible to recovery
+    final class SnapshotWriter implements AutoCloseable {
+        private final int generation;
+        private final Path path;
+        private final Path tempPath;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        private long position;
+        private boolean committed;
+
+        private SnapshotWriter(int generation) throws IOException {
+            this.generation = generation;
+            this.path = directory.resolve("users-" + generation + ".snap");
+            this.tempPath = directory.resolve("users-" + generation + ".snap.tmp");
+            this.channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        long append(byte[] body) throws IOException {
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            return write(body.length, (int) crc.getValue(), ByteBuffer.wrap(body));
+        }
+
+        // Copies the framed record as is, the checksum stays valid
+        long copy(long location) throws IOException {
+            Segment segment = segments.get((int) (location >>> 32));
+            int offset = (int) location;
+            int length = segment.buffer.getInt(offset);
+            return write(length, segment.buffer.getInt(offset + 4), segment.buffer.slice(offset + HEADER_SIZE, length));
+        }
+
+        private long write(int length, int crc, ByteBuffer body) throws IOException {
+            if (position + HEADER_SIZE + length > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot exceeds the maximum segment size");
+            }
+            long location = location(snapshotSegmentId(generation), (int) position);
+            if (buffer.remaining() < HEADER_SIZE) {
+                flush();
+            }
+            buffer.putInt(length).putInt(crc);
+            while (body.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int chunk = Math.min(buffer.remaining(), body.remaining());
+                buffer.put(buffer.position(), body, body.position(), chunk);
+                buffer.position(buffer.position() + chunk);
+                body.position(body.position() + chunk);
+            }
+            position += HEADER_SIZE + length;
+            return location;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void commit() throws IOException {
+            flush();
+            channel.force(true);
+            channel.close();
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory();
+
+            Segment snapshot = mapSnapshot(generation, path);
+            segments.put(snapshot.id, snapshot);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(tempPath);
+            }
+        }
+
+        private void forceDirectory() {
+            // Makes the rename durable, not supported on every platform
+            try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                directoryChannel.force(true);
+            } catch (IOException e) {
+                logger.debug("Directory fsync not supported for {}", directory, e);
+            }
+        }
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private volatile MappedByteBuffer buffer;
+
+        Segment(int id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close segment {}", path, e);
+            }
+        }
+    }
+}
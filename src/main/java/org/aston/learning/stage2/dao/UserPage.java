@@ -0,0 +1,34 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.entity.User;
+
+import java.util.Collections;
+import java.util.List;
+
+public class UserPage {
+    private final List<User> users;
+    private final Long nextCursor;
+
+    public UserPage(List<User> users, Long nextCursor) {
+        this.users = Collections.unmodifiableList(users);
+        this.nextCursor = nextCursor;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    // Id of the last user on this page, null when there are no more pages
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UserPage{size=%d, nextCursor=%s}", users.size(), nextCursor);
+    }
+}
@@ -0,0 +1,109 @@
+package org.aston.learning.stage2.dao;
+
+import org.aston.learning.stage2.entity.User;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+// Body layout of the records UserLog frames and stores:
+// PUT     [type][id][createdAt seconds][createdAt nanos][age, -1 for null][name length][name][email length][email][version]
+// DELETE  [type][id]
+// NEXT_ID [type][next id], first record of a snapshot
+// Records written before versioning end after the email and read back as version 0
+final class UserRecord {
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte NEXT_ID = 3;
+
+    private static final int TYPE_OFFSET = 0;
+    private static final int ID_OFFSET = 1;
+    private static final int CREATED_SECONDS_OFFSET = 9;
+    private static final int CREATED_NANOS_OFFSET = 17;
+    private static final int AGE_OFFSET = 21;
+    private static final int NAME_OFFSET = 25;
+    private static final long NO_CREATED_AT = Long.MIN_VALUE;
+
+    private UserRecord() {
+    }
+
+    static byte[] put(User user) {
+        byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] email = user.getEmail().getBytes(StandardCharsets.UTF_8);
+        LocalDateTime createdAt = user.getCreatedAt();
+
+        ByteBuffer body = ByteBuffer.allocate(NAME_OFFSET + 4 + name.length + 4 + email.length + 8);
+        body.put(PUT)
+                .putLong(user.getId())
+                .putLong(createdAt == null ? NO_CREATED_AT : createdAt.toEpochSecond(ZoneOffset.UTC))
+                .putInt(createdAt == null ? 0 : createdAt.getNano())
+                .putInt(user.getAge() == null ? -1 : user.getAge())
+                .putInt(name.length).put(name)
+                .putInt(email.length).put(email)
+                .putLong(user.getVersion() == null ? 0L : user.getVersion());
+        return body.array();
+    }
+
+    static byte[] delete(long id) {
+        return ByteBuffer.allocate(9).put(DELETE).putLong(id).array();
+    }
+
+    static byte[] nextId(long nextId) {
+        return ByteBuffer.allocate(9).put(NEXT_ID).putLong(nextId).array();
+    }
+
+    static byte type(ByteBuffer body) {
+        return body.get(TYPE_OFFSET);
+    }
+
+    // The user id for PUT and DELETE, the next id for NEXT_ID
+    static long id(ByteBuffer body) {
+        return body.getLong(ID_OFFSET);
+    }
+
+    static String email(ByteBuffer body) {
+        int nameLength = body.getInt(NAME_OFFSET);
+        int emailOffset = NAME_OFFSET + 4 + nameLength;
+        return string(body, emailOffset + 4, body.getInt(emailOffset));
+    }
+
+    static long version(ByteBuffer body) {
+        int emailOffset = NAME_OFFSET + 4 + body.getInt(NAME_OFFSET);
+        int versionOffset = emailOffset + 4 + body.getInt(emailOffset);
+        return body.limit() >= versionOffset + 8 ? body.getLong(versionOffset) : 0L;
+    }
+
+    static User decode(ByteBuffer body) {
+        int nameLength = body.getInt(NAME_OFFSET);
+        int emailOffset = NAME_OFFSET + 4 + nameLength;
+        long createdSeconds = body.getLong(CREATED_SECONDS_OFFSET);
+        int age = body.getInt(AGE_OFFSET);
+
+        User user = new User();
+        user.setId(body.getLong(ID_OFFSET));
+        user.setName(string(body, NAME_OFFSET + 4, nameLength));
+        user.setEmail(string(body, emailOffset + 4, body.getInt(emailOffset)));
+        user.setAge(age < 0 ? null : age);
+        user.setVersion(version(body));
+        if (createdSeconds != NO_CREATED_AT) {
+            user.setCreatedAt(LocalDateTime.ofEpochSecond(createdSeconds, body.getInt(CREATED_NANOS_OFFSET), ZoneOffset.UTC));
+        }
+        return user;
+    }
+
+    // Decodes only what listings need, skipping createdAt and the User allocation
+    static UserSummary summary(ByteBuffer body) {
+        int nameLength = body.getInt(NAME_OFFSET);
+        int emailOffset = NAME_OFFSET + 4 + nameLength;
+        int age = body.getInt(AGE_OFFSET);
+        return new UserSummary(body.getLong(ID_OFFSET), string(body, NAME_OFFSET + 4, nameLength),
+                string(body, emailOffset + 4, body.getInt(emailOffset)), age < 0 ? UserSummary.NO_AGE : age);
+    }
+
+    private static String string(ByteBuffer body, int offset, int length) {
+        byte[] bytes = new byte[length];
+        body.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,17 @@
+package org.aston.learning.stage2.dao;
+
+// Read model for listings and exports, built straight from query results and never tracked
+// by a persistence context. A missing age is coalesced to NO_AGE to keep the field primitive.
+public record UserSummary(long id, String name, String email, int age) {
+    public static final int NO_AGE = -1;
+
+    public boolean hasAge() {
+        return age != NO_AGE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UserSummary{id=%d, name='%s', email='%s', age=%s}",
+                id, name, email, hasAge() ? age : "null");
+    }
+}
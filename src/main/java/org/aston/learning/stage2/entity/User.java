@@ -6,10 +6,28 @@ import java.time.LocalDateTime;
 
 @Entity
 @Table(name = "users")
+@NamedQuery(name = User.FIND_ALL, query = "FROM User u ORDER BY u.id")
+@NamedQuery(name = User.FIND_BY_IDS, query = "FROM User u WHERE u.id IN :ids")
+@NamedQuery(name = User.FIND_PAGE_AFTER, query = "FROM User u WHERE u.id > :lastId ORDER BY u.id")
+@NamedQuery(name = User.FIND_EMAILS_IN, query = "SELECT u.email FROM User u WHERE u.email IN :emails")
+@NamedQuery(name = User.DELETE_BY_ID, query = "DELETE FROM User u WHERE u.id = :id")
+@NamedQuery(name = User.FIND_SUMMARIES, query = "SELECT new org.aston.learning.stage2.dao.UserSummary("
+        + "u.id, u.name, u.email, coalesce(u.age, -1)) FROM User u ORDER BY u.id")
+@NamedQuery(name = User.FIND_SUMMARIES_AFTER, query = "SELECT new org.aston.learning.stage2.dao.UserSummary("
+        + "u.id, u.name, u.email, coalesce(u.age, -1)) FROM User u WHERE u.id > :lastId ORDER BY u.id")
 public class User {
+    // Named queries are parsed and validated once, when the SessionFactory is built
+    public static final String FIND_ALL = "User.findAll";
+    public static final String FIND_BY_IDS = "User.findByIds";
+    public static final String FIND_PAGE_AFTER = "User.findPageAfter";
+    public static final String FIND_EMAILS_IN = "User.findEmailsIn";
+    public static final String DELETE_BY_ID = "User.deleteById";
+    public static final String FIND_SUMMARIES = "User.findSummaries";
+    public static final String FIND_SUMMARIES_AFTER = "User.findSummariesAfter";
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "users_seq")
+    @SequenceGenerator(name = "users_seq", sequenceName = "users_seq", allocationSize = 50)
     private Long id;
 
     @Column(name = "name", nullable = false, length = 100)
@@ -24,6 +42,11 @@ public class User {
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
 
+    // Bumped on every update, an UPDATE carrying a stale version matches no row
+    @Version
+    @Column(name = "version", nullable = false)
+    private Long version;
+
     // Constructs
     public User() {
     }
@@ -80,6 +103,14 @@ public class User {
         this.createdAt = createdAt;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     @Override
     public String toString() {
         return String.format("User{id=%d, name='%s', email='%s', age=%d, createdAt=%s}",
@@ -0,0 +1,86 @@
+package org.aston.learning.stage2.event;
+
+import org.aston.learning.stage2.entity.User;
+
+// One change to a user as a listener sees it. The processor reuses a single instance for every
+// event it delivers, so listeners copy whatever they keep beyond onEvent. Deleted events carry
+// only the id.
+public final class UserEvent {
+    public enum Type {
+        CREATED,
+        UPDATED,
+        DELETED
+    }
+
+    private Type type;
+    private long userId;
+    private String name;
+    private String email;
+    private Integer age;
+    private Long version;
+    private long timestampMillis;
+
+    void set(Type type, long userId, String name, String email, Integer age, Long version, long timestampMillis) {
+        this.type = type;
+        this.userId = userId;
+        this.name = name;
+        this.email = email;
+        this.age = age;
+        this.version = version;
+        this.timestampMillis = timestampMillis;
+    }
+
+    void copyFrom(UserEvent other) {
+        set(other.type, other.userId, other.name, other.email, other.age, other.version, other.timestampMillis);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public Integer getAge() {
+        return age;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    // A detached User with the event's state, null for deletions
+    public User toUser() {
+        if (type == Type.DELETED) {
+            return null;
+        }
+        User user = new User();
+        user.setId(userId);
+        user.setName(name);
+        user.setEmail(email);
+        user.setAge(age);
+        user.setVersion(version);
+        return user;
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.DELETED
+                ? String.format("UserEvent{type=%s, userId=%d}", type, userId)
+                : String.format("UserEvent{type=%s, userId=%d, name='%s', email='%s', age=%s, version=%s}",
+                        type, userId, name, email, age, version);
+    }
+}
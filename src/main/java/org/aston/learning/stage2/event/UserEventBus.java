@@ -0,0 +1,179 @@
+package org.aston.learning.stage2.event;
+
+import org.aston.learning.stage2.entity.User;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Preallocated ring of user change events with any number of publishers and independent
+// consumers. Publishers claim a sequence with one atomic increment and copy the event into
+// its slot, nothing waits for consumers: a consumer more than a ring behind loses the
+// overwritten events and reports them as lost instead of holding the writers back.
+//
+// Each slot is a seqlock. Its sequence is set to IN_PROGRESS while a publisher copies the
+// event in and to the event's sequence once it is complete, a reader copies the slot out and
+// keeps the copy only if the sequence did not change meanwhile.
+public class UserEventBus implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(UserEventBus.class);
+    private static final long IN_PROGRESS = Long.MIN_VALUE;
+    private static final long EMPTY = -1L;
+    private static final int SPINS_BEFORE_YIELD = 100;
+    private static final VarHandle SEQUENCE;
+
+    static {
+        try {
+            SEQUENCE = MethodHandles.lookup().findVarHandle(Slot.class, "sequence", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private final LongAdder overwritten = new LongAdder();
+    private final List<UserEventProcessor> processors = new ArrayList<>();
+    // Copy-on-subscribe snapshot read by publishers, only BLOCKING processors need waking up
+    private volatile UserEventProcessor[] blocking = new UserEventProcessor[0];
+
+    public UserEventBus(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.slots = new Slot[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    // -Duser.events.capacity=8192
+    public static UserEventBus fromSystemProperties() {
+        return new UserEventBus(Integer.getInteger("user.events.capacity", 8192));
+    }
+
+    public void publishCreated(User user) {
+        publish(UserEvent.Type.CREATED, user);
+    }
+
+    public void publishUpdated(User user) {
+        publish(UserEvent.Type.UPDATED, user);
+    }
+
+    public void publishDeleted(long userId) {
+        publish(UserEvent.Type.DELETED, userId, null, null, null, null);
+    }
+
+    // Delivers events published from now on to the listener on its own thread
+    public synchronized UserEventProcessor subscribe(String name, UserEventListener listener,
+                                                     WaitStrategy waitStrategy, int maxBatch) {
+        UserEventProcessor processor = new UserEventProcessor(this, name, listener, waitStrategy, maxBatch, next.get());
+        processors.add(processor);
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            List<UserEventProcessor> waking = new ArrayList<>(List.of(blocking));
+            waking.add(processor);
+            blocking = waking.toArray(new UserEventProcessor[0]);
+        }
+        processor.start();
+        logger.info("User event consumer {} subscribed ({}, batches of up to {})", name, waitStrategy, maxBatch);
+        return processor;
+    }
+
+    public synchronized List<UserEventProcessor> getProcessors() {
+        return List.copyOf(processors);
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    // Sequences handed out so far, the next event gets this one
+    public long getPublished() {
+        return next.get();
+    }
+
+    // Publishers that found their slot already taken by an event a full ring newer
+    public long getOverwritten() {
+        return overwritten.sum();
+    }
+
+    // Stops the processors after they drain what has been published
+    @Override
+    public synchronized void close() {
+        for (UserEventProcessor processor : processors) {
+            processor.stop();
+        }
+        for (UserEventProcessor processor : processors) {
+            processor.awaitTermination();
+        }
+        processors.clear();
+        blocking = new UserEventProcessor[0];
+    }
+
+    private void publish(UserEvent.Type type, User user) {
+        publish(type, user.getId(), user.getName(), user.getEmail(), user.getAge(), user.getVersion());
+    }
+
+    private void publish(UserEvent.Type type, long userId, String name, String email, Integer age, Long version) {
+        long sequence = next.getAndIncrement();
+        Slot slot = slots[(int) (sequence & mask)];
+        if (!claim(slot, sequence)) {
+            overwritten.increment();
+            return;
+        }
+        slot.event.set(type, userId, name, email, age, version, System.currentTimeMillis());
+        // Volatile rather than release so the parked flags read below cannot be read first
+        SEQUENCE.setVolatile(slot, sequence);
+
+        for (UserEventProcessor processor : blocking) {
+            processor.wakeUpIfParked();
+        }
+    }
+
+    private static boolean claim(Slot slot, long sequence) {
+        for (int spins = 0; ; spins++) {
+            long current = (long) SEQUENCE.getAcquire(slot);
+            if (current >= sequence) {
+                return false;
+            }
+            if (current != IN_PROGRESS && SEQUENCE.compareAndSet(slot, current, IN_PROGRESS)) {
+                return true;
+            }
+            // A publisher a full ring behind is still copying into this slot, it holds no lock
+            // and is done in a few stores, so this never waits for long
+            if (spins < SPINS_BEFORE_YIELD) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    // The sequence stored in the slot the given sequence maps to
+    long sequenceAt(long sequence) {
+        return (long) SEQUENCE.getAcquire(slots[(int) (sequence & mask)]);
+    }
+
+    // Copies the event into target, false if it was overwritten by a newer one
+    boolean read(long sequence, UserEvent target) {
+        Slot slot = slots[(int) (sequence & mask)];
+        if ((long) SEQUENCE.getAcquire(slot) != sequence) {
+            return false;
+        }
+        target.copyFrom(slot.event);
+        // The copy must be complete before the sequence is checked again
+        VarHandle.loadLoadFence();
+        return (long) SEQUENCE.getAcquire(slot) == sequence;
+    }
+
+    private static final class Slot {
+        private final UserEvent event = new UserEvent();
+        private long sequence = EMPTY;
+    }
+}
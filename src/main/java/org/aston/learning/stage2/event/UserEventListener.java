@@ -0,0 +1,11 @@
+package org.aston.learning.stage2.event;
+
+@FunctionalInterface
+public interface UserEventListener {
+    // endOfBatch marks the last event currently available, a good point to flush buffered work
+    void onEvent(UserEvent event, long sequence, boolean endOfBatch);
+
+    // Events the listener fell too far behind for and that were overwritten before it got to them
+    default void onEventsLost(long count) {
+    }
+}
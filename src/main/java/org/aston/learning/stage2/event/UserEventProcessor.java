@@ -0,0 +1,190 @@
+package org.aston.learning.stage2.event;
+
+import org.aston.learning.stage2.metrics.EventConsumerMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs one listener on its own thread with its own position in the ring. It takes everything
+// published since its last batch, up to maxBatch, and hands the events over one by one. How far
+// it trails the publishers is its lag, exposed with the lost and consumed counts over JMX.
+public class UserEventProcessor {
+    private static final Logger logger = LogManager.getLogger(UserEventProcessor.class);
+    private static final int SPIN_ROUNDS = 100;
+    private static final int YIELD_ROUNDS = 200;
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    // BLOCKING also wakes up on its own now and then, a wake-up lost to a race costs at most this
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final UserEventBus bus;
+    private final String name;
+    private final UserEventListener listener;
+    private final WaitStrategy waitStrategy;
+    private final int maxBatch;
+    private final UserEvent event = new UserEvent();
+    private final Thread thread;
+    private final EventConsumerMetrics metrics;
+
+    // Next sequence to consume, written by the processor thread only
+    private volatile long position;
+    private volatile boolean parked;
+    private volatile boolean running = true;
+
+    UserEventProcessor(UserEventBus bus, String name, UserEventListener listener,
+                       WaitStrategy waitStrategy, int maxBatch, long startSequence) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("Max batch must be positive: " + maxBatch);
+        }
+        this.bus = bus;
+        this.name = name;
+        this.listener = listener;
+        this.waitStrategy = waitStrategy;
+        this.maxBatch = maxBatch;
+        this.position = startSequence;
+        this.thread = new Thread(this::run, "user-events-" + name);
+        this.thread.setDaemon(true);
+        this.metrics = EventConsumerMetrics.register(name, this::getLag);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Events published that this consumer has not processed yet
+    public long getLag() {
+        return Math.max(0, bus.getPublished() - position);
+    }
+
+    public EventConsumerMetrics getMetrics() {
+        return metrics;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    void awaitTermination() {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metrics.unregister(name);
+    }
+
+    void wakeUpIfParked() {
+        if (parked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        int idleRounds = 0;
+        while (true) {
+            if (processBatch() > 0) {
+                idleRounds = 0;
+            } else if (running) {
+                idle(idleRounds++);
+            } else {
+                // Stopped and caught up with everything published
+                break;
+            }
+        }
+    }
+
+    private int processBatch() {
+        long next = position;
+        long published = bus.getPublished();
+        if (published - next > bus.getCapacity()) {
+            // Lapped: the oldest events were overwritten, carry on from the oldest one left
+            long skipTo = published - bus.getCapacity();
+            lost(skipTo - next);
+            next = skipTo;
+        }
+
+        // Contiguous run of complete events, a slot still being written ends the batch
+        long end = next;
+        long limit = Math.min(published, next + maxBatch);
+        while (end < limit && bus.sequenceAt(end) >= end) {
+            end++;
+        }
+        if (end == next) {
+            position = next;
+            return 0;
+        }
+
+        int delivered = 0;
+        for (long sequence = next; sequence < end; sequence++) {
+            if (!bus.read(sequence, event)) {
+                lost(1);
+                continue;
+            }
+            delivered++;
+            try {
+                listener.onEvent(event, sequence, sequence == end - 1);
+            } catch (RuntimeException e) {
+                metrics.recordError();
+                logger.error("User event consumer {} failed on event {}", name, sequence, e);
+            }
+        }
+        metrics.recordBatch(delivered);
+        position = end;
+        return (int) (end - next);
+    }
+
+    private void lost(long count) {
+        metrics.recordLost(count);
+        try {
+            listener.onEventsLost(count);
+        } catch (RuntimeException e) {
+            logger.error("User event consumer {} failed on {} lost events", name, count, e);
+        }
+    }
+
+    private void idle(int round) {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELDING:
+                if (round < SPIN_ROUNDS) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+                break;
+            case SLEEPING:
+                if (round < SPIN_ROUNDS) {
+                    Thread.onSpinWait();
+                } else if (round < YIELD_ROUNDS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(SLEEP_NANOS);
+                }
+                break;
+            case BLOCKING:
+                parked = true;
+                // Publishers check the flag after publishing, so an event that arrived before
+                // it was set is seen here and one that arrives after it is followed by an unpark
+                if (bus.sequenceAt(position) < position) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                parked = false;
+                break;
+            default:
+                throw new IllegalStateException("Unknown wait strategy: " + waitStrategy);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + metrics;
+    }
+}
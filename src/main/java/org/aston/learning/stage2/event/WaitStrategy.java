@@ -0,0 +1,15 @@
+package org.aston.learning.stage2.event;
+
+// What a processor does while it has caught up with the publishers. The spinning strategies
+// have the lowest latency and burn a core each, BLOCKING parks until a publisher wakes it
+public enum WaitStrategy {
+    BUSY_SPIN,
+    YIELDING,
+    SLEEPING,
+    BLOCKING;
+
+    // -Duser.events.waitStrategy=busy_spin|yielding|sleeping|blocking
+    public static WaitStrategy fromSystemProperties() {
+        return valueOf(System.getProperty("user.events.waitStrategy", "blocking").toUpperCase());
+    }
+}
@@ -0,0 +1,14 @@
+package org.aston.learning.stage2.exception;
+
+// The user was changed by someone else between the read and the write, retrying may succeed
+public class ConcurrentUpdateException extends UserServiceException {
+    private static final long serialVersionUID = 1L;
+
+    public ConcurrentUpdateException(String message) {
+        this(message, null);
+    }
+
+    public ConcurrentUpdateException(String message, Throwable cause) {
+        super(ErrorCode.CONCURRENT_UPDATE, message, cause);
+    }
+}
@@ -0,0 +1,16 @@
+package org.aston.learning.stage2.exception;
+
+public class DuplicateEmailException extends UserServiceException {
+    private static final long serialVersionUID = 1L;
+
+    public DuplicateEmailException(String email) {
+        this(email, null);
+    }
+
+    // The cause is the unique constraint violation when the database caught the duplicate
+    public DuplicateEmailException(String email, Throwable cause) {
+        super(ErrorCode.DUPLICATE_EMAIL,
+                email == null ? "User with this email already exists" : "User with this email already exists: " + email,
+                cause);
+    }
+}
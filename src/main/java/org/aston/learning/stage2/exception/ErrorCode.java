@@ -0,0 +1,23 @@
+package org.aston.learning.stage2.exception;
+
+// What went wrong, so callers branch on a code instead of parsing messages. Expected failures
+// are part of normal traffic and are thrown without a stack trace, only storage failures point
+// at a bug or an outage and carry one
+public enum ErrorCode {
+    INVALID_INPUT(true),
+    NOT_FOUND(true),
+    DUPLICATE_EMAIL(true),
+    CONCURRENT_UPDATE(true),
+    OVERLOADED(true),
+    STORAGE_FAILURE(false);
+
+    private final boolean expected;
+
+    ErrorCode(boolean expected) {
+        this.expected = expected;
+    }
+
+    public boolean isExpected() {
+        return expected;
+    }
+}
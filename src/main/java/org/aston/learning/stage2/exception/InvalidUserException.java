@@ -0,0 +1,10 @@
+package org.aston.learning.stage2.exception;
+
+// The request itself is wrong: a missing or malformed field, an id or page out of range
+public class InvalidUserException extends UserServiceException {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidUserException(String message) {
+        super(ErrorCode.INVALID_INPUT, message, null);
+    }
+}
@@ -0,0 +1,11 @@
+package org.aston.learning.stage2.exception;
+
+// The request was turned away because the service is at its concurrency limit, nothing was done
+// and retrying after a pause may succeed
+public class ServiceOverloadedException extends UserServiceException {
+    private static final long serialVersionUID = 1L;
+
+    public ServiceOverloadedException(String message) {
+        super(ErrorCode.OVERLOADED, message, null);
+    }
+}
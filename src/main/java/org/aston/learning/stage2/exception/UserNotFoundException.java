@@ -0,0 +1,9 @@
+package org.aston.learning.stage2.exception;
+
+public class UserNotFoundException extends UserServiceException {
+    private static final long serialVersionUID = 1L;
+
+    public UserNotFoundException(Long id) {
+        super(ErrorCode.NOT_FOUND, "User not found with ID: " + id, null);
+    }
+}
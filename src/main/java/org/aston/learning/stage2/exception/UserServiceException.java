@@ -1,11 +1,28 @@
 package org.aston.learning.stage2.exception;
 
 public class UserServiceException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final ErrorCode code;
+
     public UserServiceException(String message) {
-        super(message);
+        this(message, null);
     }
 
+    // A storage failure, wrapped once where it is caught with the original kept as the cause
     public UserServiceException(String message, Throwable cause) {
         super(message, cause);
+        this.code = ErrorCode.STORAGE_FAILURE;
+    }
+
+    // Expected failures skip filling in the stack trace, the most expensive part of throwing.
+    // The message and the code say all there is to say, and a cause keeps its own trace
+    protected UserServiceException(ErrorCode code, String message, Throwable cause) {
+        super(message, cause, false, false);
+        this.code = code;
+    }
+
+    public ErrorCode getCode() {
+        return code;
     }
-}
\ No newline at end of file
+}
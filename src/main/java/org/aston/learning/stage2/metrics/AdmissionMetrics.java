@@ -0,0 +1,109 @@
+package org.aston.learning.stage2.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// What an admission limiter let in, made wait or turned away. The limit, in-flight and queued
+// gauges are read from the limiter itself whenever JMX asks
+public class AdmissionMetrics implements AdmissionMetricsMBean {
+    private static final double NANOS_PER_MICRO = 1_000.0;
+
+    // Bound by register, zero until then
+    private volatile IntSupplier limit = () -> 0;
+    private volatile IntSupplier inFlight = () -> 0;
+    private volatile IntSupplier queued = () -> 0;
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder rejectedQueueFull = new LongAdder();
+    private final LongAdder rejectedTimeout = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    public void register(String name, IntSupplier limit, IntSupplier inFlight, IntSupplier queued) {
+        this.limit = limit;
+        this.inFlight = inFlight;
+        this.queued = queued;
+        MetricsRegistry.registerMBean("Admission", name, this);
+    }
+
+    public void recordAdmitted() {
+        admitted.increment();
+    }
+
+    public void recordAdmittedAfterWait(long waitNanos) {
+        admitted.increment();
+        waited.increment();
+        queueWait.record(waitNanos);
+    }
+
+    public void recordQueueFull() {
+        rejectedQueueFull.increment();
+    }
+
+    public void recordTimeout(long waitNanos) {
+        rejectedTimeout.increment();
+        queueWait.record(waitNanos);
+    }
+
+    @Override
+    public int getLimit() {
+        return limit.getAsInt();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.getAsInt();
+    }
+
+    @Override
+    public int getQueued() {
+        return queued.getAsInt();
+    }
+
+    @Override
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    @Override
+    public long getWaited() {
+        return waited.sum();
+    }
+
+    @Override
+    public long getRejectedQueueFull() {
+        return rejectedQueueFull.sum();
+    }
+
+    @Override
+    public long getRejectedTimeout() {
+        return rejectedTimeout.sum();
+    }
+
+    // Share of requests turned away, whether the queue was full or the wait ran out
+    @Override
+    public double getRejectionRate() {
+        long rejected = rejectedQueueFull.sum() + rejectedTimeout.sum();
+        long total = admitted.sum() + rejected;
+        return total == 0 ? 0.0 : (double) rejected / total;
+    }
+
+    @Override
+    public double getQueueWaitP99Micros() {
+        return queueWait.snapshot().getValueAtPercentile(99.0) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public void reset() {
+        admitted.reset();
+        waited.reset();
+        rejectedQueueFull.reset();
+        rejectedTimeout.reset();
+        queueWait.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Admission{limit=%d, admitted=%d, waited=%d, rejectedQueueFull=%d, rejectedTimeout=%d, rejectionRate=%.3f}",
+                getLimit(), getAdmitted(), getWaited(), getRejectedQueueFull(), getRejectedTimeout(), getRejectionRate());
+    }
+}
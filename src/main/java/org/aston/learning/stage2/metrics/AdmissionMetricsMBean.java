@@ -0,0 +1,14 @@
+package org.aston.learning.stage2.metrics;
+
+public interface AdmissionMetricsMBean {
+    int getLimit();
+    int getInFlight();
+    int getQueued();
+    long getAdmitted();
+    long getWaited();
+    long getRejectedQueueFull();
+    long getRejectedTimeout();
+    double getRejectionRate();
+    double getQueueWaitP99Micros();
+    void reset();
+}
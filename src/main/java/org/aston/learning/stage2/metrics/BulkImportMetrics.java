@@ -0,0 +1,102 @@
+package org.aston.learning.stage2.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Progress of one running bulk import, registered for as long as the import runs. Rows are
+// counted as the file is parsed, as validation rejects them and as COPY has taken them
+public class BulkImportMetrics implements BulkImportMetricsMBean {
+    private static final String MBEAN_TYPE = "BulkImport";
+
+    private final long bytesTotal;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder rowsRejected = new LongAdder();
+    private final LongAdder rowsCopied = new LongAdder();
+    private volatile String phase = "copy";
+
+    private BulkImportMetrics(long bytesTotal) {
+        this.bytesTotal = bytesTotal;
+    }
+
+    public static BulkImportMetrics register(String name, long bytesTotal) {
+        BulkImportMetrics metrics = new BulkImportMetrics(bytesTotal);
+        MetricsRegistry.registerMBean(MBEAN_TYPE, name, metrics);
+        return metrics;
+    }
+
+    public void unregister(String name) {
+        MetricsRegistry.unregisterMBean(MBEAN_TYPE, name);
+    }
+
+    public void recordRead(int rows, long bytes) {
+        rowsRead.add(rows);
+        bytesRead.add(bytes);
+    }
+
+    public void recordRejected(int rows) {
+        rowsRejected.add(rows);
+    }
+
+    public void recordCopied(int rows) {
+        rowsCopied.add(rows);
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    @Override
+    public String getPhase() {
+        return phase;
+    }
+
+    @Override
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public double getPercentRead() {
+        return bytesTotal == 0 ? 100.0 : 100.0 * bytesRead.sum() / bytesTotal;
+    }
+
+    @Override
+    public long getRowsRead() {
+        return rowsRead.sum();
+    }
+
+    @Override
+    public long getRowsRejected() {
+        return rowsRejected.sum();
+    }
+
+    @Override
+    public long getRowsCopied() {
+        return rowsCopied.sum();
+    }
+
+    // Average since the import started, the progress log shows the rate of the last interval
+    @Override
+    public double getRowsPerSecond() {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        return elapsedNanos == 0 ? 0.0 : rowsCopied.sum() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BulkImport{phase=%s, read=%.1f%%, rows=%d, rejected=%d, copied=%d, rowsPerSecond=%.0f}",
+                getPhase(), getPercentRead(), getRowsRead(), getRowsRejected(), getRowsCopied(), getRowsPerSecond());
+    }
+}
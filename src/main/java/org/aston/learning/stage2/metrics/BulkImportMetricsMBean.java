@@ -0,0 +1,13 @@
+package org.aston.learning.stage2.metrics;
+
+public interface BulkImportMetricsMBean {
+    String getPhase();
+    long getBytesTotal();
+    long getBytesRead();
+    double getPercentRead();
+    long getRowsRead();
+    long getRowsRejected();
+    long getRowsCopied();
+    double getRowsPerSecond();
+    long getElapsedMillis();
+}
@@ -0,0 +1,109 @@
+package org.aston.learning.stage2.metrics;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Hikari calls the tracker on every checkout, so it only records into histograms
+public class ConnectionPoolMetrics implements IMetricsTracker, ConnectionPoolMetricsMBean {
+    private static final String MBEAN_TYPE = "ConnectionPool";
+
+    private final String poolName;
+    private final PoolStats poolStats;
+    private final OperationMetrics acquire;
+    private final LatencyHistogram usage = new LatencyHistogram();
+    private final LongAdder timeouts = new LongAdder();
+
+    private ConnectionPoolMetrics(String poolName, PoolStats poolStats) {
+        this.poolName = poolName;
+        this.poolStats = poolStats;
+        // Shows up in the periodic dump next to the dao.* and service.* operations
+        this.acquire = MetricsRegistry.operation("pool." + poolName + ".acquire");
+    }
+
+    public static MetricsTrackerFactory factory() {
+        return (poolName, poolStats) -> {
+            ConnectionPoolMetrics metrics = new ConnectionPoolMetrics(poolName, poolStats);
+            MetricsRegistry.registerMBean(MBEAN_TYPE, poolName, metrics);
+            return metrics;
+        };
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        acquire.record(elapsedAcquiredNanos, true);
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+        timeouts.increment();
+    }
+
+    @Override
+    public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+        usage.record(TimeUnit.MILLISECONDS.toNanos(elapsedBorrowedMillis));
+    }
+
+    @Override
+    public void close() {
+        MetricsRegistry.unregisterMBean(MBEAN_TYPE, poolName);
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return poolStats.getActiveConnections();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return poolStats.getIdleConnections();
+    }
+
+    @Override
+    public int getTotalConnections() {
+        return poolStats.getTotalConnections();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return poolStats.getMaxConnections();
+    }
+
+    @Override
+    public int getPendingThreads() {
+        return poolStats.getPendingThreads();
+    }
+
+    @Override
+    public long getAcquireCount() {
+        return acquire.getCount();
+    }
+
+    @Override
+    public long getAcquireTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public double getAcquireP50Micros() {
+        return acquire.getP50Micros();
+    }
+
+    @Override
+    public double getAcquireP99Micros() {
+        return acquire.getP99Micros();
+    }
+
+    @Override
+    public double getAcquireMaxMicros() {
+        return acquire.getMaxMicros();
+    }
+
+    @Override
+    public double getUsageP99Millis() {
+        return usage.snapshot().getValueAtPercentile(99.0) / 1_000_000.0;
+    }
+}
@@ -0,0 +1,15 @@
+package org.aston.learning.stage2.metrics;
+
+public interface ConnectionPoolMetricsMBean {
+    int getActiveConnections();
+    int getIdleConnections();
+    int getTotalConnections();
+    int getMaxConnections();
+    int getPendingThreads();
+    long getAcquireCount();
+    long getAcquireTimeouts();
+    double getAcquireP50Micros();
+    double getAcquireP99Micros();
+    double getAcquireMaxMicros();
+    double getUsageP99Millis();
+}
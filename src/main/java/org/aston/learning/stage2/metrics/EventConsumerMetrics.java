@@ -0,0 +1,97 @@
+package org.aston.learning.stage2.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Progress of one event consumer. A slow consumer never slows the publishers down, it shows up
+// here as a growing lag and, once it is a full ring behind, as lost events
+public class EventConsumerMetrics implements EventConsumerMetricsMBean {
+    private static final String MBEAN_TYPE = "UserEventConsumer";
+
+    private final LongSupplier lag;
+    private final LongAdder consumed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    // Batch sizes are recorded as if they were nanoseconds, the histogram only sees numbers
+    private final LatencyHistogram batchSizes = new LatencyHistogram();
+
+    private EventConsumerMetrics(LongSupplier lag) {
+        this.lag = lag;
+    }
+
+    public static EventConsumerMetrics register(String name, LongSupplier lag) {
+        EventConsumerMetrics metrics = new EventConsumerMetrics(lag);
+        MetricsRegistry.registerMBean(MBEAN_TYPE, name, metrics);
+        return metrics;
+    }
+
+    public void unregister(String name) {
+        MetricsRegistry.unregisterMBean(MBEAN_TYPE, name);
+    }
+
+    public void recordBatch(int size) {
+        consumed.add(size);
+        batches.increment();
+        batchSizes.record(size);
+    }
+
+    public void recordLost(long count) {
+        lost.add(count);
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    @Override
+    public long getLag() {
+        return lag.getAsLong();
+    }
+
+    @Override
+    public long getConsumed() {
+        return consumed.sum();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getLost() {
+        return lost.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0.0 : (double) consumed.sum() / count;
+    }
+
+    @Override
+    public double getBatchSizeP99() {
+        return batchSizes.snapshot().getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public void reset() {
+        consumed.reset();
+        batches.reset();
+        lost.reset();
+        errors.reset();
+        batchSizes.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EventConsumer{lag=%d, consumed=%d, batches=%d, lost=%d, errors=%d, meanBatch=%.1f}",
+                getLag(), getConsumed(), getBatches(), getLost(), getErrors(), getMeanBatchSize());
+    }
+}
@@ -0,0 +1,12 @@
+package org.aston.learning.stage2.metrics;
+
+public interface EventConsumerMetricsMBean {
+    long getLag();
+    long getConsumed();
+    long getBatches();
+    long getLost();
+    long getErrors();
+    double getMeanBatchSize();
+    double getBatchSizeP99();
+    void reset();
+}
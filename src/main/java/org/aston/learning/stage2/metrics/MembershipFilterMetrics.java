@@ -0,0 +1,144 @@
+package org.aston.learning.stage2.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lookups answered by one membership filter. A definite negative skipped the storage, a positive
+// went on to it and turned out true or false. The observed rate is the share of absent keys the
+// filter let through, the expected one what the filter's fill predicts.
+public class MembershipFilterMetrics implements MembershipFilterMetricsMBean {
+    private static final String MBEAN_TYPE = "MembershipFilter";
+
+    private final Source source;
+    private final LongAdder definiteNegatives = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder truePositives = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+    private volatile long lastRebuildNanos;
+
+    private MembershipFilterMetrics(Source source) {
+        this.source = source;
+    }
+
+    public static MembershipFilterMetrics register(String name, Source source) {
+        MembershipFilterMetrics metrics = new MembershipFilterMetrics(source);
+        MetricsRegistry.registerMBean(MBEAN_TYPE, name, metrics);
+        return metrics;
+    }
+
+    public void unregister(String name) {
+        MetricsRegistry.unregisterMBean(MBEAN_TYPE, name);
+    }
+
+    public void recordDefiniteNegative() {
+        definiteNegatives.increment();
+    }
+
+    public void recordPositive(boolean present) {
+        if (present) {
+            truePositives.increment();
+        } else {
+            falsePositives.increment();
+        }
+    }
+
+    // Lookups that went to the storage because the filter was not built yet
+    public void recordBypass() {
+        bypassed.increment();
+    }
+
+    public void recordRebuild(long nanos) {
+        rebuilds.increment();
+        lastRebuildNanos = nanos;
+    }
+
+    @Override
+    public boolean isReady() {
+        return source.isReady();
+    }
+
+    @Override
+    public long getEntries() {
+        return source.entries();
+    }
+
+    @Override
+    public long getCapacity() {
+        return source.capacity();
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return source.memoryBytes();
+    }
+
+    @Override
+    public double getExpectedFalsePositiveRate() {
+        return source.expectedFalsePositiveRate();
+    }
+
+    @Override
+    public double getObservedFalsePositiveRate() {
+        long negatives = definiteNegatives.sum();
+        long falses = falsePositives.sum();
+        return negatives + falses == 0 ? 0.0 : (double) falses / (negatives + falses);
+    }
+
+    @Override
+    public long getDefiniteNegatives() {
+        return definiteNegatives.sum();
+    }
+
+    @Override
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    @Override
+    public long getTruePositives() {
+        return truePositives.sum();
+    }
+
+    @Override
+    public long getBypassed() {
+        return bypassed.sum();
+    }
+
+    @Override
+    public long getRebuilds() {
+        return rebuilds.sum();
+    }
+
+    @Override
+    public long getLastRebuildMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastRebuildNanos);
+    }
+
+    @Override
+    public void reset() {
+        definiteNegatives.reset();
+        falsePositives.reset();
+        truePositives.reset();
+        bypassed.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MembershipFilter{ready=%s, entries=%d, capacity=%d, memory=%dKB, expectedFpr=%.4f, "
+                        + "observedFpr=%.4f, definiteNegatives=%d, falsePositives=%d, truePositives=%d, bypassed=%d, "
+                        + "rebuilds=%d, lastRebuild=%dms}",
+                isReady(), getEntries(), getCapacity(), getMemoryBytes() / 1024, getExpectedFalsePositiveRate(),
+                getObservedFalsePositiveRate(), getDefiniteNegatives(), getFalsePositives(), getTruePositives(),
+                getBypassed(), getRebuilds(), getLastRebuildMillis());
+    }
+
+    // The filter as it is when the MBean is read, it gets replaced on every rebuild
+    public interface Source {
+        boolean isReady();
+        long entries();
+        long capacity();
+        long memoryBytes();
+        double expectedFalsePositiveRate();
+    }
+}
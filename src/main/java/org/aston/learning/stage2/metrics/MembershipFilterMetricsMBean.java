@@ -0,0 +1,17 @@
+package org.aston.learning.stage2.metrics;
+
+public interface MembershipFilterMetricsMBean {
+    boolean isReady();
+    long getEntries();
+    long getCapacity();
+    long getMemoryBytes();
+    double getExpectedFalsePositiveRate();
+    double getObservedFalsePositiveRate();
+    long getDefiniteNegatives();
+    long getFalsePositives();
+    long getTruePositives();
+    long getBypassed();
+    long getRebuilds();
+    long getLastRebuildMillis();
+    void reset();
+}
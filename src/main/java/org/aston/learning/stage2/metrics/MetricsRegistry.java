@@ -0,0 +1,106 @@
+package org.aston.learning.stage2.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsRegistry {
+    private static final Logger logger = LogManager.getLogger(MetricsRegistry.class);
+    private static final String JMX_DOMAIN = "org.aston.learning.stage2";
+    private static final Map<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram.Snapshot> lastDump = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService reporter;
+
+    public static OperationMetrics operation(String name) {
+        OperationMetrics metrics = operations.get(name);
+        if (metrics != null) {
+            return metrics;
+        }
+        return operations.computeIfAbsent(name, key -> {
+            OperationMetrics created = new OperationMetrics(key);
+            registerMBean("Operation", key, created);
+            return created;
+        });
+    }
+
+    public static void registerMBean(String type, String name, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(type, name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(mbean, objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to register MBean {}/{}", type, name, e);
+        }
+    }
+
+    public static void unregisterMBean(String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(type, name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to unregister MBean {}/{}", type, name, e);
+        }
+    }
+
+    private static ObjectName objectName(String type, String name) throws Exception {
+        return new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+
+    public static synchronized void startReporter(Duration period) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodMillis = period.toMillis();
+        reporter.scheduleAtFixedRate(MetricsRegistry::dump, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        logger.info("Metrics snapshot dump scheduled every {}", period);
+    }
+
+    public static synchronized void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    // Logs per-operation throughput and latency for the interval since the previous dump
+    public static void dump() {
+        Map<String, OperationMetrics> sorted = new TreeMap<>(operations);
+        for (OperationMetrics metrics : sorted.values()) {
+            LatencyHistogram.Snapshot current = metrics.snapshot();
+            LatencyHistogram.Snapshot previous = lastDump.put(metrics.getName(), current);
+            LatencyHistogram.Snapshot interval = previous == null ? current : current.minus(previous);
+            if (interval.getCount() == 0) {
+                continue;
+            }
+            logger.info("{}: count={} (total {}), errors={}, mean={}us, p50={}us, p99={}us, p99.9={}us, max={}us",
+                    metrics.getName(), interval.getCount(), current.getCount(), metrics.getErrorCount(),
+                    micros(interval.getMean()), micros(interval.getValueAtPercentile(50.0)),
+                    micros(interval.getValueAtPercentile(99.0)), micros(interval.getValueAtPercentile(99.9)),
+                    micros(current.getMax()));
+        }
+    }
+
+    private static long micros(double nanos) {
+        return Math.round(nanos / 1_000.0);
+    }
+}
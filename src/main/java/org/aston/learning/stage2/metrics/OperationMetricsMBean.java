@@ -0,0 +1,12 @@
+package org.aston.learning.stage2.metrics;
+
+public interface OperationMetricsMBean {
+    long getCount();
+    long getErrorCount();
+    double getMeanMicros();
+    double getP50Micros();
+    double getP99Micros();
+    double getP999Micros();
+    double getMaxMicros();
+    void reset();
+}
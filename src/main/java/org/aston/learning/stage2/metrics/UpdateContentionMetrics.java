@@ -0,0 +1,94 @@
+package org.aston.learning.stage2.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Conflicts seen by read-modify-write updates: how often a write lost a race,
+// how many attempts a successful update took and how long was spent backing off
+public class UpdateContentionMetrics implements UpdateContentionMetricsMBean {
+    private static final double NANOS_PER_MICRO = 1_000.0;
+
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    // Attempt counts are recorded as if they were nanoseconds, the histogram only sees numbers
+    private final LatencyHistogram attempts = new LatencyHistogram();
+    private final LatencyHistogram backoff = new LatencyHistogram();
+
+    public static UpdateContentionMetrics register(String name) {
+        UpdateContentionMetrics metrics = new UpdateContentionMetrics();
+        MetricsRegistry.registerMBean("UpdateContention", name, metrics);
+        return metrics;
+    }
+
+    public void recordSuccess(int attempt) {
+        updates.increment();
+        attempts.record(attempt);
+    }
+
+    public void recordRetry(long backoffNanos) {
+        conflicts.increment();
+        retries.increment();
+        backoff.record(backoffNanos);
+    }
+
+    public void recordExhausted(int attempt) {
+        conflicts.increment();
+        exhausted.increment();
+        attempts.record(attempt);
+    }
+
+    @Override
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    @Override
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getExhausted() {
+        return exhausted.sum();
+    }
+
+    // Share of write attempts that hit a conflict
+    @Override
+    public double getConflictRate() {
+        long conflicted = conflicts.sum();
+        long total = updates.sum() + conflicted;
+        return total == 0 ? 0.0 : (double) conflicted / total;
+    }
+
+    @Override
+    public double getAttemptsP99() {
+        return attempts.snapshot().getValueAtPercentile(99.0);
+    }
+
+    @Override
+    public double getBackoffP99Micros() {
+        return backoff.snapshot().getValueAtPercentile(99.0) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public void reset() {
+        updates.reset();
+        conflicts.reset();
+        retries.reset();
+        exhausted.reset();
+        attempts.reset();
+        backoff.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UpdateContention{updates=%d, conflicts=%d, retries=%d, exhausted=%d, conflictRate=%.3f}",
+                getUpdates(), getConflicts(), getRetries(), getExhausted(), getConflictRate());
+    }
+}
@@ -0,0 +1,12 @@
+package org.aston.learning.stage2.metrics;
+
+public interface UpdateContentionMetricsMBean {
+    long getUpdates();
+    long getConflicts();
+    long getRetries();
+    long getExhausted();
+    double getConflictRate();
+    double getAttemptsP99();
+    double getBackoffP99Micros();
+    void reset();
+}
@@ -0,0 +1,176 @@
+package org.aston.learning.stage2.service;
+
+import org.aston.learning.stage2.bulk.ExportReport;
+import org.aston.learning.stage2.bulk.FileFormat;
+import org.aston.learning.stage2.dao.BatchSaveResult;
+import org.aston.learning.stage2.dao.UserPage;
+import org.aston.learning.stage2.dao.UserSummary;
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.UserServiceException;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+// Sheds load before it reaches the storage: reads and writes pass separate adaptive limiters,
+// so a burst of slow writes cannot starve lookups, and calls beyond a full wait queue fail fast
+// with ServiceOverloadedException instead of piling up on the connection pool
+public class AdmissionControlledUserService implements UserService {
+    private final UserService delegate;
+    private final AdmissionLimiter reads;
+    private final AdmissionLimiter writes;
+
+    public AdmissionControlledUserService(UserService delegate, AdmissionLimiter reads, AdmissionLimiter writes) {
+        this.delegate = delegate;
+        this.reads = reads;
+        this.writes = writes;
+    }
+
+    public static AdmissionControlledUserService fromSystemProperties(UserService delegate) {
+        return new AdmissionControlledUserService(delegate,
+                AdmissionLimiter.fromSystemProperties("reads", 20),
+                AdmissionLimiter.fromSystemProperties("writes", 10));
+    }
+
+    @Override
+    public User createUser(String name, String email, Integer age) throws UserServiceException {
+        return admit(writes, "createUser", () -> delegate.createUser(name, email, age));
+    }
+
+    @Override
+    public BatchSaveResult createUsers(Collection<User> users) throws UserServiceException {
+        return admit(writes, "createUsers", () -> delegate.createUsers(users));
+    }
+
+    @Override
+    public Optional<User> getUserById(Long id) throws UserServiceException {
+        return admit(reads, "getUserById", () -> delegate.getUserById(id));
+    }
+
+    @Override
+    public List<User> getUsersByIds(Collection<Long> ids) throws UserServiceException {
+        return admit(reads, "getUsersByIds", () -> delegate.getUsersByIds(ids));
+    }
+
+    @Override
+    public List<User> getAllUsers() throws UserServiceException {
+        return admit(reads, "getAllUsers", delegate::getAllUsers);
+    }
+
+    // The slot is held until the stream is closed, it keeps a connection open until then
+    @Override
+    public Stream<User> streamAllUsers() throws UserServiceException {
+        return admitStream(delegate::streamAllUsers);
+    }
+
+    @Override
+    public UserPage getUsersPageAfter(Long lastId, int size) throws UserServiceException {
+        return admit(reads, "getUsersPageAfter", () -> delegate.getUsersPageAfter(lastId, size));
+    }
+
+    @Override
+    public List<UserSummary> getUserSummaries(int page, int size) throws UserServiceException {
+        return admit(reads, "getUserSummaries", () -> delegate.getUserSummaries(page, size));
+    }
+
+    @Override
+    public List<UserSummary> getUserSummariesAfter(Long lastId, int size) throws UserServiceException {
+        return admit(reads, "getUserSummariesAfter", () -> delegate.getUserSummariesAfter(lastId, size));
+    }
+
+    @Override
+    public Stream<UserSummary> streamUserSummaries() throws UserServiceException {
+        return admitStream(delegate::streamUserSummaries);
+    }
+
+    // Holds a read slot for the whole export like a stream, without sampling its latency
+    @Override
+    public ExportReport exportUsers(Path file, FileFormat format, boolean gzip) throws UserServiceException {
+        reads.acquire();
+        try {
+            return delegate.exportUsers(file, format, gzip);
+        } finally {
+            reads.releaseUnsampled();
+        }
+    }
+
+    @Override
+    public User updateUser(Long id, String name, String email, Integer age) throws UserServiceException {
+        return admit(writes, "updateUserFields", () -> delegate.updateUser(id, name, email, age));
+    }
+
+    @Override
+    public User updateUser(Long id, Consumer<User> changes) throws UserServiceException {
+        return admit(writes, "updateUser", () -> delegate.updateUser(id, changes));
+    }
+
+    @Override
+    public void deleteUser(Long id) throws UserServiceException {
+        admit(writes, "deleteUser", () -> {
+            delegate.deleteUser(id);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean userExists(Long id) throws UserServiceException {
+        return admit(reads, "userExists", () -> delegate.userExists(id));
+    }
+
+    @Override
+    public boolean isValidEmail(String email) {
+        return delegate.isValidEmail(email);
+    }
+
+    @Override
+    public boolean isValidAge(Integer age) {
+        return delegate.isValidAge(age);
+    }
+
+    public AdmissionLimiter getReadLimiter() {
+        return reads;
+    }
+
+    public AdmissionLimiter getWriteLimiter() {
+        return writes;
+    }
+
+    // Successful calls are sampled, the operation name keeps fast and slow calls on separate baselines
+    private static <T> T admit(AdmissionLimiter limiter, String operation, Supplier<T> call) {
+        long admittedAt = limiter.acquire();
+        T result;
+        try {
+            result = call.get();
+        } catch (RuntimeException | Error e) {
+            releaseFailed(limiter, admittedAt, e);
+            throw e;
+        }
+        limiter.release(admittedAt, operation);
+        return result;
+    }
+
+    private <T> Stream<T> admitStream(Supplier<Stream<T>> open) {
+        long admittedAt = reads.acquire();
+        try {
+            return open.get().onClose(reads::releaseUnsampled);
+        } catch (RuntimeException | Error e) {
+            releaseFailed(reads, admittedAt, e);
+            throw e;
+        }
+    }
+
+    // An expected failure such as a validation error may never have reached the storage and says
+    // nothing about its load. Any other one does: pool and statement timeouts are exactly how an
+    // overloaded database fails, so they back the limit off
+    private static void releaseFailed(AdmissionLimiter limiter, long admittedAt, Throwable failure) {
+        if (failure instanceof UserServiceException && ((UserServiceException) failure).getCode().isExpected()) {
+            limiter.releaseUnsampled();
+        } else {
+            limiter.releaseCongested(admittedAt);
+        }
+    }
+}
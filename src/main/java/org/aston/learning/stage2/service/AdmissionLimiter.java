@@ -0,0 +1,255 @@
+package org.aston.learning.stage2.service;
+
+import org.aston.learning.stage2.exception.ServiceOverloadedException;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.metrics.AdmissionMetrics;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Adaptive concurrency limit with a bounded FIFO wait queue. The limit grows by one per limit's
+// worth of fast completions while it is in use and is cut by a tenth when the latency of an
+// operation rises well over its recent minimum, so it settles near the concurrency the database can serve without
+// queueing inside it. Callers beyond the limit wait up to maxWait, callers beyond the queue are
+// rejected at once. Each operation is judged against its own baseline, a lookup and a batch insert
+// sharing one limiter have nothing in common but the storage. A call the storage failed cuts the
+// limit as well, timeouts are how an overloaded database shows up.
+public class AdmissionLimiter {
+    private static final double BACKOFF_RATIO = 0.9;
+    // An operation is congested when its latency is more than twice its baseline plus a millisecond,
+    // the slack keeps sub-millisecond jitter of in-memory storages from counting as congestion
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final long LATENCY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // The baseline is the minimum smoothed latency of the previous window, so it can rise again after a
+    // change in the workload instead of staying at the fastest call ever seen
+    private static final int BASELINE_WINDOW = 1_000;
+    // Weight of a new sample in the smoothed latency of its operation
+    private static final double SMOOTHING = 0.05;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long maxWaitNanos;
+    private final AdmissionMetrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // Written under the lock, volatile so rejection and the gauges need not take it
+    private volatile double limit;
+    private volatile int inFlight;
+    private volatile int queued;
+    // Guarded by the lock, keyed by operation name
+    private final Map<String, Baseline> baselines = new HashMap<>();
+    private long lastDecreaseNanos = System.nanoTime();
+
+    private AdmissionLimiter(String name, int initialLimit, int minLimit, int maxLimit, int maxQueue, Duration maxWait) {
+        if (minLimit <= 0 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Invalid limits: initial " + initialLimit
+                    + ", range " + minLimit + " - " + maxLimit);
+        }
+        if (maxQueue < 0 || maxWait.isNegative()) {
+            throw new IllegalArgumentException("Invalid queue: " + maxQueue + " waiting for " + maxWait);
+        }
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.limit = initialLimit;
+        this.metrics = new AdmissionMetrics();
+    }
+
+    // The gauges read the limiter, so they are registered once it is built
+    public static AdmissionLimiter create(String name, int initialLimit, int minLimit, int maxLimit, int maxQueue,
+                                          Duration maxWait) {
+        AdmissionLimiter limiter = new AdmissionLimiter(name, initialLimit, minLimit, maxLimit, maxQueue, maxWait);
+        limiter.metrics.register(name, limiter::getLimit, limiter::getInFlight, limiter::getQueued);
+        return limiter;
+    }
+
+    // -Duser.admission.<name>.limit, -Duser.admission.maxLimit, -Duser.admission.maxQueue
+    // and -Duser.admission.maxWaitMillis
+    public static AdmissionLimiter fromSystemProperties(String name, int defaultLimit) {
+        int initialLimit = Integer.getInteger("user.admission." + name + ".limit", defaultLimit);
+        return create(name, initialLimit, 1,
+                Math.max(initialLimit, Integer.getInteger("user.admission.maxLimit", 200)),
+                Integer.getInteger("user.admission.maxQueue", 100),
+                Duration.ofMillis(Long.getLong("user.admission.maxWaitMillis", 500L)));
+    }
+
+    // Returns the admission time to hand back to release
+    public long acquire() {
+        // Callers that would wait on a full queue are turned away without contending for the lock
+        // with the waiters that are being woken up
+        if (queued >= maxQueue && inFlight >= currentLimit()) {
+            reject();
+        }
+        lock.lock();
+        try {
+            // Newcomers queue behind existing waiters instead of taking a freed slot from them
+            if (queued == 0 && inFlight < currentLimit()) {
+                inFlight++;
+                metrics.recordAdmitted();
+                return System.nanoTime();
+            }
+            if (queued >= maxQueue) {
+                reject();
+            }
+            return awaitSlot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For a call that succeeded, its latency is compared with the baseline of its operation
+    public void release(long admittedAt, String operation) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            int utilised = inFlight--;
+            boolean congested = baselines.computeIfAbsent(operation, key -> new Baseline())
+                    .isCongested(now - admittedAt);
+            adjustLimit(congested, admittedAt, utilised);
+            signalIfAvailable();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For a call the storage failed, which backs the limit off like a congested sample. Its latency
+    // is not sampled, a call that failed fast would drag the baseline down
+    public void releaseCongested(long admittedAt) {
+        lock.lock();
+        try {
+            int utilised = inFlight--;
+            adjustLimit(true, admittedAt, utilised);
+            signalIfAvailable();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For permits whose lifetime says nothing about how fast the storage is: held over a stream,
+    // where it is up to the consumer, or by a call that failed before it may have reached the storage
+    public void releaseUnsampled() {
+        lock.lock();
+        try {
+            inFlight--;
+            signalIfAvailable();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        return currentLimit();
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public AdmissionMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void reject() {
+        metrics.recordQueueFull();
+        throw new ServiceOverloadedException(String.format(
+                "Too many concurrent %s requests: limit %d reached and %d already waiting",
+                name, currentLimit(), queued));
+    }
+
+    // Caller holds the lock
+    private long awaitSlot() {
+        long start = System.nanoTime();
+        long remaining = maxWaitNanos;
+        queued++;
+        try {
+            while (inFlight >= currentLimit()) {
+                if (remaining <= 0) {
+                    metrics.recordTimeout(System.nanoTime() - start);
+                    throw new ServiceOverloadedException(String.format(
+                            "Too many concurrent %s requests: no slot within %dms at limit %d",
+                            name, TimeUnit.NANOSECONDS.toMillis(maxWaitNanos), currentLimit()));
+                }
+                remaining = available.awaitNanos(remaining);
+            }
+            inFlight++;
+            long now = System.nanoTime();
+            metrics.recordAdmittedAfterWait(now - start);
+            return now;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserServiceException("Interrupted while waiting for admission", e);
+        } finally {
+            queued--;
+            // Passes the wake-up on if there is still room, a raised limit or a waiter that
+            // gave up may leave more than one free slot
+            signalIfAvailable();
+        }
+    }
+
+    // Caller holds the lock
+    private void adjustLimit(boolean congested, long admittedAt, int utilised) {
+        if (congested) {
+            // One cut per round trip: calls admitted before the last cut saw the old limit
+            if (admittedAt - lastDecreaseNanos > 0) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastDecreaseNanos = System.nanoTime();
+            }
+        } else if (utilised * 2 >= currentLimit()) {
+            // Only grow a limit that is actually used, an idle service says nothing about capacity
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    // Caller holds the lock
+    private void signalIfAvailable() {
+        if (queued > 0 && inFlight < currentLimit()) {
+            available.signal();
+        }
+    }
+
+    private int currentLimit() {
+        return (int) limit;
+    }
+
+    // Latency of one operation, guarded by the limiter's lock. Congestion is judged on the smoothed
+    // latency: calls that are a mix of cache hits and storage round trips are compared with their
+    // usual mix, not a storage call with the fastest cache hit
+    private static final class Baseline {
+        private double smoothedNanos = -1;
+        private double baselineNanos = Double.MAX_VALUE;
+        private double windowMinNanos = Double.MAX_VALUE;
+        private int windowSamples;
+
+        boolean isCongested(long latencyNanos) {
+            smoothedNanos = smoothedNanos < 0
+                    ? latencyNanos
+                    : smoothedNanos + SMOOTHING * (latencyNanos - smoothedNanos);
+            windowMinNanos = Math.min(windowMinNanos, smoothedNanos);
+            baselineNanos = Math.min(baselineNanos, smoothedNanos);
+            if (++windowSamples >= BASELINE_WINDOW) {
+                baselineNanos = windowMinNanos;
+                windowMinNanos = Double.MAX_VALUE;
+                windowSamples = 0;
+            }
+            return smoothedNanos > baselineNanos * LATENCY_TOLERANCE + LATENCY_SLACK_NANOS;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + metrics;
+    }
+}
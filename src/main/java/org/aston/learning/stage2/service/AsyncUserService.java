@@ -0,0 +1,33 @@
+package org.aston.learning.stage2.service;
+
+import org.aston.learning.stage2.bulk.ExportReport;
+import org.aston.learning.stage2.bulk.FileFormat;
+import org.aston.learning.stage2.dao.BatchSaveResult;
+import org.aston.learning.stage2.dao.UserPage;
+import org.aston.learning.stage2.entity.User;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+public interface AsyncUserService extends AutoCloseable {
+    CompletableFuture<User> createUser(String name, String email, Integer age);
+    CompletableFuture<BatchSaveResult> createUsers(Collection<User> users);
+    CompletableFuture<Optional<User>> getUserById(Long id);
+    CompletableFuture<List<User>> getUsersByIds(Collection<Long> ids);
+    CompletableFuture<List<User>> getAllUsers();
+    CompletableFuture<UserPage> getUsersPageAfter(Long lastId, int size);
+    CompletableFuture<User> updateUser(Long id, String name, String email, Integer age);
+    CompletableFuture<User> updateUser(Long id, Consumer<User> changes);
+    CompletableFuture<Void> deleteUser(Long id);
+    CompletableFuture<Boolean> userExists(Long id);
+    CompletableFuture<ExportReport> exportUsers(Path file, FileFormat format, boolean gzip);
+    // A view over the same service, closing it leaves the service running
+    AsyncUserService withTimeout(Duration timeout);
+    @Override
+    void close();
+}
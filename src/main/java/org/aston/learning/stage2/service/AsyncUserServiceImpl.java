@@ -0,0 +1,185 @@
+package org.aston.learning.stage2.service;
+
+import org.aston.learning.stage2.bulk.ExportReport;
+import org.aston.learning.stage2.bulk.FileFormat;
+import org.aston.learning.stage2.dao.BatchSaveResult;
+import org.aston.learning.stage2.dao.UserPage;
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.util.HibernateUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+public class AsyncUserServiceImpl implements AsyncUserService {
+    private static final Logger logger = LogManager.getLogger(AsyncUserServiceImpl.class);
+    private final UserService userService;
+    // Calls run on its threads, outside the read-your-writes window of the submitting thread
+    private final ExecutorService executor;
+    // Caps in-flight database work, so virtual threads wait here instead of piling up on the pool
+    private final Semaphore permits;
+    private final Duration timeout;
+    // False for the views of withTimeout, the executor is the parent's to shut down
+    private final boolean ownsExecutor;
+
+    public AsyncUserServiceImpl(UserService userService) {
+        this(userService, HibernateUtil.getConnectionPoolSize());
+    }
+
+    public AsyncUserServiceImpl(UserService userService, int maxConcurrency) {
+        this(userService, Executors.newVirtualThreadPerTaskExecutor(),
+                new Semaphore(requirePositive(maxConcurrency), true), null, true);
+        logger.info("Async user service started with {} concurrent database operations", maxConcurrency);
+    }
+
+    private AsyncUserServiceImpl(UserService userService, ExecutorService executor, Semaphore permits,
+                                 Duration timeout, boolean ownsExecutor) {
+        this.userService = userService;
+        this.executor = executor;
+        this.permits = permits;
+        this.timeout = timeout;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    @Override
+    public CompletableFuture<User> createUser(String name, String email, Integer age) {
+        return submit(() -> userService.createUser(name, email, age));
+    }
+
+    @Override
+    public CompletableFuture<BatchSaveResult> createUsers(Collection<User> users) {
+        return submit(() -> userService.createUsers(users));
+    }
+
+    @Override
+    public CompletableFuture<Optional<User>> getUserById(Long id) {
+        return submit(() -> userService.getUserById(id));
+    }
+
+    @Override
+    public CompletableFuture<List<User>> getUsersByIds(Collection<Long> ids) {
+        return submit(() -> userService.getUsersByIds(ids));
+    }
+
+    @Override
+    public CompletableFuture<List<User>> getAllUsers() {
+        return submit(userService::getAllUsers);
+    }
+
+    @Override
+    public CompletableFuture<UserPage> getUsersPageAfter(Long lastId, int size) {
+        return submit(() -> userService.getUsersPageAfter(lastId, size));
+    }
+
+    @Override
+    public CompletableFuture<User> updateUser(Long id, String name, String email, Integer age) {
+        return submit(() -> userService.updateUser(id, name, email, age));
+    }
+
+    @Override
+    public CompletableFuture<User> updateUser(Long id, Consumer<User> changes) {
+        return submit(() -> userService.updateUser(id, changes));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteUser(Long id) {
+        return submit(() -> {
+            userService.deleteUser(id);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> userExists(Long id) {
+        return submit(() -> userService.userExists(id));
+    }
+
+    @Override
+    public CompletableFuture<ExportReport> exportUsers(Path file, FileFormat format, boolean gzip) {
+        return submit(() -> userService.exportUsers(file, format, gzip));
+    }
+
+    // Returns a view sharing the executor and permits, every call through it fails with TimeoutException.
+    // Closing the view does nothing, the executor stops when this service is closed
+    @Override
+    public AsyncUserService withTimeout(Duration timeout) {
+        if (timeout == null || timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        }
+        return new AsyncUserServiceImpl(userService, executor, permits, timeout, false);
+    }
+
+    @Override
+    public void close() {
+        if (!ownsExecutor) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warn("Async user service did not finish in-flight operations, interrupting them");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int requirePositive(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Max concurrency must be positive: " + maxConcurrency);
+        }
+        return maxConcurrency;
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task = executor.submit(() -> execute(call, result));
+
+        // Cancelling or timing out the returned future interrupts the worker, also while it waits for a permit
+        result.whenComplete((value, error) -> {
+            if (error instanceof CancellationException || error instanceof TimeoutException) {
+                task.cancel(true);
+            }
+        });
+        if (timeout != null) {
+            result.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        return result;
+    }
+
+    private <T> void execute(Callable<T> call, CompletableFuture<T> result) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            result.completeExceptionally(new CancellationException("Interrupted while waiting for a database permit"));
+            return;
+        }
+
+        try {
+            if (!result.isDone()) {
+                result.complete(call.call());
+            }
+        } catch (Throwable e) {
+            // UserServiceException reaches the caller as the cause of the future's failure
+            result.completeExceptionally(e);
+        } finally {
+            permits.release();
+        }
+    }
+}
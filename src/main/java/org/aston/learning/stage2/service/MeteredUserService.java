@@ -0,0 +1,146 @@
+package org.aston.learning.stage2.service;
+
+import org.aston.learning.stage2.bulk.ExportReport;
+import org.aston.learning.stage2.bulk.FileFormat;
+import org.aston.learning.stage2.dao.BatchSaveResult;
+import org.aston.learning.stage2.dao.UserPage;
+import org.aston.learning.stage2.dao.UserSummary;
+import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.metrics.MetricsRegistry;
+import org.aston.learning.stage2.metrics.OperationMetrics;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+public class MeteredUserService implements UserService {
+    private final UserService delegate;
+    private final OperationMetrics createUser = MetricsRegistry.operation("service.createUser");
+    private final OperationMetrics createUsers = MetricsRegistry.operation("service.createUsers");
+    private final OperationMetrics getUserById = MetricsRegistry.operation("service.getUserById");
+    private final OperationMetrics getUsersByIds = MetricsRegistry.operation("service.getUsersByIds");
+    private final OperationMetrics getAllUsers = MetricsRegistry.operation("service.getAllUsers");
+    private final OperationMetrics streamAllUsers = MetricsRegistry.operation("service.streamAllUsers");
+    private final OperationMetrics getUsersPageAfter = MetricsRegistry.operation("service.getUsersPageAfter");
+    private final OperationMetrics getUserSummaries = MetricsRegistry.operation("service.getUserSummaries");
+    private final OperationMetrics getUserSummariesAfter = MetricsRegistry.operation("service.getUserSummariesAfter");
+    private final OperationMetrics streamUserSummaries = MetricsRegistry.operation("service.streamUserSummaries");
+    private final OperationMetrics exportUsers = MetricsRegistry.operation("service.exportUsers");
+    private final OperationMetrics updateUser = MetricsRegistry.operation("service.updateUser");
+    private final OperationMetrics deleteUser = MetricsRegistry.operation("service.deleteUser");
+    private final OperationMetrics userExists = MetricsRegistry.operation("service.userExists");
+
+    public MeteredUserService(UserService delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public User createUser(String name, String email, Integer age) throws UserServiceException {
+        return measure(createUser, () -> delegate.createUser(name, email, age));
+    }
+
+    @Override
+    public BatchSaveResult createUsers(Collection<User> users) throws UserServiceException {
+        return measure(createUsers, () -> delegate.createUsers(users));
+    }
+
+    @Override
+    public Optional<User> getUserById(Long id) throws UserServiceException {
+        return measure(getUserById, () -> delegate.getUserById(id));
+    }
+
+    @Override
+    public List<User> getUsersByIds(Collection<Long> ids) throws UserServiceException {
+        return measure(getUsersByIds, () -> delegate.getUsersByIds(ids));
+    }
+
+    @Override
+    public List<User> getAllUsers() throws UserServiceException {
+        return measure(getAllUsers, delegate::getAllUsers);
+    }
+
+    // Measures opening the stream, consumption time belongs to the caller
+    @Override
+    public Stream<User> streamAllUsers() throws UserServiceException {
+        return measure(streamAllUsers, delegate::streamAllUsers);
+    }
+
+    @Override
+    public UserPage getUsersPageAfter(Long lastId, int size) throws UserServiceException {
+        return measure(getUsersPageAfter, () -> delegate.getUsersPageAfter(lastId, size));
+    }
+
+    @Override
+    public List<UserSummary> getUserSummaries(int page, int size) throws UserServiceException {
+        return measure(getUserSummaries, () -> delegate.getUserSummaries(page, size));
+    }
+
+    @Override
+    public List<UserSummary> getUserSummariesAfter(Long lastId, int size) throws UserServiceException {
+        return measure(getUserSummariesAfter, () -> delegate.getUserSummariesAfter(lastId, size));
+    }
+
+    @Override
+    public Stream<UserSummary> streamUserSummaries() throws UserServiceException {
+        return measure(streamUserSummaries, delegate::streamUserSummaries);
+    }
+
+    @Override
+    public ExportReport exportUsers(Path file, FileFormat format, boolean gzip) throws UserServiceException {
+        return measure(exportUsers, () -> delegate.exportUsers(file, format, gzip));
+    }
+
+    @Override
+    public User updateUser(Long id, String name, String email, Integer age) throws UserServiceException {
+        return measure(updateUser, () -> delegate.updateUser(id, name, email, age));
+    }
+
+    @Override
+    public User updateUser(Long id, Consumer<User> changes) throws UserServiceException {
+        return measure(updateUser, () -> delegate.updateUser(id, changes));
+    }
+
+    @Override
+    public void deleteUser(Long id) throws UserServiceException {
+        measure(deleteUser, () -> {
+            delegate.deleteUser(id);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean userExists(Long id) throws UserServiceException {
+        return measure(userExists, () -> delegate.userExists(id));
+    }
+
+    @Override
+    public boolean isValidEmail(String email) {
+        return delegate.isValidEmail(email);
+    }
+
+    @Override
+    public boolean isValidAge(Integer age) {
+        return delegate.isValidAge(age);
+    }
+
+    public UserService getDelegate() {
+        return delegate;
+    }
+
+    private static <T> T measure(OperationMetrics metrics, Supplier<T> call) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = call.get();
+            success = true;
+            return result;
+        } finally {
+            metrics.record(System.nanoTime() - start, success);
+        }
+    }
+}
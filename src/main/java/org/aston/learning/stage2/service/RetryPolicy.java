@@ -0,0 +1,61 @@
+package org.aston.learning.stage2.service;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+// How often an update that lost a concurrent race is attempted again. The backoff ceiling doubles
+// per attempt up to maxBackoff and the actual pause is random below it, so the writers that
+// collided spread out instead of colliding again in lockstep
+public class RetryPolicy {
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+
+    public RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("Max attempts must be positive: " + maxAttempts);
+        }
+        if (initialBackoff.isNegative() || maxBackoff.compareTo(initialBackoff) < 0) {
+            throw new IllegalArgumentException("Invalid backoff range: " + initialBackoff + " - " + maxBackoff);
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+    }
+
+    public static RetryPolicy defaults() {
+        return new RetryPolicy(5, Duration.ofMillis(1), Duration.ofMillis(50));
+    }
+
+    public static RetryPolicy noRetry() {
+        return new RetryPolicy(1, Duration.ZERO, Duration.ZERO);
+    }
+
+    // -Duser.update.maxAttempts, -Duser.update.backoffMillis and -Duser.update.maxBackoffMillis
+    public static RetryPolicy fromSystemProperties() {
+        RetryPolicy defaults = defaults();
+        return new RetryPolicy(
+                Integer.getInteger("user.update.maxAttempts", defaults.maxAttempts),
+                Duration.ofMillis(Long.getLong("user.update.backoffMillis", defaults.initialBackoffNanos / 1_000_000)),
+                Duration.ofMillis(Long.getLong("user.update.maxBackoffMillis", defaults.maxBackoffNanos / 1_000_000)));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    // Pause before the attempt after the given failed one, attempts count from 1
+    public long backoffNanos(int failedAttempt) {
+        long ceiling = initialBackoffNanos << Math.min(failedAttempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffNanos) {
+            ceiling = maxBackoffNanos;
+        }
+        return ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RetryPolicy{maxAttempts=%d, backoff=%dus-%dus}",
+                maxAttempts, initialBackoffNanos / 1_000, maxBackoffNanos / 1_000);
+    }
+}
@@ -0,0 +1,14 @@
+package org.aston.learning.stage2.service;
+
+// How UserService.updateUser(id, changes) protects the read-modify-write of a user
+public enum UpdateLocking {
+    // Read without locks, write with a version check and retry on conflict
+    OPTIMISTIC,
+    // SELECT ... FOR UPDATE, concurrent writers of the user queue on the row lock
+    PESSIMISTIC;
+
+    // -Duser.update.locking=optimistic (default) or pessimistic
+    public static UpdateLocking fromSystemProperties() {
+        return valueOf(System.getProperty("user.update.locking", OPTIMISTIC.name()).toUpperCase());
+    }
+}
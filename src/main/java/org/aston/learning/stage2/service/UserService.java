@@ -1,15 +1,35 @@
 package org.aston.learning.stage2.service;
 
+import org.aston.learning.stage2.bulk.ExportReport;
+import org.aston.learning.stage2.bulk.FileFormat;
+import org.aston.learning.stage2.dao.BatchSaveResult;
+import org.aston.learning.stage2.dao.UserPage;
+import org.aston.learning.stage2.dao.UserSummary;
 import org.aston.learning.stage2.entity.User;
 import org.aston.learning.stage2.exception.UserServiceException;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface UserService {
     User createUser(String name, String email, Integer age) throws UserServiceException;
+    BatchSaveResult createUsers(Collection<User> users) throws UserServiceException;
     Optional<User> getUserById(Long id) throws UserServiceException;
+    List<User> getUsersByIds(Collection<Long> ids) throws UserServiceException;
     List<User> getAllUsers() throws UserServiceException;
+    Stream<User> streamAllUsers() throws UserServiceException;
+    UserPage getUsersPageAfter(Long lastId, int size) throws UserServiceException;
+    List<UserSummary> getUserSummaries(int page, int size) throws UserServiceException;
+    List<UserSummary> getUserSummariesAfter(Long lastId, int size) throws UserServiceException;
+    Stream<UserSummary> streamUserSummaries() throws UserServiceException;
+    // Streams every user into the file, memory use does not grow with the number of users
+    ExportReport exportUsers(Path file, FileFormat format, boolean gzip) throws UserServiceException;
     User updateUser(Long id, String name, String email, Integer age) throws UserServiceException;
+    // Read-modify-write of the whole user, concurrent updates are retried or serialized, never lost
+    User updateUser(Long id, Consumer<User> changes) throws UserServiceException;
     void deleteUser(Long id) throws UserServiceException;
     boolean userExists(Long id) throws UserServiceException;
     boolean isValidEmail(String email);
@@ -1,18 +1,48 @@
 package org.aston.learning.stage2.service;
 
+import org.aston.learning.stage2.bulk.ExportReport;
+import org.aston.learning.stage2.bulk.FileFormat;
+import org.aston.learning.stage2.bulk.UserExporter;
+import org.aston.learning.stage2.dao.BatchSaveResult;
+import org.aston.learning.stage2.dao.SessionRouter;
 import org.aston.learning.stage2.dao.UserDao;
+import org.aston.learning.stage2.dao.UserPage;
+import org.aston.learning.stage2.dao.UserSummary;
 import org.aston.learning.stage2.entity.User;
+import org.aston.learning.stage2.event.UserEventBus;
+import org.aston.learning.stage2.exception.ConcurrentUpdateException;
+import org.aston.learning.stage2.exception.InvalidUserException;
+import org.aston.learning.stage2.exception.UserNotFoundException;
 import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.metrics.UpdateContentionMetrics;
+import org.aston.learning.stage2.util.SingleFlight;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class UserServiceImpl implements UserService {
     private static final Logger logger = LogManager.getLogger(UserServiceImpl.class);
+    private static final int MAX_NAME_LENGTH = 100;
+    private static final int MAX_EMAIL_LENGTH = 150;
+    private static final UpdateContentionMetrics CONTENTION = UpdateContentionMetrics.register("updateUser");
     private final UserDao userDao;
+    private final UpdateLocking updateLocking;
+    private final RetryPolicy retryPolicy;
+    // Changes are published once the storage has committed them, publishing never blocks
+    private final UserEventBus events;
+    private final UserExporter exporter = UserExporter.fromSystemProperties();
+    // Concurrent lookups of the same id share one query, each waiter gets its own copy
+    private final SingleFlight<Long, Optional<User>> userLookups =
+            new SingleFlight<>("findById", user -> user.map(UserServiceImpl::copyOf));
 
     // Email regexp
     private static final Pattern EMAIL_PATTERN = Pattern.compile(
@@ -20,7 +50,22 @@ public class UserServiceImpl implements UserService {
     );
 
     public UserServiceImpl(UserDao userDao) {
+        this(userDao, UpdateLocking.OPTIMISTIC, RetryPolicy.defaults());
+    }
+
+    public UserServiceImpl(UserDao userDao, UpdateLocking updateLocking, RetryPolicy retryPolicy) {
+        this(userDao, updateLocking, retryPolicy, new UserEventBus(1024));
+    }
+
+    public UserServiceImpl(UserDao userDao, UpdateLocking updateLocking, RetryPolicy retryPolicy, UserEventBus events) {
         this.userDao = userDao;
+        this.updateLocking = updateLocking;
+        this.retryPolicy = retryPolicy;
+        this.events = events;
+    }
+
+    public UserEventBus getEvents() {
+        return events;
     }
 
     @Override
@@ -30,17 +75,45 @@ public class UserServiceImpl implements UserService {
         // Data validation
         validateUserData(name, email, age);
 
-        try {
-            // Check if user with this email is already exist
-            User user = new User(name, email, age);
-            User savedUser = userDao.save(user);
+        // Check if user with this email is already exist
+        User user = new User(name, email, age);
+        User savedUser = userDao.save(user);
+        events.publishCreated(savedUser);
 
-            logger.info("User created successfully with ID: {}", savedUser.getId());
-            return savedUser;
-        } catch (UserServiceException e) {
-            logger.error("Failed to create user with email: {}", email, e);
-            throw new UserServiceException("Failed to create user: " + e.getMessage(), e);
+        logger.info("User created successfully with ID: {}", savedUser.getId());
+        return savedUser;
+    }
+
+    @Override
+    public BatchSaveResult createUsers(Collection<User> users) throws UserServiceException {
+        if (users == null) {
+            throw new InvalidUserException("Users batch cannot be null");
         }
+        logger.debug("Creating {} users in batch", users.size());
+
+        // Validate the whole batch up front, invalid rows are reported instead of failing the import
+        BatchSaveResult result = new BatchSaveResult();
+        List<User> validUsers = new ArrayList<>(users.size());
+        for (User user : users) {
+            try {
+                validateUserData(user.getName(), user.getEmail(), user.getAge());
+                validUsers.add(user);
+            } catch (UserServiceException e) {
+                result.addFailure(user, e.getMessage());
+            }
+        }
+
+        if (!validUsers.isEmpty()) {
+            BatchSaveResult saved = userDao.saveAll(validUsers);
+            for (User user : saved.getSaved()) {
+                events.publishCreated(user);
+            }
+            result.merge(saved);
+        }
+
+        logger.info("Users batch processed: {} created, {} rejected",
+                result.getSaved().size(), result.getFailures().size());
+        return result;
     }
 
     @Override
@@ -48,35 +121,122 @@ public class UserServiceImpl implements UserService {
         logger.debug("Retrieving user by ID: {}", id);
 
         if (id == null || id <= 0) {
-            logger.warn("Invalid user ID provided: {}", id);
-            throw new UserServiceException("Invalid user ID: " + id);
+            throw new InvalidUserException("Invalid user ID: " + id);
         }
 
-        try {
-            Optional<User> user = userDao.findById(id);
-            if (user.isPresent()) {
-                logger.debug("User found with ID: {}", id);
-            } else {
-                logger.debug("User not found with ID: {}", id);
+        Optional<User> user = userLookups.execute(id, () -> userDao.findById(id));
+        if (user.isPresent()) {
+            logger.debug("User found with ID: {}", id);
+        } else {
+            logger.debug("User not found with ID: {}", id);
+        }
+        return user;
+    }
+
+    @Override
+    public List<User> getUsersByIds(Collection<Long> ids) throws UserServiceException {
+        if (ids == null) {
+            throw new InvalidUserException("User IDs cannot be null");
+        }
+        logger.debug("Retrieving {} users by ID", ids.size());
+
+        for (Long id : ids) {
+            if (id == null || id <= 0) {
+                throw new InvalidUserException("Invalid user ID: " + id);
             }
-            return user;
-        } catch (UserServiceException e) {
-            logger.error("Failed to retrieve user with ID: {}", id, e);
-            throw new UserServiceException("Failed to retrieve user: " + e.getMessage(), e);
         }
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        List<User> users = userDao.findByIds(ids);
+        logger.debug("Found {} of {} requested users", users.size(), ids.size());
+        return users;
     }
 
     @Override
     public List<User> getAllUsers() throws UserServiceException {
         logger.debug("Retrieving all users");
 
-        try {
-            List<User> users = userDao.findAll();
-            logger.debug("Retrieved {} users", users.size());
-            return users;
-        } catch (UserServiceException e) {
-            logger.error("Failed to retrieve all users", e);
-            throw new UserServiceException("Failed to retrieve users: " + e.getMessage(), e);
+        List<User> users = userDao.findAll();
+        logger.debug("Retrieved {} users", users.size());
+        return users;
+    }
+
+    @Override
+    public Stream<User> streamAllUsers() throws UserServiceException {
+        logger.debug("Streaming all users");
+
+        // The caller owns the stream and must close it to release the database session
+        return userDao.streamAll();
+    }
+
+    @Override
+    public UserPage getUsersPageAfter(Long lastId, int size) throws UserServiceException {
+        logger.debug("Retrieving users page after ID: {}, size={}", lastId, size);
+
+        if (lastId != null && lastId < 0) {
+            throw new InvalidUserException("Invalid page cursor: " + lastId);
+        }
+        if (size <= 0) {
+            throw new InvalidUserException("Invalid page size: " + size);
+        }
+
+        UserPage page = userDao.findPageAfter(lastId, size);
+        logger.debug("Retrieved {} users, next cursor: {}", page.getUsers().size(), page.getNextCursor());
+        return page;
+    }
+
+    @Override
+    public List<UserSummary> getUserSummaries(int page, int size) throws UserServiceException {
+        logger.debug("Retrieving user summaries page: {}, size={}", page, size);
+
+        if (page < 0) {
+            throw new InvalidUserException("Invalid page number: " + page);
+        }
+        if (size <= 0) {
+            throw new InvalidUserException("Invalid page size: " + size);
+        }
+
+        List<UserSummary> summaries = userDao.findSummaries(page, size);
+        logger.debug("Retrieved {} user summaries", summaries.size());
+        return summaries;
+    }
+
+    @Override
+    public List<UserSummary> getUserSummariesAfter(Long lastId, int size) throws UserServiceException {
+        logger.debug("Retrieving user summaries after ID: {}, size={}", lastId, size);
+
+        if (lastId != null && lastId < 0) {
+            throw new InvalidUserException("Invalid page cursor: " + lastId);
+        }
+        if (size <= 0) {
+            throw new InvalidUserException("Invalid page size: " + size);
+        }
+
+        List<UserSummary> summaries = userDao.findSummariesAfter(lastId, size);
+        logger.debug("Retrieved {} user summaries", summaries.size());
+        return summaries;
+    }
+
+    @Override
+    public Stream<UserSummary> streamUserSummaries() throws UserServiceException {
+        logger.debug("Streaming user summaries");
+
+        // The caller owns the stream and must close it to release the database session
+        return userDao.streamSummaries();
+    }
+
+    @Override
+    public ExportReport exportUsers(Path file, FileFormat format, boolean gzip) throws UserServiceException {
+        if (file == null || format == null) {
+            throw new InvalidUserException("Export file and format are required");
+        }
+        logger.debug("Exporting users to {}", file);
+
+        // Reads through the same cursor as streamAllUsers, one fetch of rows at a time
+        try (Stream<User> users = userDao.streamAll()) {
+            return exporter.export(users, file, format, gzip);
         }
     }
 
@@ -85,48 +245,87 @@ public class UserServiceImpl implements UserService {
         logger.debug("Updating user with ID: {}, name={}, email={}, age={}", id, name, email, age);
 
         if (id == null || id <= 0) {
-            logger.warn("Invalid user ID provided for update: {}", id);
-            throw new UserServiceException("Invalid user ID: " + id);
+            throw new InvalidUserException("Invalid user ID: " + id);
         }
 
         // Data validation (if present)
         if (name != null && name.trim().isEmpty()) {
-            throw new UserServiceException("Name cannot be empty");
+            throw new InvalidUserException("Name cannot be empty");
+        }
+        if (name != null && name.length() > MAX_NAME_LENGTH) {
+            throw new InvalidUserException("Name is longer than " + MAX_NAME_LENGTH + " characters");
+        }
+        if (email != null && email.length() > MAX_EMAIL_LENGTH) {
+            throw new InvalidUserException("Email is longer than " + MAX_EMAIL_LENGTH + " characters");
         }
         if (email != null && !isValidEmail(email)) {
-            throw new UserServiceException("Invalid email format: " + email);
+            throw new InvalidUserException("Invalid email format: " + email);
         }
         if (age != null && !isValidAge(age)) {
-            throw new UserServiceException("Invalid age: " + age);
+            throw new InvalidUserException("Invalid age: " + age);
         }
 
-        try {
-            // Get existing user
-            Optional<User> existingUser = getUserById(id);
-            if (existingUser.isEmpty()) {
-                logger.warn("User not found for update with ID: {}", id);
-                throw new UserServiceException("User not found with ID: " + id);
+        // Single UPDATE of the present fields, zero rows means there is no such user
+        if (name != null || email != null || age != null) {
+            int updated = userDao.updateFields(id, name, email, age);
+            if (updated == 0) {
+                throw new UserNotFoundException(id);
             }
+        }
 
-            User user = existingUser.get();
+        Optional<User> updatedUser = userDao.findById(id);
+        if (updatedUser.isEmpty()) {
+            throw new UserNotFoundException(id);
+        }
 
-            // Update only present fields
-            if (name != null) {
-                user.setName(name);
-            }
-            if (email != null) {
-                user.setEmail(email);
+        if (name != null || email != null || age != null) {
+            events.publishUpdated(updatedUser.get());
+        }
+        logger.info("User updated successfully with ID: {}", id);
+        return updatedUser.get();
+    }
+
+    @Override
+    public User updateUser(Long id, Consumer<User> changes) throws UserServiceException {
+        logger.debug("Updating user with ID: {} ({})", id, updateLocking);
+
+        if (id == null || id <= 0) {
+            throw new InvalidUserException("Invalid user ID: " + id);
+        }
+        if (changes == null) {
+            throw new InvalidUserException("User changes cannot be null");
+        }
+
+        Consumer<User> validatedChanges = user -> {
+            try {
+                changes.accept(user);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidUserException(e.getMessage());
             }
-            if (age != null) {
-                user.setAge(age);
+            validateUpdatedUser(user);
+        };
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                User updatedUser = updateLocking == UpdateLocking.PESSIMISTIC
+                        ? updateLocked(id, validatedChanges)
+                        : updateVersioned(id, validatedChanges);
+                CONTENTION.recordSuccess(attempt);
+                events.publishUpdated(updatedUser);
+                logger.info("User updated successfully with ID: {}", id);
+                return updatedUser;
+            } catch (ConcurrentUpdateException e) {
+                // Lost the race to another writer, the next attempt starts from a fresh read
+                if (attempt >= retryPolicy.getMaxAttempts()) {
+                    CONTENTION.recordExhausted(attempt);
+                    logger.debug("Giving up on updating user with ID: {} after {} attempts", id, attempt);
+                    throw e;
+                }
+                long backoffNanos = retryPolicy.backoffNanos(attempt);
+                CONTENTION.recordRetry(backoffNanos);
+                logger.debug("Concurrent update of user with ID: {}, retrying in {}us", id, backoffNanos / 1_000);
+                LockSupport.parkNanos(backoffNanos);
             }
-
-            User updatedUser = userDao.update(user);
-            logger.info("User updated successfully with ID: {}", updatedUser.getId());
-            return updatedUser;
-        } catch (UserServiceException e) {
-            logger.error("Failed to update user with ID: {}", id, e);
-            throw new UserServiceException("Failed to update user: " + e.getMessage(), e);
         }
     }
 
@@ -135,22 +334,16 @@ public class UserServiceImpl implements UserService {
         logger.debug("Deleting user with ID: {}", id);
 
         if (id == null || id <= 0) {
-            logger.warn("Invalid user ID provided for deletion: {}", id);
-            throw new UserServiceException("Invalid user ID: " + id);
+            throw new InvalidUserException("Invalid user ID: " + id);
         }
 
-        try {
-            if (!userExists(id)) {
-                logger.warn("Attempt to delete non-existent user with ID: {}", id);
-                throw new UserServiceException("User not found with ID: " + id);
-            }
-
-            userDao.delete(id);
-            logger.info("User deleted successfully with ID: {}", id);
-        } catch (UserServiceException e) {
-            logger.error("Failed to delete user with ID: {}", id, e);
-            throw new UserServiceException("Failed to delete user: " + e.getMessage(), e);
+        // Single DELETE, zero rows means there is no such user
+        if (userDao.deleteById(id) == 0) {
+            throw new UserNotFoundException(id);
         }
+
+        events.publishDeleted(id);
+        logger.info("User deleted successfully with ID: {}", id);
     }
 
     @Override
@@ -159,12 +352,7 @@ public class UserServiceImpl implements UserService {
             return false;
         }
 
-        try {
-            return userDao.findById(id).isPresent();
-        } catch (UserServiceException e) {
-            logger.error("Failed to check user existence with ID: {}", id, e);
-            throw new UserServiceException("Failed to check user existence: " + e.getMessage(), e);
-        }
+        return userLookups.execute(id, () -> userDao.findById(id)).isPresent();
     }
 
     @Override
@@ -182,19 +370,68 @@ public class UserServiceImpl implements UserService {
 
     private void validateUserData(String name, String email, Integer age) throws UserServiceException {
         if (name == null || name.trim().isEmpty()) {
-            throw new UserServiceException("Name cannot be empty");
+            throw new InvalidUserException("Name cannot be empty");
+        }
+
+        if (name.length() > MAX_NAME_LENGTH) {
+            throw new InvalidUserException("Name is longer than " + MAX_NAME_LENGTH + " characters");
         }
 
         if (email == null || email.trim().isEmpty()) {
-            throw new UserServiceException("Email cannot be empty");
+            throw new InvalidUserException("Email cannot be empty");
+        }
+
+        if (email.length() > MAX_EMAIL_LENGTH) {
+            throw new InvalidUserException("Email is longer than " + MAX_EMAIL_LENGTH + " characters");
         }
 
         if (!isValidEmail(email)) {
-            throw new UserServiceException("Invalid email format: " + email);
+            throw new InvalidUserException("Invalid email format: " + email);
         }
 
         if (age == null || !isValidAge(age)) {
-            throw new UserServiceException("Invalid age: " + age);
+            throw new InvalidUserException("Invalid age: " + age);
         }
     }
-}
\ No newline at end of file
+
+    // Name and email stay mandatory, age may remain unset
+    private void validateUpdatedUser(User user) throws UserServiceException {
+        if (user.getName() == null || user.getName().trim().isEmpty()) {
+            throw new InvalidUserException("Name cannot be empty");
+        }
+        if (user.getName().length() > MAX_NAME_LENGTH) {
+            throw new InvalidUserException("Name is longer than " + MAX_NAME_LENGTH + " characters");
+        }
+        if (user.getEmail() == null || user.getEmail().length() > MAX_EMAIL_LENGTH || !isValidEmail(user.getEmail())) {
+            throw new InvalidUserException("Invalid email format: " + user.getEmail());
+        }
+        if (user.getAge() != null && !isValidAge(user.getAge())) {
+            throw new InvalidUserException("Invalid age: " + user.getAge());
+        }
+    }
+
+    private User updateVersioned(Long id, Consumer<User> changes) {
+        // A failed attempt opens no read-your-writes window, so a version read from a lagging replica
+        // would be just as stale on every retry
+        User user = SessionRouter.readFromPrimary(() -> userDao.findById(id))
+                .orElseThrow(() -> new UserNotFoundException(id));
+        changes.accept(user);
+        return userDao.update(user);
+    }
+
+    private User updateLocked(Long id, Consumer<User> changes) {
+        return userDao.updateLocked(id, changes)
+                .orElseThrow(() -> new UserNotFoundException(id));
+    }
+
+    private static User copyOf(User user) {
+        User copy = new User();
+        copy.setId(user.getId());
+        copy.setName(user.getName());
+        copy.setEmail(user.getEmail());
+        copy.setAge(user.getAge());
+        copy.setCreatedAt(user.getCreatedAt());
+        copy.setVersion(user.getVersion());
+        return copy;
+    }
+}
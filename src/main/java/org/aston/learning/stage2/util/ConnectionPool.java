@@ -0,0 +1,64 @@
+package org.aston.learning.stage2.util;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.aston.learning.stage2.metrics.ConnectionPoolMetrics;
+import org.hibernate.cfg.JdbcSettings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Builds the HikariCP pool from the Hibernate settings, hibernate.hikari.* maps onto HikariConfig
+public class ConnectionPool {
+    private static final Logger logger = LogManager.getLogger(ConnectionPool.class);
+    public static final String SETTINGS_PREFIX = "hibernate.hikari.";
+    public static final String MAX_POOL_SIZE = SETTINGS_PREFIX + "maximumPoolSize";
+    private static final String DEFAULT_POOL_NAME = "user-service";
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    public static HikariDataSource create(Map<String, Object> settings) {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Object> entry : settings.entrySet()) {
+            if (entry.getKey().startsWith(SETTINGS_PREFIX)) {
+                properties.setProperty(entry.getKey().substring(SETTINGS_PREFIX.length()),
+                        String.valueOf(entry.getValue()));
+            }
+        }
+
+        HikariConfig config = new HikariConfig(properties);
+        config.setJdbcUrl(setting(settings, JdbcSettings.JAKARTA_JDBC_URL));
+        config.setUsername(setting(settings, JdbcSettings.JAKARTA_JDBC_USER));
+        config.setPassword(setting(settings, JdbcSettings.JAKARTA_JDBC_PASSWORD));
+        String driverClass = setting(settings, JdbcSettings.JAKARTA_JDBC_DRIVER);
+        if (driverClass != null) {
+            config.setDriverClassName(driverClass);
+        }
+
+        // Every DAO call runs in an explicit transaction, skip the autocommit round trip on checkout
+        config.setAutoCommit(false);
+        if (config.getPoolName() == null) {
+            int count = poolCount.incrementAndGet();
+            config.setPoolName(count == 1 ? DEFAULT_POOL_NAME : DEFAULT_POOL_NAME + "-" + count);
+        }
+        config.setMetricsTrackerFactory(ConnectionPoolMetrics.factory());
+
+        HikariDataSource dataSource = new HikariDataSource(config);
+        logger.info("Connection pool '{}' started: minIdle={}, maxSize={}, connectionTimeout={}ms",
+                config.getPoolName(), config.getMinimumIdle(), config.getMaximumPoolSize(),
+                config.getConnectionTimeout());
+        return dataSource;
+    }
+
+    public static int maxPoolSize(Map<String, Object> settings, int defaultSize) {
+        Object size = settings.get(MAX_POOL_SIZE);
+        return size == null ? defaultSize : Integer.parseInt(size.toString());
+    }
+
+    private static String setting(Map<String, Object> settings, String key) {
+        Object value = settings.get(key);
+        return value == null ? null : value.toString();
+    }
+}
@@ -13,21 +13,43 @@ public class DatabaseInitializer {
     private static final String DB_NAME = "userdb";
     private static final String USERNAME = "postgres";
     private static final String PASSWORD = "root";
+    private static boolean databaseReady;
 
     public static void initialize() {
-        try {
-            // Attempt to connect to database
-            testConnection();
-            logger.info("Database connection test successful");
-        } catch (Exception e) {
-            logger.warn("Database connection failed, attempting to create database...");
-            createDatabase();
+        ensureDatabaseExists();
+
+        if (StartupMode.current().isLazy()) {
+            logger.info("Lazy startup: SessionFactory will be created on first database call");
+            return;
         }
 
-        // Initialize Hibernate and create tables
+        // Initialize Hibernate and create or validate tables
         initializeHibernate();
     }
 
+    // Runs at most once per JVM, both Main and HibernateUtil call it
+    public static synchronized void ensureDatabaseExists() {
+        if (databaseReady) {
+            return;
+        }
+
+        StartupTimer.time("database check", () -> {
+            try {
+                // Attempt to connect to database
+                testConnection();
+                logger.info("Database connection test successful");
+            } catch (Exception e) {
+                if (StartupMode.current() == StartupMode.PRODUCTION) {
+                    logger.error("Database is not reachable", e);
+                    throw new RuntimeException("Database is not reachable", e);
+                }
+                logger.warn("Database connection failed, attempting to create database...");
+                createDatabase();
+            }
+        });
+        databaseReady = true;
+    }
+
     private static void testConnection() throws Exception {
         String url = DEFAULT_URL + DB_NAME;
         try (Connection connection = DriverManager.getConnection(url, USERNAME, PASSWORD)) {
@@ -52,7 +74,6 @@ public class DatabaseInitializer {
 
     private static void initializeHibernate() {
         try {
-            // Get SessionFactory - Hibernate will automatically create tables
             HibernateUtil.getSessionFactory();
             logger.info("Hibernate initialized successfully");
         } catch (Exception e) {
@@ -60,4 +81,4 @@ public class DatabaseInitializer {
             throw new RuntimeException("Hibernate initialization failed", e);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,49 +1,198 @@
 package org.aston.learning.stage2.util;
 
+import com.zaxxer.hikari.HikariDataSource;
 import org.aston.learning.stage2.entity.User;
 import org.hibernate.SessionFactory;
+import org.hibernate.SessionFactoryObserver;
 import org.hibernate.boot.Metadata;
 import org.hibernate.boot.MetadataSources;
 import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.JdbcSettings;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 public class HibernateUtil {
     private static final Logger logger = LogManager.getLogger(HibernateUtil.class);
-    private static SessionFactory sessionFactory;
+    private static final int DEFAULT_POOL_SIZE = 10;
+    private static volatile SessionFactory sessionFactory;
+    private static volatile List<SessionFactory> replicaSessionFactories;
+    private static volatile List<SessionFactory> shardSessionFactories;
 
-    static {
-        try {
-            // Initialize database before creating SessionFactory
-            DatabaseInitializer.initialize();
+    // Built once on first use, concurrent callers wait for the same instance
+    public static SessionFactory getSessionFactory() {
+        SessionFactory factory = sessionFactory;
+        if (factory == null) {
+            synchronized (HibernateUtil.class) {
+                factory = sessionFactory;
+                if (factory == null) {
+                    factory = buildSessionFactory();
+                    sessionFactory = factory;
+                }
+            }
+        }
+        return factory;
+    }
 
-            // Create SessionFactory
-            StandardServiceRegistry standardRegistry = new StandardServiceRegistryBuilder()
-                    .configure("hibernate.cfg.xml")
-                    .build();
+    // -Duser.dao.replicas, comma separated JDBC URLs of read replicas of the configured database
+    public static List<String> getReplicaUrls() {
+        return urls("user.dao.replicas");
+    }
 
-            Metadata metadata = new MetadataSources(standardRegistry)
-                    .addAnnotatedClass(User.class)
-                    .getMetadataBuilder()
-                    .build();
+    // -Duser.dao.shards, comma separated JDBC URLs of the shard databases, in shard order
+    public static List<String> getShardUrls() {
+        return urls("user.dao.shards");
+    }
 
-            sessionFactory = metadata.getSessionFactoryBuilder().build();
-            logger.info("Hibernate SessionFactory created successfully");
+    // One factory and pool per replica, built together on the first read routed to any of them
+    public static List<SessionFactory> getReplicaSessionFactories() {
+        List<SessionFactory> factories = replicaSessionFactories;
+        if (factories == null) {
+            synchronized (HibernateUtil.class) {
+                factories = replicaSessionFactories;
+                if (factories == null) {
+                    // Replicas get the schema through replication and refuse DDL
+                    factories = buildSessionFactories(getReplicaUrls(), "user-service-replica-", "none");
+                    replicaSessionFactories = factories;
+                }
+            }
+        }
+        return factories;
+    }
 
-        } catch (Throwable ex) {
-            logger.error("Initial SessionFactory creation failed.", ex);
-            throw new ExceptionInInitializerError(ex);
+    // Shards are primaries of their part of the users, each manages its own schema
+    public static List<SessionFactory> getShardSessionFactories() {
+        List<SessionFactory> factories = shardSessionFactories;
+        if (factories == null) {
+            synchronized (HibernateUtil.class) {
+                factories = shardSessionFactories;
+                if (factories == null) {
+                    String schemaAction = StartupMode.current().schemaAction();
+                    factories = buildSessionFactories(getShardUrls(), "user-service-shard-",
+                            schemaAction == null ? "create-drop" : schemaAction);
+                    shardSessionFactories = factories;
+                }
+            }
         }
+        return factories;
     }
 
-    public static SessionFactory getSessionFactory() {
-        return sessionFactory;
+    public static boolean isInitialized() {
+        return sessionFactory != null;
+    }
+
+    public static int getConnectionPoolSize() {
+        return ConnectionPool.maxPoolSize(getSessionFactory().getProperties(), DEFAULT_POOL_SIZE);
     }
 
     public static void shutdown() {
+        if (replicaSessionFactories != null) {
+            replicaSessionFactories.forEach(SessionFactory::close);
+        }
+        if (shardSessionFactories != null) {
+            shardSessionFactories.forEach(SessionFactory::close);
+        }
         if (sessionFactory != null) {
             sessionFactory.close();
         }
     }
-}
\ No newline at end of file
+
+    private static SessionFactory buildSessionFactory() {
+        // Database must exist before Hibernate connects, no-op if already checked
+        DatabaseInitializer.ensureDatabaseExists();
+
+        StartupMode mode = StartupMode.current();
+        String schemaAction = mode.schemaAction();
+        SessionFactory factory = createSessionFactory(
+                schemaAction == null ? Map.of() : Map.of("hibernate.hbm2ddl.auto", schemaAction));
+        logger.info("Hibernate SessionFactory created successfully in {} mode", mode);
+        return factory;
+    }
+
+    private static List<SessionFactory> buildSessionFactories(List<String> urls, String poolPrefix, String schemaAction) {
+        List<SessionFactory> factories = new ArrayList<>(urls.size());
+        try {
+            for (int i = 0; i < urls.size(); i++) {
+                factories.add(createSessionFactory(Map.of(
+                        JdbcSettings.JAKARTA_JDBC_URL, urls.get(i),
+                        "hibernate.hbm2ddl.auto", schemaAction,
+                        ConnectionPool.SETTINGS_PREFIX + "poolName", poolPrefix + (i + 1))));
+            }
+        } catch (RuntimeException e) {
+            factories.forEach(SessionFactory::close);
+            throw e;
+        }
+        logger.info("SessionFactories created for {} databases: {}*", urls.size(), poolPrefix);
+        return List.copyOf(factories);
+    }
+
+    private static List<String> urls(String property) {
+        List<String> urls = new ArrayList<>();
+        for (String url : System.getProperty(property, "").split(",")) {
+            if (!url.isBlank()) {
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
+
+    // hibernate.cfg.xml plus overrides, backed by its own connection pool that closes with the factory
+    public static SessionFactory createSessionFactory(Map<String, Object> overrides) {
+        StandardServiceRegistry standardRegistry = null;
+        HikariDataSource dataSource = null;
+        try {
+            StandardServiceRegistryBuilder builder = new StandardServiceRegistryBuilder()
+                    .configure("hibernate.cfg.xml");
+            // hibernate.cfg.xml takes precedence over system properties, -Dhibernate.show_sql=false has
+            // to be applied by hand to silence the statement echo for load runs
+            String showSql = System.getProperty(AvailableSettings.SHOW_SQL);
+            if (showSql != null) {
+                builder.applySetting(AvailableSettings.SHOW_SQL, showSql);
+            }
+            builder.applySettings(overrides);
+
+            Map<String, Object> settings = builder.getSettings();
+            dataSource = StartupTimer.time("connection pool", () -> ConnectionPool.create(settings));
+            HikariDataSource pool = dataSource;
+            // The pool owns the credentials, Hibernate would otherwise ask it for per-user connections
+            settings.remove(JdbcSettings.JAKARTA_JDBC_USER);
+            settings.remove(JdbcSettings.JAKARTA_JDBC_PASSWORD);
+            standardRegistry = StartupTimer.time("service registry", () -> builder
+                    .applySetting(JdbcSettings.JAKARTA_NON_JTA_DATASOURCE, pool)
+                    // The pool hands out connections with autocommit already off
+                    .applySetting(AvailableSettings.CONNECTION_PROVIDER_DISABLES_AUTOCOMMIT, true)
+                    .build());
+
+            StandardServiceRegistry registry = standardRegistry;
+            Metadata metadata = StartupTimer.time("metadata", () -> new MetadataSources(registry)
+                    .addAnnotatedClass(User.class)
+                    .getMetadataBuilder()
+                    .build());
+
+            // Schema validation/creation and named query checks happen here
+            return StartupTimer.time("session factory", () -> metadata.getSessionFactoryBuilder()
+                    .addSessionFactoryObservers(new SessionFactoryObserver() {
+                        @Override
+                        public void sessionFactoryClosed(SessionFactory factory) {
+                            pool.close();
+                        }
+                    })
+                    .build());
+
+        } catch (Exception ex) {
+            logger.error("Initial SessionFactory creation failed.", ex);
+            if (standardRegistry != null) {
+                StandardServiceRegistryBuilder.destroy(standardRegistry);
+            }
+            if (dataSource != null) {
+                dataSource.close();
+            }
+            throw new IllegalStateException("SessionFactory creation failed", ex);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.aston.learning.stage2.util;
+
+import org.aston.learning.stage2.exception.UserServiceException;
+import org.aston.learning.stage2.metrics.MetricsRegistry;
+import org.aston.learning.stage2.metrics.OperationMetrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+// Coalesces concurrent loads of the same key: the first caller runs the loader, callers arriving
+// while it is in flight wait for its result instead of issuing their own query. Nothing is cached,
+// the key is forgotten as soon as the load completes.
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final UnaryOperator<V> shareCopy;
+    private final OperationMetrics coalesced;
+
+    // shareCopy gives each waiting caller its own copy of a mutable result
+    public SingleFlight(String name, UnaryOperator<V> shareCopy) {
+        this.shareCopy = shareCopy;
+        this.coalesced = MetricsRegistry.operation("singleFlight." + name + ".coalesced");
+    }
+
+    public V execute(K key, Supplier<V> loader) {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, call);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        try {
+            V value = loader.get();
+            call.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private V await(CompletableFuture<V> call) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            V value = shareCopy.apply(call.get());
+            success = true;
+            return value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserServiceException("Interrupted while waiting for an in-flight request", e);
+        } catch (ExecutionException e) {
+            // Waiters see the same failure as the caller that ran the query
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new UserServiceException("In-flight request failed", e.getCause());
+        } finally {
+            coalesced.record(System.nanoTime() - start, success);
+        }
+    }
+}
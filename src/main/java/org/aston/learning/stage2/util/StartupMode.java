@@ -0,0 +1,32 @@
+package org.aston.learning.stage2.util;
+
+// -Dapp.mode=production validates the schema instead of recreating it and never creates the database
+public enum StartupMode {
+    DEVELOPMENT(null),
+    PRODUCTION("validate");
+
+    private static final String MODE_PROPERTY = "app.mode";
+    private static final String SCHEMA_ACTION_PROPERTY = "app.schema.action";
+    private static final String LAZY_PROPERTY = "app.startup.lazy";
+
+    private final String defaultSchemaAction;
+
+    StartupMode(String defaultSchemaAction) {
+        this.defaultSchemaAction = defaultSchemaAction;
+    }
+
+    public static StartupMode current() {
+        String mode = System.getProperty(MODE_PROPERTY, DEVELOPMENT.name());
+        return StartupMode.valueOf(mode.trim().toUpperCase());
+    }
+
+    // null keeps hibernate.hbm2ddl.auto from hibernate.cfg.xml, -Dapp.schema.action overrides both
+    public String schemaAction() {
+        return System.getProperty(SCHEMA_ACTION_PROPERTY, defaultSchemaAction);
+    }
+
+    // -Dapp.startup.lazy=true defers SessionFactory creation to the first database call
+    public boolean isLazy() {
+        return Boolean.getBoolean(LAZY_PROPERTY);
+    }
+}
@@ -0,0 +1,45 @@
+package org.aston.learning.stage2.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public class StartupTimer {
+    private static final Logger logger = LogManager.getLogger(StartupTimer.class);
+    private static final Map<String, Long> phases = new LinkedHashMap<>();
+
+    public static <T> T time(String phase, Supplier<T> action) {
+        long start = System.nanoTime();
+        try {
+            return action.get();
+        } finally {
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            synchronized (phases) {
+                phases.merge(phase, millis, Long::sum);
+            }
+            logger.info("Startup phase '{}' took {} ms", phase, millis);
+        }
+    }
+
+    public static void time(String phase, Runnable action) {
+        time(phase, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public static void logSummary() {
+        StringBuilder summary = new StringBuilder();
+        synchronized (phases) {
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                summary.append(phase.getKey()).append('=').append(phase.getValue()).append("ms ");
+            }
+        }
+        logger.info("Startup completed in {} ms since JVM start: {}",
+                ManagementFactory.getRuntimeMXBean().getUptime(), summary.toString().trim());
+    }
+}